@@ -0,0 +1,194 @@
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbEndpoint;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The shared write engine, against a transport that records every write.
+ */
+public class CommonUsbSerialDriverTest extends TestCase {
+
+    private static final int MAX_PACKET_SIZE = 64;
+
+    /** Only what the write engine needs. */
+    private static class FakeDriver extends CommonUsbSerialDriver {
+
+        FakeDriver(SerialTransport transport) {
+            super(null, null);
+            mTransport = transport;
+        }
+
+        @Override
+        protected int getWriteMaxPacketSize() {
+            return MAX_PACKET_SIZE;
+        }
+
+        @Override
+        public UsbEndpoint getReadEndpoint() {
+            return null;
+        }
+
+        @Override
+        public UsbEndpoint getWriteEndpoint() {
+            return null;
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public int read(byte[] dest, int timeoutMillis) {
+            return 0;
+        }
+
+        @Override
+        public void setParameters(int baudRate, int dataBits, int stopBits, int parity) {
+        }
+
+        @Override
+        public boolean getCD() {
+            return false;
+        }
+
+        @Override
+        public boolean getCTS() {
+            return false;
+        }
+
+        @Override
+        public boolean getDSR() {
+            return false;
+        }
+
+        @Override
+        public boolean getDTR() {
+            return false;
+        }
+
+        @Override
+        public void setDTR(boolean value) {
+        }
+
+        @Override
+        public boolean getRI() {
+            return false;
+        }
+
+        @Override
+        public boolean getRTS() {
+            return false;
+        }
+
+        @Override
+        public void setRTS(boolean value) {
+        }
+
+        @Override
+        public void setFlowControl(int flowControl) {
+        }
+    }
+
+    private final RecordingTransport mTransport = new RecordingTransport();
+    private final FakeDriver mDriver = new FakeDriver(mTransport);
+
+    public void testWritesFromOffsetWithoutCopying() throws IOException {
+        final byte[] data = pattern(100);
+        assertEquals(60, mDriver.write(data, 40, 60, 100));
+
+        assertEquals(Arrays.asList(40), mTransport.writeOffsets);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 40, 100),
+                mTransport.written.toByteArray()));
+    }
+
+    public void testChunksAtWholeMaxPackets() throws IOException {
+        // 1000 bytes of buffer hold 15 max packets: 960 bytes per transfer.
+        mDriver.setWriteBufferSize(1000);
+        final byte[] data = pattern(2500);
+        assertEquals(data.length, mDriver.write(data, 100));
+
+        assertEquals(Arrays.asList(960, 960, 580), mTransport.writeLengths);
+        assertEquals(Arrays.asList(0, 960, 1920), mTransport.writeOffsets);
+        assertTrue(Arrays.equals(data, mTransport.written.toByteArray()));
+    }
+
+    public void testResumesAfterShortWrites() throws IOException {
+        mTransport.maxWrite = 30;
+        final byte[] data = pattern(100);
+        assertEquals(90, mDriver.write(data, 10, 90, 100));
+
+        assertEquals(Arrays.asList(10, 40, 70), mTransport.writeOffsets);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 10, 100),
+                mTransport.written.toByteArray()));
+    }
+
+    public void testFailsWhenNothingIsWritten() {
+        mTransport.maxWrite = 0;
+        try {
+            mDriver.write(pattern(10), 100);
+            fail("Zero-length write accepted");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    public void testGathersSmallBuffersIntoOneTransfer() throws IOException {
+        final byte[] data = pattern(30);
+        final ByteBuffer[] srcs = {
+                ByteBuffer.wrap(data, 0, 10),
+                ByteBuffer.wrap(data, 10, 5),
+                ByteBuffer.wrap(data, 15, 15),
+        };
+        assertEquals(30, mDriver.write(srcs, 100));
+
+        assertEquals(Arrays.asList(30), mTransport.writeLengths);
+        assertTrue(Arrays.equals(data, mTransport.written.toByteArray()));
+        for (ByteBuffer src : srcs) {
+            assertFalse(src.hasRemaining());
+        }
+    }
+
+    public void testGatherFlushesFullChunksAndShortWrites() throws IOException {
+        mDriver.setWriteBufferSize(200);
+        mTransport.maxWrite = 100;
+        final byte[] data = pattern(500);
+        final ByteBuffer[] srcs = {
+                ByteBuffer.wrap(data, 0, 150),
+                ByteBuffer.wrap(data, 150, 350),
+        };
+        assertEquals(500, mDriver.write(srcs, 100));
+
+        // 192 byte chunks, each sent as 100 + 92; then the 116 left over.
+        assertEquals(Arrays.asList(100, 92, 100, 92, 100, 16), mTransport.writeLengths);
+        assertEquals(Arrays.asList(0, 100, 0, 100, 0, 100), mTransport.writeOffsets);
+        assertTrue(Arrays.equals(data, mTransport.written.toByteArray()));
+    }
+
+    public void testWriteBeforeOpenFails() {
+        final FakeDriver closed = new FakeDriver(null);
+        try {
+            closed.write(pattern(10), 100);
+            fail("Write before open accepted");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    private static byte[] pattern(int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 13 + 1);
+        }
+        return data;
+    }
+
+}
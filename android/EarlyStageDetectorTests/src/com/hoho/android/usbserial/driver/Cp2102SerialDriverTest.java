@@ -0,0 +1,114 @@
+package com.hoho.android.usbserial.driver;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+/**
+ * Modem line and flow control requests, recorded instead of sent.
+ */
+public class Cp2102SerialDriverTest extends TestCase {
+
+    private static final int SET_MHS = 0x07;
+    private static final int SET_FLOW = 0x13;
+
+    private static final int SERIAL_DTR_ACTIVE = 0x01;
+    private static final int SERIAL_CTS_HANDSHAKE = 0x08;
+    private static final int SERIAL_AUTO_TRANSMIT = 0x01;
+    private static final int SERIAL_AUTO_RECEIVE = 0x02;
+    private static final int SERIAL_RTS_ACTIVE = 0x40;
+    private static final int SERIAL_RTS_FLOW_CTL = 0x80;
+
+    private final RecordingTransport mTransport = new RecordingTransport();
+    private final Cp2102SerialDriver mDriver = new Cp2102SerialDriver(null, null);
+
+    @Override
+    protected void setUp() {
+        mDriver.mTransport = mTransport;
+    }
+
+    public void testSetsModemLines() throws IOException {
+        mDriver.setDTR(true);
+        assertEquals(0x0101, mTransport.lastControl(SET_MHS).value);
+        mDriver.setRTS(false);
+        assertEquals(0x0200, mTransport.lastControl(SET_MHS).value);
+        mDriver.setRTS(true);
+        assertEquals(0x0202, mTransport.lastControl(SET_MHS).value);
+    }
+
+    public void testReadsModemStatus() throws IOException {
+        // DTR, CTS and DCD up
+        mTransport.controlResponse = new byte[] { (byte) 0x91 };
+        assertTrue(mDriver.getDTR());
+        assertTrue(mDriver.getCTS());
+        assertTrue(mDriver.getCD());
+        assertFalse(mDriver.getRTS());
+        assertFalse(mDriver.getDSR());
+        assertFalse(mDriver.getRI());
+    }
+
+    public void testModemStatusFailsOnShortResponse() {
+        try {
+            mDriver.getCTS();
+            fail("Empty modem status accepted");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    public void testFlowControlKeepsLinesAsSet() throws IOException {
+        mDriver.setFlowControl(UsbSerialDriver.FLOWCONTROL_NONE);
+        assertEquals(SERIAL_DTR_ACTIVE, controlHandshake());
+        assertEquals(SERIAL_RTS_ACTIVE, flowReplace());
+
+        mDriver.setDTR(false);
+        mDriver.setRTS(false);
+        mDriver.setFlowControl(UsbSerialDriver.FLOWCONTROL_NONE);
+        assertEquals(0, controlHandshake());
+        assertEquals(0, flowReplace());
+    }
+
+    public void testRtsCtsHandsRtsBackWhenTurnedOff() throws IOException {
+        mDriver.setRTS(false);
+        mDriver.setFlowControl(UsbSerialDriver.FLOWCONTROL_RTSCTS_IN
+                | UsbSerialDriver.FLOWCONTROL_RTSCTS_OUT);
+        assertEquals(SERIAL_DTR_ACTIVE | SERIAL_CTS_HANDSHAKE, controlHandshake());
+        assertEquals(SERIAL_RTS_FLOW_CTL, flowReplace());
+
+        mDriver.setFlowControl(UsbSerialDriver.FLOWCONTROL_NONE);
+        assertEquals(SERIAL_DTR_ACTIVE, controlHandshake());
+        assertEquals(0, flowReplace());
+        assertEquals(UsbSerialDriver.FLOWCONTROL_NONE, mDriver.getFlowControl());
+    }
+
+    public void testXonXoff() throws IOException {
+        mDriver.setFlowControl(UsbSerialDriver.FLOWCONTROL_XONXOFF_IN
+                | UsbSerialDriver.FLOWCONTROL_XONXOFF_OUT);
+        assertEquals(SERIAL_RTS_ACTIVE | SERIAL_AUTO_TRANSMIT | SERIAL_AUTO_RECEIVE,
+                flowReplace());
+    }
+
+    public void testRejectsUnknownFlowControl() throws IOException {
+        try {
+            mDriver.setFlowControl(0x100);
+            fail("Unknown flow control accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        assertNull(mTransport.lastControl(SET_FLOW));
+    }
+
+    private int controlHandshake() {
+        return getInt(mTransport.lastControl(SET_FLOW).data, 0);
+    }
+
+    private int flowReplace() {
+        return getInt(mTransport.lastControl(SET_FLOW).data, 4);
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8)
+                | ((data[offset + 2] & 0xff) << 16) | ((data[offset + 3] & 0xff) << 24);
+    }
+
+}
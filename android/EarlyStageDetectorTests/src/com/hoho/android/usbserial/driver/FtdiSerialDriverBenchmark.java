@@ -0,0 +1,64 @@
+package com.hoho.android.usbserial.driver;
+
+import com.hoho.android.usbserial.util.Microbenchmark;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+public class FtdiSerialDriverBenchmark extends TestCase {
+
+    private static final int OPS = 5000;
+    private static final int READ_SIZE = 4096;
+    private static final int MAX_PACKET_SIZE = 64;
+
+    /** A full read as it arrives: every packet starts with two status bytes. */
+    private final byte[] mTemplate = new byte[READ_SIZE];
+    private final byte[] mBuffer = new byte[READ_SIZE];
+    private final ByteBuffer mDirect = ByteBuffer.allocateDirect(READ_SIZE);
+
+    private int mSink;
+
+    @Override
+    protected void setUp() {
+        for (int i = 0; i < READ_SIZE; i++) {
+            mTemplate[i] = (i % MAX_PACKET_SIZE) < 2 ? (byte) 0x60 : (byte) i;
+        }
+    }
+
+    public void testFilterStatusBytesInPlace() throws Exception {
+        // Includes restoring the buffer, a single arraycopy of 4 KB.
+        final Microbenchmark.Result result = Microbenchmark.measure(
+                "filterStatusBytes byte[] 4 KB", OPS, new Microbenchmark.Body() {
+                    @Override
+                    public void run(int ops) {
+                        for (int i = 0; i < ops; i++) {
+                            System.arraycopy(mTemplate, 0, mBuffer, 0, READ_SIZE);
+                            mSink += FtdiSerialDriver.filterStatusBytes(mBuffer, 0, READ_SIZE,
+                                    MAX_PACKET_SIZE);
+                        }
+                    }
+                });
+        assertEquals(READ_SIZE - 2 * (READ_SIZE / MAX_PACKET_SIZE),
+                FtdiSerialDriver.filterStatusBytes(mTemplate.clone(), 0, READ_SIZE,
+                        MAX_PACKET_SIZE));
+        Microbenchmark.assertAllocationBudget(result, 0);
+    }
+
+    public void testFilterStatusBytesDirect() throws Exception {
+        final Microbenchmark.Result result = Microbenchmark.measure(
+                "filterStatusBytes direct 4 KB", OPS, new Microbenchmark.Body() {
+                    @Override
+                    public void run(int ops) {
+                        for (int i = 0; i < ops; i++) {
+                            mDirect.clear();
+                            mDirect.put(mTemplate);
+                            mSink += FtdiSerialDriver.filterStatusBytes(mDirect, READ_SIZE,
+                                    MAX_PACKET_SIZE);
+                        }
+                    }
+                });
+        Microbenchmark.assertAllocationBudget(result, 0);
+    }
+
+}
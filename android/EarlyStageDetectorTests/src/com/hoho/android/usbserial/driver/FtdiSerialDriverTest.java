@@ -0,0 +1,93 @@
+package com.hoho.android.usbserial.driver;
+
+import com.hoho.android.usbserial.driver.FtdiSerialDriver.DeviceType;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+public class FtdiSerialDriverTest extends TestCase {
+
+    private static long encoded(long divisor) {
+        return divisor >>> 32;
+    }
+
+    private static int baud(long divisor) {
+        return (int) divisor;
+    }
+
+    public void testDetectsTypeFromBcdDevice() {
+        final byte[] descriptor = new byte[18];
+        descriptor[13] = 0x06;
+        assertEquals(DeviceType.TYPE_R, FtdiSerialDriver.detectDeviceType(descriptor));
+        descriptor[13] = 0x09;
+        assertEquals(DeviceType.TYPE_232H, FtdiSerialDriver.detectDeviceType(descriptor));
+        descriptor[13] = 0x02;
+        assertEquals(DeviceType.TYPE_BM, FtdiSerialDriver.detectDeviceType(descriptor));
+        descriptor[16] = 3;
+        assertEquals(DeviceType.TYPE_AM, FtdiSerialDriver.detectDeviceType(descriptor));
+    }
+
+    public void testBmDivisors() {
+        long divisor = FtdiSerialDriver.computeDivisor(DeviceType.TYPE_R, 115200);
+        assertEquals(0x1A, encoded(divisor));
+        assertEquals(115385, baud(divisor));
+
+        assertEquals(1, encoded(FtdiSerialDriver.computeDivisor(DeviceType.TYPE_R, 2000000)));
+        assertEquals(0, encoded(FtdiSerialDriver.computeDivisor(DeviceType.TYPE_R, 3000000)));
+        assertEquals(3000000, baud(FtdiSerialDriver.computeDivisor(DeviceType.TYPE_R, 12000000)));
+    }
+
+    public void testAmDivisor() {
+        long divisor = FtdiSerialDriver.computeDivisor(DeviceType.TYPE_AM, 9600);
+        assertEquals(0x4138, encoded(divisor));
+        assertEquals(9600, baud(divisor));
+    }
+
+    public void testHighSpeedDivisors() {
+        long divisor = FtdiSerialDriver.computeDivisor(DeviceType.TYPE_232H, 12000000);
+        assertEquals(0x20000, encoded(divisor));
+        assertEquals(12000000, baud(divisor));
+
+        divisor = FtdiSerialDriver.computeDivisor(DeviceType.TYPE_2232H, 8000000);
+        assertEquals(0x20001, encoded(divisor));
+        assertEquals(8000000, baud(divisor));
+    }
+
+    /**
+     * Three full 8 byte packets and a short one, each starting with a two
+     * byte status header; payload bytes count up from 0.
+     */
+    private static byte[] packets() {
+        final byte[] data = new byte[3 * 8 + 5];
+        int payload = 0;
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (i % 8) < 2 ? (byte) 0xEE : (byte) payload++;
+        }
+        return data;
+    }
+
+    public void testStripsHeadersInPlace() {
+        final byte[] data = packets();
+        assertEquals(21, FtdiSerialDriver.filterStatusBytes(data, 0, data.length, 8));
+        for (int i = 0; i < 21; i++) {
+            assertEquals(i, data[i]);
+        }
+
+        // A read ending on a packet boundary has no trailing empty packet.
+        assertEquals(18, FtdiSerialDriver.filterStatusBytes(packets(), 0, 24, 8));
+        assertEquals(0, FtdiSerialDriver.filterStatusBytes(packets(), 0, 2, 8));
+    }
+
+    public void testStripsHeadersInDirectBuffer() {
+        final byte[] data = packets();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        buffer.put(data);
+
+        assertEquals(21, FtdiSerialDriver.filterStatusBytes(buffer, data.length, 8));
+        for (int i = 0; i < 21; i++) {
+            assertEquals(i, buffer.get(i));
+        }
+    }
+
+}
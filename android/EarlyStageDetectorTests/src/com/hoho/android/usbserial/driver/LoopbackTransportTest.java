@@ -0,0 +1,88 @@
+package com.hoho.android.usbserial.driver;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+public class LoopbackTransportTest extends TestCase {
+
+    public void testEchoesWrites() throws IOException {
+        final LoopbackTransport transport = new LoopbackTransport(LoopbackTransport.UNLIMITED, 0,
+                LoopbackTransport.DEFAULT_CAPACITY);
+        transport.open();
+
+        assertEquals(3, transport.write(new byte[] { 1, 2, 3 }, 0, 3, 100));
+        final byte[] dest = new byte[8];
+        assertEquals(3, transport.read(dest, 2, 6, 100));
+        assertEquals(1, dest[2]);
+        assertEquals(3, dest[4]);
+        assertEquals(0, transport.read(dest, 0, 8, 10));
+    }
+
+    public void testPairHonorsLatencyAndBandwidth() throws IOException {
+        // 100 kB/s: 1000 bytes take 10 ms on the wire, plus 20 ms latency.
+        final LoopbackTransport[] pair = LoopbackTransport.createPair(100000, 20000000L, 4096);
+        pair[0].open();
+        pair[1].open();
+
+        final long start = System.nanoTime();
+        pair[0].write(new byte[1000], 0, 1000, 100);
+
+        final byte[] dest = new byte[1000];
+        int read = 0;
+        while (read < dest.length) {
+            read += pair[1].read(dest, read, dest.length - read, 1000);
+        }
+        final long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+        assertTrue("arrived after " + elapsedMillis + " ms", elapsedMillis >= 30);
+
+        // Nothing comes back on the writing end.
+        assertEquals(0, pair[0].read(dest, 0, dest.length, 10));
+    }
+
+    public void testFullPipeTimesOutWriter() throws IOException {
+        final LoopbackTransport transport = new LoopbackTransport(LoopbackTransport.UNLIMITED, 0,
+                16);
+        transport.open();
+        assertEquals(16, transport.write(new byte[20], 0, 20, 100));
+        assertEquals(0, transport.write(new byte[1], 0, 1, 10));
+        assertEquals(16, transport.getPendingWriteBytes());
+    }
+
+    public void testDriverOverTransport() throws IOException {
+        final LoopbackTransport[] pair = LoopbackTransport.createPair(LoopbackTransport.UNLIMITED,
+                0, 64);
+        final TransportSerialDriver host = new TransportSerialDriver(pair[0]);
+        final TransportSerialDriver device = new TransportSerialDriver(pair[1]);
+        host.open();
+        device.open();
+
+        final byte[] data = new byte[200];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    host.write(data, 1000);
+                } catch (IOException e) {
+                }
+            }
+        };
+        writer.start();
+
+        final byte[] dest = new byte[data.length];
+        final byte[] chunk = new byte[64];
+        int read = 0;
+        while (read < dest.length) {
+            final int count = device.read(chunk, 1000);
+            System.arraycopy(chunk, 0, dest, read, count);
+            read += count;
+        }
+        for (int i = 0; i < dest.length; i++) {
+            assertEquals((byte) i, dest[i]);
+        }
+    }
+
+}
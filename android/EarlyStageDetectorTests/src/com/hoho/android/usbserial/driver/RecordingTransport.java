@@ -0,0 +1,89 @@
+package com.hoho.android.usbserial.driver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A {@link SerialTransport} that records what a driver sends: every write
+ * with the offset it started at, and every control transfer.
+ */
+class RecordingTransport implements SerialTransport {
+
+    /** One recorded control transfer. */
+    static class Control {
+        final int requestType;
+        final int request;
+        final int value;
+        final int index;
+        final byte[] data;
+
+        Control(int requestType, int request, int value, int index, byte[] data) {
+            this.requestType = requestType;
+            this.request = request;
+            this.value = value;
+            this.index = index;
+            this.data = data;
+        }
+    }
+
+    final List<Integer> writeOffsets = new ArrayList<Integer>();
+    final List<Integer> writeLengths = new ArrayList<Integer>();
+    final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    final List<Control> controls = new ArrayList<Control>();
+
+    /** Most bytes accepted per write, to provoke short writes. */
+    int maxWrite = Integer.MAX_VALUE;
+
+    /** Copied into the buffer of device-to-host control transfers. */
+    byte[] controlResponse = new byte[0];
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public int read(byte[] dest, int offset, int length, int timeoutMillis) {
+        return 0;
+    }
+
+    @Override
+    public int write(byte[] src, int offset, int length, int timeoutMillis) {
+        final int accepted = Math.min(length, maxWrite);
+        writeOffsets.add(Integer.valueOf(offset));
+        writeLengths.add(Integer.valueOf(accepted));
+        written.write(src, offset, accepted);
+        return accepted;
+    }
+
+    @Override
+    public int controlTransfer(int requestType, int request, int value, int index,
+            byte[] buffer, int length, int timeoutMillis) throws IOException {
+        if ((requestType & 0x80) != 0) {
+            final int count = Math.min(length, controlResponse.length);
+            System.arraycopy(controlResponse, 0, buffer, 0, count);
+            controls.add(new Control(requestType, request, value, index, null));
+            return count;
+        }
+        controls.add(new Control(requestType, request, value, index,
+                buffer == null ? null : Arrays.copyOf(buffer, length)));
+        return length;
+    }
+
+    /** Returns the last control transfer with {@code request}, or {@code null}. */
+    Control lastControl(int request) {
+        for (int i = controls.size() - 1; i >= 0; i--) {
+            if (controls.get(i).request == request) {
+                return controls.get(i);
+            }
+        }
+        return null;
+    }
+
+}
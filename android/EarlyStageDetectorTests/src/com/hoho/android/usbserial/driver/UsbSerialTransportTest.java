@@ -0,0 +1,99 @@
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbEndpoint;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Both bulk transfer paths, with the connection replaced by a recording
+ * one.
+ */
+public class UsbSerialTransportTest extends TestCase {
+
+    /** Records transfers instead of making them. */
+    private static class RecordingUsbTransport extends UsbSerialTransport {
+
+        byte[] lastBuffer;
+        int lastOffset;
+        int lastLength;
+        byte[] readData = new byte[0];
+
+        RecordingUsbTransport(boolean offsetTransfers) {
+            super(null, null, null, null, offsetTransfers);
+        }
+
+        @Override
+        protected int bulkTransfer(UsbEndpoint endpoint, byte[] buffer, int length,
+                int timeoutMillis) {
+            return bulkTransfer(endpoint, buffer, 0, length, timeoutMillis);
+        }
+
+        @Override
+        protected int bulkTransfer(UsbEndpoint endpoint, byte[] buffer, int offset, int length,
+                int timeoutMillis) {
+            lastBuffer = buffer;
+            lastOffset = offset;
+            lastLength = length;
+            final int count = Math.min(length, readData.length);
+            System.arraycopy(readData, 0, buffer, offset, count);
+            return readData.length > 0 ? count : length;
+        }
+    }
+
+    public void testWritesAtOffsetInPlace() throws IOException {
+        final RecordingUsbTransport transport = new RecordingUsbTransport(true);
+        transport.open();
+
+        final byte[] data = new byte[100];
+        assertEquals(60, transport.write(data, 40, 60, 100));
+        assertSame(data, transport.lastBuffer);
+        assertEquals(40, transport.lastOffset);
+        assertEquals(60, transport.lastLength);
+    }
+
+    public void testCopiesOffsetWritesBeforeApi18() throws IOException {
+        final RecordingUsbTransport transport = new RecordingUsbTransport(false);
+        transport.open();
+
+        final byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        assertEquals(60, transport.write(data, 40, 60, 100));
+        assertNotSame(data, transport.lastBuffer);
+        assertEquals(0, transport.lastOffset);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 40, 100),
+                Arrays.copyOf(transport.lastBuffer, 60)));
+
+        // Offset 0 needs no copy on any release.
+        assertEquals(10, transport.write(data, 0, 10, 100));
+        assertSame(data, transport.lastBuffer);
+    }
+
+    public void testCopiesOffsetReadsBeforeApi18() throws IOException {
+        final RecordingUsbTransport transport = new RecordingUsbTransport(false);
+        transport.open();
+        transport.readData = new byte[] { 7, 8, 9 };
+
+        final byte[] dest = new byte[16];
+        assertEquals(3, transport.read(dest, 5, 10, 100));
+        assertNotSame(dest, transport.lastBuffer);
+        assertEquals(7, dest[5]);
+        assertEquals(9, dest[7]);
+        assertEquals(0, dest[8]);
+    }
+
+    public void testRejectsTransfersWhenClosed() {
+        final RecordingUsbTransport transport = new RecordingUsbTransport(true);
+        try {
+            transport.write(new byte[4], 0, 4, 100);
+            fail("Write on a closed transport accepted");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.hoho.android.usbserial.util;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+public class BufferPoolTest extends TestCase {
+
+    public void testExhaustsAndRecycles() throws InterruptedException {
+        final BufferPool pool = new BufferPool(2, 64, false);
+        final ByteBuffer a = pool.acquire(0);
+        final ByteBuffer b = pool.acquire(0);
+        assertNotNull(a);
+        assertNotNull(b);
+        assertNull(pool.acquire(10));
+
+        a.put((byte) 1).flip();
+        pool.release(a);
+        assertEquals(1, pool.available());
+
+        final ByteBuffer c = pool.acquire(0);
+        assertSame(a, c);
+        assertEquals(0, c.position());
+        assertEquals(64, c.limit());
+    }
+
+    public void testRejectsForeignAndDoubleRelease() throws InterruptedException {
+        final BufferPool pool = new BufferPool(1, 64, false);
+        try {
+            pool.release(ByteBuffer.allocate(32));
+            fail("foreign buffer accepted");
+        } catch (IllegalArgumentException e) {
+        }
+
+        final ByteBuffer a = pool.acquire(0);
+        pool.release(a);
+        try {
+            pool.release(a);
+            fail("double release accepted");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    public void testRejectsDoubleReleaseWhileOthersAreOut() throws InterruptedException {
+        final BufferPool pool = new BufferPool(3, 64, false);
+        final ByteBuffer a = pool.acquire(0);
+        final ByteBuffer b = pool.acquire(0);
+        pool.release(a);
+        try {
+            pool.release(a);
+            fail("double release accepted with a free slot left");
+        } catch (IllegalStateException e) {
+        }
+        assertEquals(2, pool.available());
+
+        // same shape, but not ours
+        try {
+            pool.release(ByteBuffer.allocate(64));
+            fail("foreign buffer of the same size accepted");
+        } catch (IllegalArgumentException e) {
+        }
+
+        pool.release(b);
+        assertEquals(3, pool.available());
+        assertNotSame(pool.acquire(0), pool.acquire(0));
+    }
+
+}
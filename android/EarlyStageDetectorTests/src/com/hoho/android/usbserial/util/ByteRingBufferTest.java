@@ -0,0 +1,111 @@
+package com.hoho.android.usbserial.util;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ByteRingBufferTest extends TestCase {
+
+    private static class CollectingSink implements ByteRingBuffer.Sink {
+        final byte[] data;
+        int size = 0;
+
+        CollectingSink(int capacity) {
+            data = new byte[capacity];
+        }
+
+        @Override
+        public void drain(byte[] buffer, int offset, int length) {
+            System.arraycopy(buffer, offset, data, size, length);
+            size += length;
+        }
+    }
+
+    public void testWrapsAround() throws IOException {
+        final ByteRingBuffer ring = new ByteRingBuffer(8, ByteRingBuffer.OverflowPolicy.FAIL_FAST);
+        final CollectingSink sink = new CollectingSink(64);
+
+        for (int i = 0; i < 10; i++) {
+            ring.write(new byte[] { (byte) (3 * i), (byte) (3 * i + 1), (byte) (3 * i + 2) }, 0, 3);
+            assertEquals(3, ring.drainTo(sink));
+        }
+
+        assertEquals(30, sink.size);
+        for (int i = 0; i < 30; i++) {
+            assertEquals(i, sink.data[i]);
+        }
+    }
+
+    public void testFailFastWritesNothing() {
+        final ByteRingBuffer ring = new ByteRingBuffer(8, ByteRingBuffer.OverflowPolicy.FAIL_FAST);
+        ring.write(new byte[6], 0, 6);
+        try {
+            ring.write(new byte[3], 0, 3);
+            fail("overflow accepted");
+        } catch (BufferOverflowException e) {
+        }
+        assertEquals(6, ring.available());
+    }
+
+    public void testDropOldestKeepsNewest() throws IOException {
+        final ByteRingBuffer ring = new ByteRingBuffer(4, ByteRingBuffer.OverflowPolicy.DROP_OLDEST);
+        ring.write(new byte[] { 1, 2, 3, 4 }, 0, 4);
+        ring.write(new byte[] { 5, 6 }, 0, 2);
+
+        final CollectingSink sink = new CollectingSink(8);
+        ring.drainTo(sink);
+
+        assertEquals(4, sink.size);
+        assertEquals(3, sink.data[0]);
+        assertEquals(6, sink.data[3]);
+        assertEquals(2, ring.getDroppedBytes());
+    }
+
+    public void testBlockingProducerAndConsumerThreads() throws Exception {
+        final int total = 1 << 20;
+        final ByteRingBuffer ring = new ByteRingBuffer(256, ByteRingBuffer.OverflowPolicy.BLOCK);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+
+        final Thread consumer = new Thread() {
+            private int mExpected = 0;
+
+            @Override
+            public void run() {
+                try {
+                    while (mExpected < total) {
+                        ring.awaitData(10);
+                        ring.drainTo(new ByteRingBuffer.Sink() {
+                            @Override
+                            public void drain(byte[] buffer, int offset, int length) {
+                                for (int i = 0; i < length; i++) {
+                                    if (buffer[offset + i] != (byte) mExpected++) {
+                                        failure.compareAndSet(null, "mismatch at " + (mExpected - 1));
+                                    }
+                                }
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    failure.set(e.toString());
+                }
+            }
+        };
+        consumer.start();
+
+        final byte[] chunk = new byte[100];
+        for (int written = 0; written < total; written += chunk.length) {
+            final int length = Math.min(chunk.length, total - written);
+            for (int i = 0; i < length; i++) {
+                chunk[i] = (byte) (written + i);
+            }
+            assertEquals(length, ring.write(chunk, 0, length));
+        }
+
+        consumer.join(10000);
+        assertFalse(consumer.isAlive());
+        assertNull(failure.get());
+    }
+
+}
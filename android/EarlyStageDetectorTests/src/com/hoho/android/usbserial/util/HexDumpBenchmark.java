@@ -0,0 +1,57 @@
+package com.hoho.android.usbserial.util;
+
+import junit.framework.TestCase;
+
+public class HexDumpBenchmark extends TestCase {
+
+    private static final int OPS = 2000;
+
+    private final byte[] mChunk = new byte[256];
+
+    private int mSink;
+
+    @Override
+    protected void setUp() {
+        for (int i = 0; i < mChunk.length; i++) {
+            mChunk[i] = (byte) (i * 31);
+        }
+    }
+
+    public void testToHexString() throws Exception {
+        Microbenchmark.measure("HexDump.toHexString 64 B", OPS, new Microbenchmark.Body() {
+            @Override
+            public void run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    mSink += HexDump.toHexString(mChunk, 0, 64).length();
+                }
+            }
+        });
+    }
+
+    public void testAppendHexReusedBuilder() throws Exception {
+        final StringBuilder builder = new StringBuilder(256);
+        final Microbenchmark.Result result = Microbenchmark.measure(
+                "HexDump.appendHex 64 B", OPS, new Microbenchmark.Body() {
+                    @Override
+                    public void run(int ops) {
+                        for (int i = 0; i < ops; i++) {
+                            builder.setLength(0);
+                            mSink += HexDump.appendHex(builder, mChunk, 0, 64).length();
+                        }
+                    }
+                });
+        Microbenchmark.assertAllocationBudget(result, 0);
+    }
+
+    public void testDumpHexString() throws Exception {
+        Microbenchmark.measure("HexDump.dumpHexString 256 B", OPS, new Microbenchmark.Body() {
+            @Override
+            public void run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    mSink += HexDump.dumpHexString(mChunk).length();
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,57 @@
+package com.hoho.android.usbserial.util;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+public class HexDumpTest extends TestCase {
+
+    public void testFormatsWithUppercaseDigits() {
+        assertEquals("00FF7F80", HexDump.toHexString(new byte[] { 0, -1, 127, -128 }));
+        assertEquals("0A", HexDump.toHexString((byte) 10));
+        assertEquals("DEADBEEF", HexDump.toHexString(0xDEADBEEF));
+        assertEquals("0102", HexDump.toHexString((short) 0x0102));
+    }
+
+    public void testAppendsIntoReusedBuilder() {
+        final StringBuilder builder = new StringBuilder("x=");
+        HexDump.appendHex(builder, new byte[] { 1, 2, (byte) 0xAB }, 1, 2);
+        assertEquals("x=02AB", builder.toString());
+
+        final ByteBuffer direct = ByteBuffer.allocateDirect(4);
+        direct.put(new byte[] { 9, 8, 7, 6 });
+        builder.setLength(0);
+        HexDump.appendHex(builder, direct, 2, 2);
+        assertEquals("0706", builder.toString());
+        assertEquals(4, direct.position());
+
+        final CharBuffer chars = CharBuffer.allocate(4);
+        HexDump.appendHex(chars, new byte[] { (byte) 0xC0, 0x01 }, 0, 2);
+        chars.flip();
+        assertEquals("C001", chars.toString());
+    }
+
+    public void testParsesBothCases() {
+        final byte[] bytes = { 0, 0x12, (byte) 0xAB, (byte) 0xFF };
+        assertTrue(Arrays.equals(bytes, HexDump.hexStringToByteArray("0012abFF")));
+
+        final byte[] dest = new byte[3];
+        assertEquals(2, HexDump.hexStringToByteArray("abcd", dest, 1));
+        assertEquals((byte) 0xCD, dest[2]);
+
+        try {
+            HexDump.hexStringToByteArray("0G");
+            fail("accepted a non hex digit");
+        } catch (RuntimeException e) {
+        }
+
+        try {
+            HexDump.hexStringToByteArray("abc");
+            fail("accepted an odd number of digits");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+}
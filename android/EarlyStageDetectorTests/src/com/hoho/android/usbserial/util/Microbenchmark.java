@@ -0,0 +1,102 @@
+package com.hoho.android.usbserial.util;
+
+import android.os.Debug;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+/**
+ * Minimal benchmark harness for the instrumentation tests: runs a body for a
+ * warmup round and a number of measured rounds and reports the best ns/op
+ * together with the bytes and objects allocated per op, counted by
+ * {@link Debug} on the calling thread, or process wide for bodies that hand
+ * work to other threads.
+ *
+ * Benchmarks log their results under the {@code Microbenchmark} tag, e.g.
+ * {@code adb logcat -s Microbenchmark}, and fail when an allocation budget is
+ * exceeded. Timings are only reported; they depend too much on the device
+ * to gate on.
+ */
+public final class Microbenchmark {
+
+    private static final String TAG = "Microbenchmark";
+
+    /** Runs the operation under test {@code ops} times. */
+    public interface Body {
+        public void run(int ops) throws Exception;
+    }
+
+    public static final class Result {
+        public final String name;
+        public final double nanosPerOp;
+        public final double bytesPerOp;
+        public final double allocationsPerOp;
+
+        Result(String name, double nanosPerOp, double bytesPerOp, double allocationsPerOp) {
+            this.name = name;
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+            this.allocationsPerOp = allocationsPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-40s %12.1f ns/op %10.1f B/op %8.2f allocs/op", name,
+                    Double.valueOf(nanosPerOp), Double.valueOf(bytesPerOp),
+                    Double.valueOf(allocationsPerOp));
+        }
+    }
+
+    private static final int DEFAULT_ROUNDS = 5;
+
+    private Microbenchmark() {
+    }
+
+    public static Result measure(String name, int ops, Body body) throws Exception {
+        return measure(name, ops, DEFAULT_ROUNDS, false, body);
+    }
+
+    /**
+     * Runs {@code body} once with {@code ops} operations to warm up, then
+     * {@code rounds} more times, and reports the fastest round. Allocations
+     * are the average over the measured rounds, counted on this thread
+     * unless {@code global} is set.
+     */
+    public static Result measure(String name, int ops, int rounds, boolean global, Body body)
+            throws Exception {
+        body.run(ops);
+
+        long bestNanos = Long.MAX_VALUE;
+        long bytes = 0;
+        long allocations = 0;
+        for (int round = 0; round < rounds; round++) {
+            Debug.resetAllCounts();
+            Debug.startAllocCounting();
+            final long start = System.nanoTime();
+            body.run(ops);
+            final long elapsed = System.nanoTime() - start;
+            Debug.stopAllocCounting();
+
+            bytes += global ? Debug.getGlobalAllocSize() : Debug.getThreadAllocSize();
+            allocations += global ? Debug.getGlobalAllocCount() : Debug.getThreadAllocCount();
+            bestNanos = Math.min(bestNanos, elapsed);
+        }
+
+        final double totalOps = (double) ops * rounds;
+        final Result result = new Result(name, (double) bestNanos / ops, bytes / totalOps,
+                allocations / totalOps);
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    /**
+     * Fails unless {@code result} allocated at most {@code maxBytesPerOp} per
+     * op on average. A budget of 0 still tolerates the odd allocation made by
+     * the runtime during a round.
+     */
+    public static void assertAllocationBudget(Result result, double maxBytesPerOp) {
+        Assert.assertTrue(result.name + " allocates " + result.bytesPerOp + " B/op, budget "
+                + maxBytesPerOp, result.bytesPerOp <= maxBytesPerOp + 0.01);
+    }
+
+}
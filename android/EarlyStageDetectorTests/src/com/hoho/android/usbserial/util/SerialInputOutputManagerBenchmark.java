@@ -0,0 +1,96 @@
+package com.hoho.android.usbserial.util;
+
+import com.hoho.android.usbserial.driver.LoopbackTransport;
+import com.hoho.android.usbserial.driver.TransportSerialDriver;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Read throughput of the manager's reader thread, fed through an unthrottled
+ * loopback pair: one op is one 4 KB chunk from the far end up to the
+ * {@link SerialInputOutputManager.BufferListener}.
+ */
+public class SerialInputOutputManagerBenchmark extends TestCase {
+
+    private static final int OPS = 2000;
+    private static final int CHUNK = 4096;
+
+    private final Object mLock = new Object();
+    private long mReceived = 0;
+
+    private LoopbackTransport mDeviceEnd;
+    private SerialInputOutputManager mManager;
+    private ExecutorService mExecutor;
+
+    @Override
+    protected void setUp() throws IOException {
+        final LoopbackTransport[] pair = LoopbackTransport.createPair(
+                LoopbackTransport.UNLIMITED, 0, LoopbackTransport.DEFAULT_CAPACITY);
+        final TransportSerialDriver host = new TransportSerialDriver(pair[0]);
+        mDeviceEnd = pair[1];
+        host.open();
+        mDeviceEnd.open();
+
+        mManager = new SerialInputOutputManager(host);
+        mManager.setBufferListener(new SerialInputOutputManager.BufferListener() {
+            @Override
+            public void onNewData(ByteBuffer buffer, int offset, int length) {
+                mManager.release(buffer);
+                synchronized (mLock) {
+                    mReceived += length;
+                    mLock.notifyAll();
+                }
+            }
+
+            @Override
+            public void onRunError(Exception e) {
+            }
+        });
+        mExecutor = Executors.newSingleThreadExecutor();
+        mExecutor.submit(mManager);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        mManager.stop();
+        mExecutor.shutdown();
+        mDeviceEnd.close();
+    }
+
+    public void testReadThroughput() throws Exception {
+        final byte[] chunk = new byte[CHUNK];
+        final Microbenchmark.Result result = Microbenchmark.measure(
+                "SerialInputOutputManager read 4 KB", OPS, 5, true, new Microbenchmark.Body() {
+                    @Override
+                    public void run(int ops) throws Exception {
+                        final long target;
+                        synchronized (mLock) {
+                            target = mReceived + (long) ops * CHUNK;
+                        }
+                        for (int i = 0; i < ops; i++) {
+                            int written = 0;
+                            while (written < CHUNK) {
+                                written += mDeviceEnd.write(chunk, written, CHUNK - written, 100);
+                            }
+                        }
+                        final long deadline = System.currentTimeMillis() + 10000;
+                        synchronized (mLock) {
+                            while (mReceived < target) {
+                                if (System.currentTimeMillis() > deadline) {
+                                    throw new IOException("Reader stalled at " + mReceived);
+                                }
+                                mLock.wait(100);
+                            }
+                        }
+                    }
+                });
+        // Counted process wide, so leave room for the runtime's own garbage.
+        Microbenchmark.assertAllocationBudget(result, 64);
+    }
+
+}
@@ -0,0 +1,162 @@
+package com.hoho.android.usbserial.util;
+
+import com.hoho.android.usbserial.driver.LoopbackTransport;
+import com.hoho.android.usbserial.driver.TransportSerialDriver;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the manager end to end over a loopback pair: the far end plays the
+ * device, a {@link TransportSerialDriver} is the host side.
+ */
+public class SerialInputOutputManagerTest extends TestCase {
+
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+
+    private LoopbackTransport mDeviceEnd;
+    private SerialInputOutputManager mManager;
+    private ExecutorService mExecutor;
+    private volatile Exception mError;
+
+    @Override
+    protected void setUp() throws IOException {
+        final LoopbackTransport[] pair = LoopbackTransport.createPair(
+                LoopbackTransport.UNLIMITED, 0, LoopbackTransport.DEFAULT_CAPACITY);
+        final TransportSerialDriver host = new TransportSerialDriver(pair[0]);
+        mDeviceEnd = pair[1];
+        host.open();
+        mDeviceEnd.open();
+
+        mManager = new SerialInputOutputManager(host);
+        mManager.setLog(SerialLog.NONE);
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        mManager.stop();
+        mExecutor.shutdown();
+        mDeviceEnd.close();
+    }
+
+    public void testDeliversReadsToListener() throws Exception {
+        mManager.setListener(new SerialInputOutputManager.Listener() {
+            @Override
+            public void onNewData(byte[] data) {
+                received(data, 0, data.length);
+            }
+
+            @Override
+            public void onRunError(Exception e) {
+                mError = e;
+            }
+        });
+        mExecutor.submit(mManager);
+
+        final byte[] data = pattern(10000);
+        writeFully(data);
+
+        assertTrue(Arrays.equals(data, awaitReceived(data.length)));
+        assertNull(mError);
+    }
+
+    public void testPooledBuffersGoBackToPool() throws Exception {
+        mManager.setBufferListener(new SerialInputOutputManager.BufferListener() {
+            @Override
+            public void onNewData(ByteBuffer buffer, int offset, int length) {
+                received(buffer.array(), buffer.arrayOffset() + offset, length);
+                mManager.release(buffer);
+            }
+
+            @Override
+            public void onRunError(Exception e) {
+                mError = e;
+            }
+        });
+        mExecutor.submit(mManager);
+
+        // Far more reads than the pool has buffers.
+        final byte[] data = pattern(64);
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 100; i++) {
+            writeFully(data);
+            expected.write(data);
+            awaitReceived(expected.size());
+        }
+
+        assertTrue(Arrays.equals(expected.toByteArray(), awaitReceived(expected.size())));
+        assertNull(mError);
+    }
+
+    public void testSendsQueuedWrites() throws Exception {
+        mExecutor.submit(mManager);
+
+        final byte[] data = pattern(3000);
+        mManager.writeAsync(Arrays.copyOfRange(data, 0, 1000));
+        mManager.writeAsync(Arrays.copyOfRange(data, 1000, data.length));
+
+        final byte[] sent = new byte[data.length];
+        int read = 0;
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (read < sent.length && System.currentTimeMillis() < deadline) {
+            read += mDeviceEnd.read(sent, read, sent.length - read, 100);
+        }
+        assertEquals(data.length, read);
+        assertTrue(Arrays.equals(data, sent));
+    }
+
+    public void testReleaseBeforeRunThrows() {
+        try {
+            mManager.release(ByteBuffer.allocate(16));
+            fail("Release before run() accepted");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    private void received(byte[] data, int offset, int length) {
+        synchronized (mReceived) {
+            mReceived.write(data, offset, length);
+            mReceived.notifyAll();
+        }
+    }
+
+    private byte[] awaitReceived(int length) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        synchronized (mReceived) {
+            while (mReceived.size() < length) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    fail("Received " + mReceived.size() + " of " + length + " bytes");
+                }
+                mReceived.wait(remaining);
+            }
+            return mReceived.toByteArray();
+        }
+    }
+
+    private void writeFully(byte[] data) throws IOException {
+        int written = 0;
+        while (written < data.length) {
+            written += mDeviceEnd.write(data, written, data.length - written, 100);
+        }
+    }
+
+    private static byte[] pattern(int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 7 + 3);
+        }
+        return data;
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.umn.jpwang.earlystagedetection;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class CaptureWriterTest extends TestCase
+{
+    private static final int SEGMENT_SIZE = 16 << 10;
+    private static final int BLOCK_SIZE = 2048;
+
+    private File _directory;
+    private long _frames = 0;
+    private long _samples = 0;
+    private String _failure;
+
+    private final CaptureReader.Visitor _checkingVisitor = new CaptureReader.Visitor()
+    {
+        @Override
+        public void onFrame(long timestampNanos, byte command, byte[] payload, int offset, int length)
+        {
+            if ( command != Packet.COMMAND_CONFIG || length != 3 || payload[offset + 2] != 45 )
+                _failure = "bad frame at " + timestampNanos;
+            _frames++;
+        }
+
+        @Override
+        public void onSamples(long timestampNanos, long sequence, float[] samples, int channels)
+        {
+            if ( timestampNanos != 1000 * sequence || channels != 29 || samples[28] != sequence + 28 )
+                _failure = "bad samples at " + sequence;
+            if ( sequence != _samples )
+                _failure = "expected sequence " + _samples + ", got " + sequence;
+            _samples++;
+        }
+    };
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        _directory = File.createTempFile("capture", "");
+        assertTrue(_directory.delete());
+        assertTrue(_directory.mkdir());
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for ( File file : _directory.listFiles() )
+            file.delete();
+        _directory.delete();
+    }
+
+    public void testRoundTripAcrossSegments() throws IOException
+    {
+        CaptureWriter writer = new CaptureWriter(_directory, "session", SEGMENT_SIZE, BLOCK_SIZE);
+        writer.appendFrame(0, Packet.COMMAND_CONFIG, new byte[] { 46, 47, 45 }, 0, 3);
+        writeSamples(writer, 0, 10000);
+        writer.close();
+
+        File[] segments = CaptureFormat.listSegments(_directory, "session");
+        assertTrue("only " + segments.length + " segments", segments.length > 5);
+
+        for ( File segment : segments )
+        {
+            CaptureReader reader = new CaptureReader(segment);
+            assertTrue(reader.isSealed());
+            reader.readAll(_checkingVisitor);
+        }
+        assertNull(_failure);
+        assertEquals(1, _frames);
+        assertEquals(10000, _samples);
+    }
+
+    public void testFindBlockByTimestamp() throws IOException
+    {
+        CaptureWriter writer = new CaptureWriter(_directory, "session", 1 << 20, BLOCK_SIZE);
+        writeSamples(writer, 0, 500);
+        writer.close();
+
+        CaptureReader reader = new CaptureReader(CaptureFormat.listSegments(_directory, "session")[0]);
+        int block = reader.findBlock(1000 * 300);
+        assertTrue(reader.getFirstTimestamp(block) <= 1000 * 300);
+        assertTrue(block + 1 == reader.getBlockCount() || reader.getFirstTimestamp(block + 1) > 1000 * 300);
+    }
+
+    public void testRecoversSegmentLeftOpenByCrash() throws IOException
+    {
+        CaptureWriter writer = new CaptureWriter(_directory, "session", 1 << 20, BLOCK_SIZE);
+        writeSamples(writer, 0, 2000);
+        writer.flush();
+        // no close: the process dies here
+
+        File segment = CaptureFormat.listSegments(_directory, "session")[0];
+        CaptureReader open = new CaptureReader(segment);
+        assertFalse(open.isSealed());
+        int blocks = open.getBlockCount();
+        assertTrue(blocks > 1);
+
+        // tear the last block as a crash in the middle of a flush would
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.seek(open.getBlockOffset(blocks - 1) + CaptureFormat.BLOCK_HEADER_SIZE + 5);
+        raf.write(0x55);
+        raf.close();
+
+        assertTrue(CaptureReader.recover(segment));
+        assertFalse(CaptureReader.recover(segment));
+
+        CaptureReader sealed = new CaptureReader(segment);
+        assertTrue(sealed.isSealed());
+        assertEquals(blocks - 1, sealed.getBlockCount());
+        sealed.readAll(_checkingVisitor);
+        assertNull(_failure);
+
+        // a new writer continues with the next segment
+        CaptureWriter next = new CaptureWriter(_directory, "session", 1 << 20, BLOCK_SIZE);
+        assertEquals(2, next.getSegmentNumber());
+        next.close();
+    }
+
+    public void testRecoversEveryCaptureInDirectory() throws IOException
+    {
+        for ( String prefix : new String[] { "capture-1", "capture-2" } )
+        {
+            CaptureWriter writer = new CaptureWriter(_directory, prefix, 1 << 20, BLOCK_SIZE);
+            writeSamples(writer, 0, 500);
+            writer.flush();
+            // no close: the process dies here
+        }
+        CaptureWriter sealed = new CaptureWriter(_directory, "capture-3", 1 << 20, BLOCK_SIZE);
+        writeSamples(sealed, 0, 500);
+        sealed.close();
+        // died before the header was written
+        assertTrue(new File(_directory, CaptureFormat.getSegmentName("capture-4", 1)).createNewFile());
+
+        assertEquals(2, CaptureReader.recoverAll(_directory));
+        assertEquals(0, CaptureReader.recoverAll(_directory));
+        for ( String prefix : new String[] { "capture-1", "capture-2", "capture-3" } )
+            assertTrue(new CaptureReader(CaptureFormat.listSegments(_directory, prefix)[0]).isSealed());
+    }
+
+    private void writeSamples(CaptureWriter writer, int from, int to) throws IOException
+    {
+        float[] samples = new float[29];
+        for ( int seq = from; seq < to; seq++ )
+        {
+            for ( int c = 0; c < samples.length; c++ )
+                samples[c] = seq + c;
+            writer.appendSamples(1000L * seq, seq, samples, samples.length);
+        }
+    }
+}
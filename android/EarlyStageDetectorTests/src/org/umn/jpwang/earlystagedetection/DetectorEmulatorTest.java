@@ -0,0 +1,105 @@
+package org.umn.jpwang.earlystagedetection;
+
+import com.hoho.android.usbserial.driver.LoopbackTransport;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+public class DetectorEmulatorTest extends TestCase
+{
+    private LoopbackTransport _host;
+    private LoopbackTransport _device;
+    private DetectorEmulator _emulator;
+
+    private volatile int _dataFrames = 0;
+    private volatile long _nextSequence = 0;
+    private volatile String _failure;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        LoopbackTransport[] pair = LoopbackTransport.createPair(LoopbackTransport.UNLIMITED, 0,
+            LoopbackTransport.DEFAULT_CAPACITY);
+        _host = pair[0];
+        _device = pair[1];
+        _host.open();
+        _device.open();
+
+        _emulator = new DetectorEmulator(_device, 42);
+        _emulator.setSampleRate(2000.0);
+        new Thread(_emulator).start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        _emulator.stop();
+        _host.close();
+    }
+
+    public void testHandshakeThenStreamsFramedData() throws Exception
+    {
+        final ProtocolSession session = new ProtocolSession(new ProtocolSession.Sender()
+        {
+            @Override
+            public void send(Packet packet) throws IOException
+            {
+                _host.write(packet.getBuffer(), 0, packet.getLength(), 100);
+            }
+        }, new FrameDecoder.Listener()
+        {
+            @Override
+            public void onFrame(byte command, byte[] payload, int offset, int length)
+            {
+                if ( command != SampleFrame.COMMAND_DATA )
+                    return;
+
+                if ( SampleFrame.getChannelCount(length) != 29 )
+                    _failure = "channels: " + SampleFrame.getChannelCount(length);
+                else if ( SampleFrame.getSequence(payload, offset) != _nextSequence )
+                    _failure = "sequence " + SampleFrame.getSequence(payload, offset) + ", expected " + _nextSequence;
+                else if ( Float.isNaN(SampleFrame.getSample(payload, offset, 28)) )
+                    _failure = "NaN sample";
+
+                _nextSequence++;
+                _dataFrames++;
+            }
+        });
+
+        final FrameDecoder decoder = new FrameDecoder(session);
+        Thread reader = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                byte[] buffer = new byte[4096];
+                try
+                {
+                    while ( true )
+                    {
+                        int n = _host.read(buffer, 0, buffer.length, 100);
+                        decoder.feed(buffer, 0, n);
+                    }
+                }
+                catch (IOException e)
+                {
+                    // closed by tearDown
+                }
+            }
+        };
+        reader.start();
+
+        session.execute(Packet.get(Packet.Type.Config), Packet.COMMAND_CONFIG, 1000, 1);
+        session.execute(Packet.get(Packet.Type.Start), ProtocolSession.ANY_RESPONSE, 1000, 1);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( _dataFrames < 200 && System.currentTimeMillis() < deadline )
+            Thread.sleep(10);
+
+        assertNull(_failure);
+        assertTrue("only " + _dataFrames + " frames", _dataFrames >= 200);
+        assertEquals(0, _emulator.getFramesDropped());
+        assertEquals(0, decoder.getChecksumErrors());
+    }
+}
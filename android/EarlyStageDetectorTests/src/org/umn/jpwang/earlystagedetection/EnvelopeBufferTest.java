@@ -0,0 +1,47 @@
+package org.umn.jpwang.earlystagedetection;
+
+import junit.framework.TestCase;
+
+public class EnvelopeBufferTest extends TestCase
+{
+    public void testFoldsFramesIntoMinMaxColumns()
+    {
+        EnvelopeBuffer envelope = new EnvelopeBuffer(2, 4, 3);
+        float[] frame = new float[2];
+        for ( int i = 0; i < 7; i++ )
+        {
+            frame[0] = i;
+            frame[1] = -i;
+            envelope.add(frame);
+        }
+
+        float[] mins = new float[8];
+        float[] maxs = new float[8];
+        // the seventh frame starts a third column that isn't complete yet
+        assertEquals(2, envelope.copyTo(mins, maxs));
+        assertEquals(0.0f, mins[0], 0.0f);
+        assertEquals(2.0f, maxs[0], 0.0f);
+        assertEquals(3.0f, mins[1], 0.0f);
+        assertEquals(5.0f, maxs[1], 0.0f);
+        assertEquals(-5.0f, mins[4 + 1], 0.0f);
+        assertEquals(-3.0f, maxs[4 + 1], 0.0f);
+    }
+
+    public void testKeepsNewestColumnsOldestFirst()
+    {
+        EnvelopeBuffer envelope = new EnvelopeBuffer(1, 3, 1);
+        float[] frame = new float[1];
+        for ( int i = 0; i < 5; i++ )
+        {
+            frame[0] = i;
+            envelope.add(frame);
+        }
+
+        float[] mins = new float[3];
+        float[] maxs = new float[3];
+        assertEquals(3, envelope.copyTo(mins, maxs));
+        assertEquals(2.0f, mins[0], 0.0f);
+        assertEquals(4.0f, maxs[2], 0.0f);
+        assertEquals(5, envelope.getFramesAdded());
+    }
+}
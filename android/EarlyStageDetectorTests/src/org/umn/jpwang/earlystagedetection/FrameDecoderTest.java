@@ -0,0 +1,110 @@
+package org.umn.jpwang.earlystagedetection;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FrameDecoderTest extends TestCase
+{
+    private final List<byte[]> _frames = new ArrayList<byte[]>();
+    private final List<Byte> _commands = new ArrayList<Byte>();
+
+    private final FrameDecoder.Listener _listener = new FrameDecoder.Listener()
+    {
+        @Override
+        public void onFrame(byte command, byte[] payload, int offset, int length)
+        {
+            _commands.add(command);
+            _frames.add(Arrays.copyOfRange(payload, offset, offset + length));
+        }
+    };
+
+    private static byte[] frame(int command, int... payload)
+    {
+        byte[] f = new byte[payload.length + 4];
+        f[0] = Packet.SOF;
+        f[1] = (byte)command;
+        f[2] = (byte)payload.length;
+        byte xor = (byte)(command ^ payload.length);
+        for ( int i = 0; i < payload.length; i++ )
+        {
+            f[3 + i] = (byte)payload[i];
+            xor ^= (byte)payload[i];
+        }
+        f[f.length - 1] = xor;
+        return f;
+    }
+
+    public void testSingleFrame()
+    {
+        FrameDecoder decoder = new FrameDecoder(_listener);
+        byte[] f = frame(0x04, 1, 2, 3);
+        decoder.feed(f, 0, f.length);
+
+        assertEquals(1, _frames.size());
+        assertEquals((byte)0x04, (byte)_commands.get(0));
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, _frames.get(0)));
+    }
+
+    public void testFrameSplitAcrossReads()
+    {
+        FrameDecoder decoder = new FrameDecoder(_listener);
+        byte[] f = frame(0x01, 10, 20, 30, 40);
+        for ( int i = 0; i < f.length; i++ )
+        {
+            assertEquals(0, _frames.size());
+            decoder.feed(f, i, 1);
+        }
+
+        assertEquals(1, _frames.size());
+        assertTrue(Arrays.equals(new byte[] { 10, 20, 30, 40 }, _frames.get(0)));
+    }
+
+    public void testResyncAfterBadXor()
+    {
+        FrameDecoder decoder = new FrameDecoder(_listener);
+        byte[] bad = frame(0x01, 5, 6, 7);
+        bad[bad.length - 1] ^= 0x55;
+        byte[] good = frame(0x02, 8);
+
+        ByteBuffer stream = ByteBuffer.allocate(bad.length + good.length + 2);
+        stream.put((byte)0x11).put(bad).put((byte)0x22).put(good);
+        decoder.feed(stream.array(), 0, stream.position());
+
+        assertEquals(1, _frames.size());
+        assertEquals((byte)0x02, (byte)_commands.get(0));
+        assertEquals(1, decoder.getChecksumErrors());
+    }
+
+    public void testPayloadWrappingRing()
+    {
+        FrameDecoder decoder = new FrameDecoder(_listener, 0);
+        int[] payload = new int[200];
+        for ( int i = 0; i < payload.length; i++ )
+            payload[i] = i;
+        byte[] f = frame(0x03, payload);
+
+        for ( int i = 0; i < 20; i++ )
+            decoder.feed(f, 0, f.length);
+
+        assertEquals(20, _frames.size());
+        for ( byte[] p : _frames )
+            assertEquals((byte)199, p[199]);
+    }
+
+    public void testDirectBuffer()
+    {
+        FrameDecoder decoder = new FrameDecoder(_listener);
+        byte[] f = frame(0x00, 9, 9);
+        ByteBuffer direct = ByteBuffer.allocateDirect(f.length);
+        direct.put(f);
+        direct.flip();
+        decoder.feed(direct);
+
+        assertEquals(1, _frames.size());
+        assertFalse(direct.hasRemaining());
+    }
+}
@@ -0,0 +1,117 @@
+package org.umn.jpwang.earlystagedetection;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class FrameRingTest extends TestCase
+{
+    private long _handled = 0;
+    private long _lastSequence = -1;
+    private volatile String _failure;
+
+    private final FrameRing.Handler _checkingHandler = new FrameRing.Handler()
+    {
+        @Override
+        public void onFrame(long sequence, long timestampNanos, byte command, byte[] payload, int length)
+        {
+            // every payload byte and the timestamp carry the sequence
+            for ( int i = 0; i < length; i++ )
+            {
+                if ( payload[i] != (byte)sequence )
+                    _failure = "torn frame " + sequence;
+            }
+            if ( timestampNanos != sequence || sequence <= _lastSequence )
+                _failure = "out of order at " + sequence;
+
+            _lastSequence = sequence;
+            _handled++;
+        }
+    };
+
+    public void testConsumersTrackTheirOwnPosition()
+    {
+        FrameRing ring = new FrameRing(8);
+        FrameRing.Consumer fast = ring.newConsumer(FrameRing.WaitStrategy.SLEEPING);
+        FrameRing.Consumer slow = ring.newConsumer(FrameRing.WaitStrategy.SLEEPING);
+
+        byte[] payload = new byte[4];
+        for ( int i = 0; i < 5; i++ )
+        {
+            payload[0] = payload[1] = payload[2] = payload[3] = (byte)i;
+            ring.publish(SampleFrame.COMMAND_DATA, payload, 0, 4, i);
+        }
+        assertEquals(5, fast.poll(_checkingHandler));
+        assertEquals(0, fast.poll(_checkingHandler));
+
+        // lap the slow consumer: 20 frames in a ring of 8
+        for ( int i = 5; i < 20; i++ )
+        {
+            payload[0] = payload[1] = payload[2] = payload[3] = (byte)i;
+            ring.publish(SampleFrame.COMMAND_DATA, payload, 0, 4, i);
+        }
+        _lastSequence = -1;
+        assertEquals(8, slow.poll(_checkingHandler));
+        assertEquals(12, slow.getMissedFrames());
+        assertEquals(20, slow.getSequence());
+        assertEquals(15, fast.getBacklog());
+        assertNull(_failure);
+    }
+
+    public void testBlockingConsumerKeepsUpWithProducer() throws Exception
+    {
+        checkConcurrent(FrameRing.WaitStrategy.BLOCKING);
+    }
+
+    public void testSleepingConsumerKeepsUpWithProducer() throws Exception
+    {
+        checkConcurrent(FrameRing.WaitStrategy.SLEEPING);
+    }
+
+    public void testLappedConsumerOnlySeesCompleteFrames() throws Exception
+    {
+        // a tiny ring and a producer that never pauses: the consumer is lapped all the time
+        checkConcurrent(FrameRing.WaitStrategy.BUSY_SPIN, 4, false);
+    }
+
+    private void checkConcurrent(FrameRing.WaitStrategy strategy) throws Exception
+    {
+        checkConcurrent(strategy, 64, true);
+    }
+
+    private void checkConcurrent(FrameRing.WaitStrategy strategy, int capacity, boolean pause) throws Exception
+    {
+        final FrameRing ring = new FrameRing(capacity);
+        final FrameRing.Consumer consumer = ring.newConsumer(strategy);
+        final int frames = 100000;
+
+        Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                consumer.run(_checkingHandler);
+            }
+        };
+        thread.start();
+
+        byte[] payload = new byte[32];
+        for ( int i = 0; i < frames; i++ )
+        {
+            Arrays.fill(payload, (byte)i);
+            ring.publish(SampleFrame.COMMAND_DATA, payload, 0, payload.length, i);
+            if ( pause && (i & 1023) == 0 )
+                Thread.sleep(1);
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( consumer.getSequence() < frames && System.currentTimeMillis() < deadline )
+            Thread.sleep(5);
+        consumer.halt();
+        thread.join(1000);
+
+        assertFalse(thread.isAlive());
+        assertNull(_failure);
+        assertEquals(frames, _handled + consumer.getMissedFrames());
+    }
+}
@@ -0,0 +1,38 @@
+package org.umn.jpwang.earlystagedetection;
+
+import junit.framework.TestCase;
+
+public class LogRingTest extends TestCase
+{
+    public void testKeepsNewestLinesOnceFull()
+    {
+        LogRing ring = new LogRing(3);
+        for ( int i = 0; i < 5; i++ )
+            ring.add("line " + i);
+
+        assertEquals(3, ring.size());
+        assertEquals("line 2", ring.get(0));
+        assertEquals("line 4", ring.get(2));
+        assertEquals(2, ring.getDroppedCount());
+        assertEquals("line 2\nline 3\nline 4\n", ring.appendTo(new StringBuilder()).toString());
+    }
+
+    public void testDrainMovesLinesInOrder()
+    {
+        LogRing pending = new LogRing(4);
+        LogRing shown = new LogRing(2);
+        pending.add("a");
+        pending.add("b");
+        pending.add("c");
+
+        assertEquals(3, pending.drainTo(shown));
+        assertTrue(pending.isEmpty());
+        assertEquals(2, shown.size());
+        assertEquals("b", shown.get(0));
+        assertEquals("c", shown.get(1));
+
+        pending.add("d");
+        pending.drainTo(shown);
+        assertEquals("d", shown.get(1));
+    }
+}
@@ -0,0 +1,74 @@
+package org.umn.jpwang.earlystagedetection;
+
+import com.hoho.android.usbserial.util.Microbenchmark;
+
+import junit.framework.TestCase;
+
+public class PacketBenchmark extends TestCase
+{
+    private static final int OPS = 20000;
+
+    private final byte[] _payload = new byte[Packet.MAX_PAYLOAD_LENGTH];
+    private final byte[] _buffer = new byte[Packet.MAX_LENGTH];
+    private int _sink;
+
+    public void testBuildPacket() throws Exception
+    {
+        // encodes the frame and computes the XOR over the full payload
+        Microbenchmark.measure("new Packet 255 B payload", OPS, new Microbenchmark.Body()
+        {
+            @Override
+            public void run(int ops)
+            {
+                for ( int i = 0; i < ops; i++ )
+                    _sink += new Packet(Packet.COMMAND_CONFIG, _payload).getLength();
+            }
+        });
+    }
+
+    public void testEncodeIntoBuffer() throws Exception
+    {
+        final Packet packet = Packet.get(Packet.Type.Config);
+        Microbenchmark.Result result = Microbenchmark.measure("Packet.encode byte[]", OPS, new Microbenchmark.Body()
+        {
+            @Override
+            public void run(int ops)
+            {
+                for ( int i = 0; i < ops; i++ )
+                    _sink += packet.encode(_buffer, 0);
+            }
+        });
+        Microbenchmark.assertAllocationBudget(result, 0);
+    }
+
+    public void testDecodeStream() throws Exception
+    {
+        final byte[] stream = new byte[4096];
+        final float[] samples = new float[29];
+        int length = 0;
+        for ( int seq = 0; length + SampleFrame.getFrameLength(samples.length) <= stream.length; seq++ )
+            length += SampleFrame.encode(stream, length, seq, samples, samples.length);
+
+        final int streamLength = length;
+        final FrameDecoder decoder = new FrameDecoder(new FrameDecoder.Listener()
+        {
+            @Override
+            public void onFrame(byte command, byte[] payload, int offset, int length)
+            {
+                _sink += length;
+            }
+        });
+
+        Microbenchmark.Result result = Microbenchmark.measure("FrameDecoder.feed 4 KB of data frames", OPS / 10, new Microbenchmark.Body()
+        {
+            @Override
+            public void run(int ops)
+            {
+                for ( int i = 0; i < ops; i++ )
+                    decoder.feed(stream, 0, streamLength);
+            }
+        });
+        assertEquals(0, decoder.getChecksumErrors());
+        Microbenchmark.assertAllocationBudget(result, 0);
+    }
+}
@@ -0,0 +1,99 @@
+package org.umn.jpwang.earlystagedetection;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+public class ProtocolSessionTest extends TestCase
+{
+    private int _sends = 0;
+    private ProtocolSession _session;
+
+    public void testReturnsWhenDeviceEchoesCommand() throws IOException
+    {
+        _session = new ProtocolSession(new ProtocolSession.Sender()
+        {
+            @Override
+            public void send(Packet packet)
+            {
+                _sends++;
+                byte[] echo = packet.getBuffer();
+                _session.onFrame(packet.getCommand(), echo, 3, echo.length - 4);
+            }
+        }, null);
+
+        _session.execute(Packet.get(Packet.Type.Config), Packet.COMMAND_CONFIG, 1000, 3);
+        assertEquals(1, _sends);
+    }
+
+    public void testRetriesThenFailsWithoutResponse()
+    {
+        _session = new ProtocolSession(new ProtocolSession.Sender()
+        {
+            @Override
+            public void send(Packet packet)
+            {
+                _sends++;
+                // unrelated frame, must not count as the response
+                _session.onFrame((byte)0x7F, new byte[0], 0, 0);
+            }
+        }, null);
+
+        long start = System.nanoTime();
+        try
+        {
+            _session.execute(Packet.get(Packet.Type.Config), Packet.COMMAND_CONFIG, 20, 3);
+            fail("execute returned without a response");
+        }
+        catch (IOException e) { }
+
+        assertEquals(3, _sends);
+        assertTrue(System.nanoTime() - start >= 3 * 20 * 1000000L);
+    }
+
+    public void testAnyResponseAcceptsFirstFrame() throws IOException
+    {
+        _session = new ProtocolSession(new ProtocolSession.Sender()
+        {
+            @Override
+            public void send(Packet packet)
+            {
+                _sends++;
+                new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        _session.onFrame((byte)0x01, new byte[4], 0, 4);
+                    }
+                }.start();
+            }
+        }, null);
+
+        _session.execute(Packet.get(Packet.Type.Start), ProtocolSession.ANY_RESPONSE, 1000, 1);
+        assertEquals(1, _sends);
+    }
+
+    public void testStartWaitsForDataNotLateEcho()
+    {
+        _session = new ProtocolSession(new ProtocolSession.Sender()
+        {
+            @Override
+            public void send(Packet packet)
+            {
+                _sends++;
+                // a late Config echo from a retried Config, no data: Start was lost
+                byte[] echo = Packet.get(Packet.Type.Config).getBuffer();
+                _session.onFrame(Packet.COMMAND_CONFIG, echo, 3, echo.length - 4);
+            }
+        }, null);
+
+        try
+        {
+            _session.execute(Packet.get(Packet.Type.Start), SampleFrame.COMMAND_DATA, 20, 2);
+            fail("Config echo taken as the answer to Start");
+        }
+        catch (IOException e) { }
+        assertEquals(2, _sends);
+    }
+}
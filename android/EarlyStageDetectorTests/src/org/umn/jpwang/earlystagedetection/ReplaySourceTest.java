@@ -0,0 +1,175 @@
+package org.umn.jpwang.earlystagedetection;
+
+import com.hoho.android.usbserial.driver.LoopbackTransport;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+public class ReplaySourceTest extends TestCase
+{
+    private static final int FRAMES = 2000;
+    private static final long FRAME_NANOS = 100000L;
+
+    private File _directory;
+    private LoopbackTransport _host;
+    private LoopbackTransport _device;
+    private PipelineProbe _probe;
+
+    private volatile int _configFrames = 0;
+    private volatile int _dataFrames = 0;
+    private volatile String _failure;
+    private volatile IOException _error;
+    private volatile boolean _finished;
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        _directory = File.createTempFile("replay", "");
+        assertTrue(_directory.delete());
+        assertTrue(_directory.mkdir());
+
+        CaptureWriter writer = new CaptureWriter(_directory, "session", 16 << 10, 2048);
+        writer.appendFrame(0, Packet.COMMAND_CONFIG, new byte[] { 46, 47, 45 }, 0, 3);
+        float[] samples = new float[29];
+        for ( int i = 0; i < FRAMES; i++ )
+        {
+            for ( int c = 0; c < samples.length; c++ )
+                samples[c] = i + c;
+            writer.appendSamples(i * FRAME_NANOS, i, samples, samples.length);
+        }
+        writer.close();
+
+        LoopbackTransport[] pair = LoopbackTransport.createPair(LoopbackTransport.UNLIMITED, 0,
+            LoopbackTransport.DEFAULT_CAPACITY);
+        _host = pair[0];
+        _device = pair[1];
+        _host.open();
+        _device.open();
+
+        _probe = new PipelineProbe("decoded", "checked");
+    }
+
+    @Override
+    protected void tearDown() throws IOException
+    {
+        _host.close();
+        for ( File file : _directory.listFiles() )
+            file.delete();
+        _directory.delete();
+    }
+
+    public void testReplaysEveryFrameAsFastAsPossible() throws Exception
+    {
+        ReplaySource replay = replay(ReplaySource.AS_FAST_AS_POSSIBLE);
+        drain(10000);
+        for ( int i = 0; i < 100 && !_finished; i++ )
+            Thread.sleep(10);
+
+        assertNull(_failure);
+        assertTrue(_finished);
+        assertNull(_error);
+        assertEquals(1, _configFrames);
+        assertEquals(FRAMES, _dataFrames);
+        assertEquals(FRAMES + 1, replay.getFramesSent());
+        assertEquals(FRAMES, _probe.getInjectedCount());
+        for ( int stage = 0; stage < _probe.getStageCount(); stage++ )
+        {
+            assertEquals(FRAMES, _probe.getCount(stage));
+            long median = _probe.getLatencyPercentile(stage, 50);
+            long p99 = _probe.getLatencyPercentile(stage, 99);
+            long max = _probe.getMaxLatency(stage);
+            assertTrue("p50 " + median + " > p99 " + p99, median <= p99);
+            assertTrue("p99 " + p99 + " > max " + max, p99 <= max);
+            assertTrue(max > 0);
+        }
+    }
+
+    public void testPacesByRecordedTimestamps() throws Exception
+    {
+        // recorded over 200 ms, so 200 ms at 1x and 20 ms at 10x
+        long start = System.nanoTime();
+        replay(ReplaySource.REALTIME);
+        drain(10000);
+        long realtime = System.nanoTime() - start;
+
+        _configFrames = 0;
+        _dataFrames = 0;
+        start = System.nanoTime();
+        replay(10.0);
+        drain(10000);
+        long fast = System.nanoTime() - start;
+
+        assertNull(_failure);
+        assertEquals(FRAMES, _dataFrames);
+        long recorded = (FRAMES - 1) * FRAME_NANOS;
+        assertTrue("1x took " + realtime / 1000000L + " ms", realtime >= recorded);
+        assertTrue("10x took " + fast / 1000000L + " ms", fast >= recorded / 10 && fast < realtime);
+    }
+
+    public void testRejectsNegativeSpeed()
+    {
+        try
+        {
+            new ReplaySource(new File[0], _device, -1.0);
+            fail("negative speed accepted");
+        }
+        catch (IllegalArgumentException e) { }
+    }
+
+    private ReplaySource replay(double speed)
+    {
+        ReplaySource replay = new ReplaySource(CaptureFormat.listSegments(_directory, "session"), _device, speed);
+        replay.setProbe(_probe);
+        replay.setListener(new ReplaySource.Listener()
+        {
+            @Override
+            public void onReplayFinished(ReplaySource source, IOException error)
+            {
+                _error = error;
+                _finished = true;
+            }
+        });
+        replay.start();
+        return replay;
+    }
+
+    /**
+     * Decodes what the replay sends until every frame of the capture has
+     * arrived or {@code timeoutMillis} passed.
+     */
+    private void drain(long timeoutMillis) throws IOException
+    {
+        FrameDecoder decoder = new FrameDecoder(new FrameDecoder.Listener()
+        {
+            @Override
+            public void onFrame(byte command, byte[] payload, int offset, int length)
+            {
+                if ( command == Packet.COMMAND_CONFIG )
+                {
+                    _configFrames++;
+                    return;
+                }
+
+                long sequence = SampleFrame.getSequence(payload, offset);
+                _probe.onStage(0, sequence);
+                if ( sequence != _dataFrames )
+                    _failure = "sequence " + sequence + ", expected " + _dataFrames;
+                else if ( SampleFrame.getSample(payload, offset, 28) != sequence + 28 )
+                    _failure = "bad samples at " + sequence;
+                _dataFrames++;
+                _probe.onStage(1, sequence);
+            }
+        });
+
+        byte[] buffer = new byte[4096];
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        while ( _dataFrames < FRAMES && System.nanoTime() < deadline )
+        {
+            int n = _host.read(buffer, 0, buffer.length, 20);
+            if ( n > 0 )
+                decoder.feed(buffer, 0, n);
+        }
+    }
+}
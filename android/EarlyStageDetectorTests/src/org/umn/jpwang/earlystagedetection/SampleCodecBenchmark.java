@@ -0,0 +1,83 @@
+package org.umn.jpwang.earlystagedetection;
+
+import com.hoho.android.usbserial.util.Microbenchmark;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class SampleCodecBenchmark extends TestCase
+{
+    private static final int OPS = 20000;
+    private static final int CHANNELS = 29;
+    private static final int FRAMES = 256;
+
+    private final SampleCodec _codec = new SampleCodec();
+    private final float[][] _frames = new float[FRAMES][CHANNELS];
+    private final byte[] _buffer = new byte[FRAMES * SampleCodec.getMaxEncodedLength(CHANNELS)];
+    private final float[] _decoded = new float[SampleFrame.MAX_CHANNELS];
+    private int _sink;
+
+    @Override
+    protected void setUp()
+    {
+        Random random = new Random(1);
+        for ( int i = 0; i < FRAMES; i++ )
+        {
+            for ( int c = 0; c < CHANNELS; c++ )
+                _frames[i][c] = (float)Math.sin(i / 40.0 + c) + 0.01f * (float)random.nextGaussian();
+        }
+    }
+
+    public void testEncodeFrame() throws Exception
+    {
+        Microbenchmark.Result result = Microbenchmark.measure("SampleCodec.encode 29 channels", OPS, new Microbenchmark.Body()
+        {
+            @Override
+            public void run(int ops)
+            {
+                int length = 0;
+                for ( int i = 0; i < ops; i++ )
+                {
+                    int frame = i % FRAMES;
+                    if ( frame == 0 )
+                    {
+                        _codec.reset(0);
+                        length = 0;
+                    }
+                    length += _codec.encode(_buffer, length, frame * 1000000L, frame, _frames[frame], CHANNELS);
+                }
+                _sink += length;
+            }
+        });
+        Microbenchmark.assertAllocationBudget(result, 0);
+    }
+
+    public void testDecodeFrame() throws Exception
+    {
+        _codec.reset(0);
+        int length = 0;
+        for ( int i = 0; i < FRAMES; i++ )
+            length += _codec.encode(_buffer, length, i * 1000000L, i, _frames[i], CHANNELS);
+
+        Microbenchmark.Result result = Microbenchmark.measure("SampleCodec.decode 29 channels", OPS, new Microbenchmark.Body()
+        {
+            @Override
+            public void run(int ops)
+            {
+                int at = 0;
+                for ( int i = 0; i < ops; i++ )
+                {
+                    if ( i % FRAMES == 0 )
+                    {
+                        _codec.reset(0);
+                        at = 0;
+                    }
+                    at = _codec.decode(_buffer, at, _decoded);
+                }
+                _sink += at;
+            }
+        });
+        Microbenchmark.assertAllocationBudget(result, 0);
+    }
+}
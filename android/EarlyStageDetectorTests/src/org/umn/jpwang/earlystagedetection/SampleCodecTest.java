@@ -0,0 +1,135 @@
+package org.umn.jpwang.earlystagedetection;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class SampleCodecTest extends TestCase
+{
+    private static final int CHANNELS = 29;
+    private static final long FRAME_NANOS = 1000000L;
+
+    private final SampleCodec _encoder = new SampleCodec();
+    private final SampleCodec _decoder = new SampleCodec();
+    private final byte[] _buffer = new byte[1 << 20];
+    private final float[] _decoded = new float[SampleFrame.MAX_CHANNELS];
+
+    public void testRoundTripsSpecialValuesBitForBit()
+    {
+        float[][] frames = {
+            { 0.0f, -0.0f, 1.0f, -1.0f },
+            { Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.MIN_VALUE },
+            { Float.MAX_VALUE, -Float.MAX_VALUE, Float.MIN_NORMAL, Float.intBitsToFloat(0x7FC12345) },
+            { 0.0f, -0.0f, 1.0f, -1.0f },
+            { 0.0f, -0.0f, 1.0f, -1.0f },
+        };
+
+        _encoder.reset(5);
+        int length = 0;
+        for ( int i = 0; i < frames.length; i++ )
+            length += _encoder.encode(_buffer, length, 5 + i * FRAME_NANOS, i, frames[i], 4);
+
+        _decoder.reset(5);
+        int at = 0;
+        for ( int i = 0; i < frames.length; i++ )
+        {
+            at = _decoder.decode(_buffer, at, _decoded);
+            assertEquals(5 + i * FRAME_NANOS, _decoder.getTimestamp());
+            assertEquals(i, _decoder.getSequence());
+            assertEquals(4, _decoder.getChannelCount());
+            for ( int c = 0; c < 4; c++ )
+                assertEquals(Float.floatToRawIntBits(frames[i][c]), Float.floatToRawIntBits(_decoded[c]));
+        }
+        assertEquals(length, at);
+    }
+
+    public void testRoundTripsJitterGapsAndChannelChanges()
+    {
+        Random random = new Random(7);
+        long[] timestamps = new long[1000];
+        long[] sequences = new long[timestamps.length];
+        int[] channels = new int[timestamps.length];
+        float[][] frames = new float[timestamps.length][SampleFrame.MAX_CHANNELS];
+
+        long timestamp = Long.MAX_VALUE / 2;
+        long sequence = 0xFFFFFF00L;
+        _encoder.reset(timestamp);
+        int length = 0;
+        for ( int i = 0; i < timestamps.length; i++ )
+        {
+            // jitter, the odd stall and even a step back in time
+            timestamp += FRAME_NANOS + random.nextInt(20000) - 10000 + (i % 97 == 0 ? 50 * FRAME_NANOS : 0)
+                - (i % 331 == 0 ? 3 * FRAME_NANOS : 0);
+            sequence += i % 53 == 0 ? 1 + random.nextInt(1000) : 1;
+            timestamps[i] = timestamp;
+            sequences[i] = sequence;
+            channels[i] = i < 500 ? CHANNELS : 1 + random.nextInt(SampleFrame.MAX_CHANNELS);
+            for ( int c = 0; c < channels[i]; c++ )
+                frames[i][c] = i % 5 == 0 ? frames[Math.max(0, i - 1)][c] : (float)random.nextGaussian();
+
+            int written = _encoder.encode(_buffer, length, timestamp, sequence, frames[i], channels[i]);
+            assertTrue(written <= SampleCodec.getMaxEncodedLength(channels[i]));
+            length += written;
+        }
+
+        _decoder.reset(Long.MAX_VALUE / 2);
+        int at = 0;
+        for ( int i = 0; i < timestamps.length; i++ )
+        {
+            at = _decoder.decode(_buffer, at, _decoded);
+            assertEquals(timestamps[i], _decoder.getTimestamp());
+            assertEquals(sequences[i], _decoder.getSequence());
+            assertEquals(channels[i], _decoder.getChannelCount());
+            for ( int c = 0; c < channels[i]; c++ )
+                assertEquals("frame " + i + " channel " + c, frames[i][c], _decoded[c]);
+        }
+        assertEquals(length, at);
+    }
+
+    public void testCompressesSteadyQuantizedSignal()
+    {
+        // 16 bit ADC readings scaled to volts, a slow sine per channel
+        float[] samples = new float[CHANNELS];
+        Random random = new Random(3);
+        _encoder.reset(0);
+        int frames = 10000;
+        int length = 0;
+        for ( int i = 0; i < frames; i++ )
+        {
+            for ( int c = 0; c < CHANNELS; c++ )
+            {
+                int reading = (int)(20000 * Math.sin(2 * Math.PI * i / 2000.0 + 0.1 * c)) + random.nextInt(3) - 1;
+                samples[c] = reading / 32768.0f;
+            }
+            length += _encoder.encode(_buffer, length, i * FRAME_NANOS, i, samples, CHANNELS);
+        }
+
+        // a raw record takes 14 bytes plus 4 per channel
+        int raw = frames * (CaptureFormat.SAMPLES_RECORD_HEADER_SIZE + 4 * CHANNELS);
+        assertTrue("only " + raw / (double)length + "x", raw >= 2 * length);
+    }
+
+    public void testSteadyFrameTakesFewBytes()
+    {
+        float[] samples = new float[CHANNELS];
+        for ( int c = 0; c < CHANNELS; c++ )
+            samples[c] = c / 7.0f;
+
+        _encoder.reset(0);
+        _encoder.encode(_buffer, 0, FRAME_NANOS, 0, samples, CHANNELS);
+        _encoder.encode(_buffer, 0, 2 * FRAME_NANOS, 1, samples, CHANNELS);
+
+        // delta-of-delta, gap, channel count, then a 0 bit per channel
+        assertEquals(1 + 1 + 1 + 4, _encoder.encode(_buffer, 0, 3 * FRAME_NANOS, 2, samples, CHANNELS));
+    }
+
+    public void testRejectsTooManyChannels()
+    {
+        try
+        {
+            _encoder.encode(_buffer, 0, 0, 0, new float[SampleFrame.MAX_CHANNELS + 1], SampleFrame.MAX_CHANNELS + 1);
+            fail("too many channels accepted");
+        }
+        catch (IllegalArgumentException e) { }
+    }
+}
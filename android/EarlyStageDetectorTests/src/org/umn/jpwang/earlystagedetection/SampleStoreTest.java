@@ -0,0 +1,109 @@
+package org.umn.jpwang.earlystagedetection;
+
+import junit.framework.TestCase;
+
+public class SampleStoreTest extends TestCase
+{
+    private static final byte[] MAP = { 46, 47, 45 };
+
+    public void testKeysChannelsByConfigMap()
+    {
+        SampleStore store = new SampleStore(MAP, 8);
+        assertEquals(3, store.getChannelCount());
+        assertEquals(1, store.getChannelIndex(47));
+        assertEquals(-1, store.getChannelIndex(16));
+        assertEquals(45, store.getChannelId(2));
+    }
+
+    public void testMatchesEchoedChannelMap()
+    {
+        SampleStore store = new SampleStore(MAP, 8);
+        byte[] echo = { 0, 46, 47, 45 };
+        assertTrue(store.hasChannelMap(echo, 1, 3));
+        assertFalse(store.hasChannelMap(echo, 0, 3));
+        assertFalse(store.hasChannelMap(echo, 1, 2));
+    }
+
+    public void testCursorReadsInOrderAndCountsMissedFrames()
+    {
+        SampleStore store = new SampleStore(MAP, 4);
+        for ( int i = 0; i < 3; i++ )
+            store.append(100 + i, new float[] { i, -i, 2 * i });
+
+        SampleStore.Cursor cursor = new SampleStore.Cursor();
+        float[] values = new float[8];
+        long[] timestamps = new long[8];
+        assertEquals(3, store.read(cursor, 1, values, timestamps, 0, 8));
+        assertEquals(-2.0f, values[2], 0.0f);
+        assertEquals(102, timestamps[2]);
+        assertEquals(0, store.read(cursor, 1, values, timestamps, 0, 8));
+
+        // lap the cursor: frames 3..9 written, only 6..9 still stored
+        for ( int i = 3; i < 10; i++ )
+            store.append(100 + i, new float[] { i, -i, 2 * i });
+
+        assertEquals(4, store.read(cursor, 0, values, null, 0, 8));
+        assertEquals(6.0f, values[0], 0.0f);
+        assertEquals(3, cursor.getMissedFrames());
+        assertEquals(10, cursor.getNextFrame());
+    }
+
+    public void testReadLatestFromPayload()
+    {
+        SampleStore store = new SampleStore(MAP, 16);
+        byte[] frame = new byte[SampleFrame.getFrameLength(3)];
+        for ( int i = 0; i < 5; i++ )
+        {
+            SampleFrame.encode(frame, 0, i, new float[] { i, i + 0.5f, 0.0f }, 3);
+            store.append(i, frame, 3, frame.length - 4);
+        }
+
+        float[] values = new float[2];
+        assertEquals(2, store.readLatest(1, values, null, 0, 2));
+        assertEquals(3.5f, values[0], 0.0f);
+        assertEquals(4.5f, values[1], 0.0f);
+    }
+
+    public void testConcurrentReaderSeesConsistentFrames() throws Exception
+    {
+        final SampleStore store = new SampleStore(MAP, 64);
+        final int frames = 200000;
+
+        Thread writer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                float[] samples = new float[3];
+                for ( int i = 0; i < frames; i++ )
+                {
+                    samples[0] = samples[1] = samples[2] = i;
+                    store.append(i, samples);
+                }
+            }
+        };
+        writer.start();
+
+        SampleStore.Cursor cursor = new SampleStore.Cursor();
+        float[] values = new float[32];
+        long[] timestamps = new long[32];
+        long seen = 0;
+        while ( cursor.getNextFrame() < frames )
+        {
+            long first = cursor.getNextFrame();
+            int n = store.read(cursor, 2, values, timestamps, 0, values.length);
+            for ( int i = 0; i < n; i++ )
+            {
+                assertEquals((float)timestamps[i], values[i], 0.0f);
+                if ( i > 0 )
+                    assertEquals(timestamps[i - 1] + 1, timestamps[i]);
+            }
+            if ( n > 0 )
+                assertTrue(timestamps[0] >= first);
+            seen += n;
+        }
+        writer.join();
+
+        assertEquals(frames, seen + cursor.getMissedFrames());
+    }
+}
@@ -0,0 +1,65 @@
+package org.umn.jpwang.earlystagedetection;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class StartParametersTest extends TestCase
+{
+    // payload the firmware was originally driven with
+    private static final byte[] LEGACY_START_PAYLOAD = {
+        (byte)154, (byte)153, (byte)153, (byte)62,
+        (byte)0, (byte)0, (byte)122, (byte)68,
+        (byte)205, (byte)204, (byte)76, (byte)62,
+        (byte)0, (byte)0, (byte)72, (byte)66,
+        (byte)0, (byte)0, (byte)128, (byte)63,
+        (byte)4
+    };
+
+    public void testDefaultMatchesLegacyPayload()
+    {
+        assertTrue(Arrays.equals(LEGACY_START_PAYLOAD, StartParameters.DEFAULT.encodePayload()));
+
+        byte[] frame = Packet.get(Packet.Type.Start).getBuffer();
+        assertEquals(Packet.SOF, frame[0]);
+        assertEquals(Packet.COMMAND_START, frame[1]);
+        assertEquals(LEGACY_START_PAYLOAD.length, frame[2]);
+        assertTrue(Arrays.equals(LEGACY_START_PAYLOAD, Arrays.copyOfRange(frame, 3, frame.length - 1)));
+    }
+
+    public void testPacketsAreMemoized()
+    {
+        StartParameters a = new StartParameters.Builder().setFieldFrequency(75.0f).build();
+        StartParameters b = StartParameters.DEFAULT.buildUpon().setFieldFrequency(75.0f).build();
+
+        assertEquals(a, b);
+        assertSame(a.toPacket(), b.toPacket());
+        assertNotSame(a.toPacket(), StartParameters.DEFAULT.toPacket());
+        assertSame(Packet.get(Packet.Type.Start), StartParameters.DEFAULT.toPacket());
+    }
+
+    public void testRejectsOutOfRangeValues()
+    {
+        StartParameters.Builder builder = new StartParameters.Builder();
+        try
+        {
+            builder.setSensorFrequency(0.0f);
+            fail("zero frequency accepted");
+        }
+        catch (IllegalArgumentException e) { }
+
+        try
+        {
+            builder.setFieldAmplitude(Float.NaN);
+            fail("NaN amplitude accepted");
+        }
+        catch (IllegalArgumentException e) { }
+
+        try
+        {
+            builder.setMode(256);
+            fail("mode wider than a byte accepted");
+        }
+        catch (IllegalArgumentException e) { }
+    }
+}
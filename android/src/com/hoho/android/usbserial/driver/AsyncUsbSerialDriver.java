@@ -0,0 +1,71 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+
+import com.hoho.android.usbserial.util.ReadPipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link UsbSerialDriver} whose read endpoint can be serviced with queued
+ * {@link UsbRequest}s, so callers can keep several reads in flight instead of
+ * blocking in {@link #read(byte[], int)}.
+ *
+ * @see com.hoho.android.usbserial.util.UsbReadPipeline
+ */
+public interface AsyncUsbSerialDriver extends UsbSerialDriver, ReadPipeline.Source {
+
+    /**
+     * Returns {@code true} if reads on this device and platform can be
+     * queued with {@link UsbRequest}, ie the number of bytes read can be
+     * recovered from a completed request.
+     */
+    @Override
+    public boolean isAsyncReadSupported();
+
+    /**
+     * Returns the open connection to the device.
+     */
+    public UsbDeviceConnection getConnection();
+
+    /**
+     * Returns the bulk IN endpoint carrying serial data, or {@code null} if
+     * the device has not been opened yet.
+     */
+    public UsbEndpoint getReadEndpoint();
+
+    /**
+     * Converts the raw bytes of a completed read request into serial data, in
+     * place.  On entry the buffer holds {@code bytesRead} raw bytes starting
+     * at index 0; on return it holds the serial data starting at index 0.
+     *
+     * @param buffer the buffer the request completed into
+     * @param bytesRead the number of raw bytes transferred
+     * @return the number of serial data bytes now at the start of the buffer
+     */
+    public int processAsyncRead(ByteBuffer buffer, int bytesRead);
+
+}
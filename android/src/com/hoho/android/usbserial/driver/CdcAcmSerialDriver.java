@@ -41,6 +41,19 @@ public class CdcAcmSerialDriver extends CommonUsbSerialDriver {
     private static final int SET_CONTROL_LINE_STATE = 0x22;
     private static final int SEND_BREAK = 0x23;
 
+    private static final int SERIAL_STATE = 0x20;  // USB PSTN 1.2 section 6.5.4
+    private static final int SERIAL_STATE_LENGTH = 10;
+    private static final int SERIAL_STATE_DCD = 0x01;
+    private static final int SERIAL_STATE_DSR = 0x02;
+    private static final int SERIAL_STATE_RI = 0x08;
+
+    private static final int NOTIFICATION_TIMEOUT_MILLIS = 1;
+
+    private final byte[] mNotification = new byte[SERIAL_STATE_LENGTH];
+
+    // Guarded by mNotification.
+    private int mSerialState = 0;
+
     public CdcAcmSerialDriver(UsbDevice device, UsbDeviceConnection connection) {
         super(device, connection);
     }
@@ -72,74 +85,47 @@ public class CdcAcmSerialDriver extends CommonUsbSerialDriver {
         Log.d(TAG, "Read endpoint direction: " + mReadEndpoint.getDirection());
         mWriteEndpoint = mDataInterface.getEndpoint(0);
         Log.d(TAG, "Write endpoint direction: " + mWriteEndpoint.getDirection());
+
+        openTransport(mReadEndpoint, mWriteEndpoint);
     }
 
-    private int sendAcmControlMessage(int request, int value, byte[] buf) {
-        return mConnection.controlTransfer(
+    private int sendAcmControlMessage(int request, int value, byte[] buf) throws IOException {
+        return controlTransfer(
                 USB_RT_ACM, request, value, 0, buf, buf != null ? buf.length : 0, 5000);
     }
 
     @Override
     public void close() throws IOException {
-        mConnection.close();
+        try {
+            closeTransport();
+        } finally {
+            mConnection.close();
+        }
+    }
+
+    @Override
+    public UsbEndpoint getReadEndpoint() {
+        return mReadEndpoint;
     }
 
     @Override
     public int read(byte[] dest, int timeoutMillis) throws IOException {
-        final int numBytesRead;
+        final SerialTransport transport = getTransport();
         synchronized (mReadBufferLock) {
-            int readAmt = Math.min(dest.length, mReadBuffer.length);
-            numBytesRead = mConnection.bulkTransfer(mReadEndpoint, mReadBuffer, readAmt,
-                    timeoutMillis);
-            if (numBytesRead < 0) {
-                // This sucks: we get -1 on timeout, not 0 as preferred.
-                // We *should* use UsbRequest, except it has a bug/api oversight
-                // where there is no way to determine the number of bytes read
-                // in response :\ -- http://b.android.com/28023
-                return 0;
-            }
-            System.arraycopy(mReadBuffer, 0, dest, 0, numBytesRead);
+            // mReadBuffer is only used for maximum read size.
+            final int readAmt = Math.min(dest.length, mReadBuffer.length);
+            return transport.read(dest, 0, readAmt, timeoutMillis);
         }
-        return numBytesRead;
     }
 
     @Override
-    public int write(byte[] src, int timeoutMillis) throws IOException {
-        // TODO(mikey): Nearly identical to FtdiSerial write. Refactor.
-        int offset = 0;
-
-        while (offset < src.length) {
-            final int writeLength;
-            final int amtWritten;
-
-            synchronized (mWriteBufferLock) {
-                final byte[] writeBuffer;
-
-                writeLength = Math.min(src.length - offset, mWriteBuffer.length);
-                if (offset == 0) {
-                    writeBuffer = src;
-                } else {
-                    // bulkTransfer does not support offsets, make a copy.
-                    System.arraycopy(src, offset, mWriteBuffer, 0, writeLength);
-                    writeBuffer = mWriteBuffer;
-                }
-
-                amtWritten = mConnection.bulkTransfer(mWriteEndpoint, writeBuffer, writeLength,
-                        timeoutMillis);
-            }
-            if (amtWritten <= 0) {
-                throw new IOException("Error writing " + writeLength
-                        + " bytes at offset " + offset + " length=" + src.length);
-            }
-
-            Log.d(TAG, "Wrote amt=" + amtWritten + " attempted=" + writeLength);
-            offset += amtWritten;
-        }
-        return offset;
+    public UsbEndpoint getWriteEndpoint() {
+        return mWriteEndpoint;
     }
 
     @Override
-    public void setParameters(int baudRate, int dataBits, int stopBits, int parity) {
+    public void setParameters(int baudRate, int dataBits, int stopBits, int parity)
+            throws IOException {
         byte stopBitsByte;
         switch (stopBits) {
             case STOPBITS_1: stopBitsByte = 0; break;
@@ -169,19 +155,41 @@ public class CdcAcmSerialDriver extends CommonUsbSerialDriver {
         sendAcmControlMessage(SET_LINE_CODING, 0, msg);
     }
 
+    /**
+     * Returns the last SERIAL_STATE bitmap from the notification endpoint.
+     * The device only notifies on changes, so this drains whatever is
+     * pending and otherwise keeps the previous state.  The interrupt
+     * endpoint is not part of the transport, so it is polled on the
+     * connection directly.
+     */
+    private int getSerialState() {
+        synchronized (mNotification) {
+            if (mControlEndpoint == null || mControlEndpoint.getDirection() != UsbConstants.USB_DIR_IN) {
+                return mSerialState;
+            }
+            while (mConnection.bulkTransfer(mControlEndpoint, mNotification, mNotification.length,
+                    NOTIFICATION_TIMEOUT_MILLIS) == SERIAL_STATE_LENGTH) {
+                if (mNotification[1] == SERIAL_STATE) {
+                    mSerialState = (mNotification[8] & 0xff) | ((mNotification[9] & 0xff) << 8);
+                }
+            }
+            return mSerialState;
+        }
+    }
+
     @Override
     public boolean getCD() throws IOException {
-        return false;  // TODO
+        return (getSerialState() & SERIAL_STATE_DCD) != 0;
     }
 
     @Override
     public boolean getCTS() throws IOException {
-        return false;  // TODO
+        return false;  // Not reported by CDC ACM.
     }
 
     @Override
     public boolean getDSR() throws IOException {
-        return false;  // TODO
+        return (getSerialState() & SERIAL_STATE_DSR) != 0;
     }
 
     @Override
@@ -197,7 +205,7 @@ public class CdcAcmSerialDriver extends CommonUsbSerialDriver {
 
     @Override
     public boolean getRI() throws IOException {
-        return false;  // TODO
+        return (getSerialState() & SERIAL_STATE_RI) != 0;
     }
 
     @Override
@@ -211,7 +219,22 @@ public class CdcAcmSerialDriver extends CommonUsbSerialDriver {
         setDtrRts();
     }
 
-    private void setDtrRts() {
+    /**
+     * CDC ACM has no request to configure flow control: the device paces the
+     * host through USB itself, and handshakes on its UART (if any) on its
+     * own.  Only {@link #FLOWCONTROL_NONE} is accepted.
+     */
+    @Override
+    public void setFlowControl(int flowControl) throws IOException {
+        checkFlowControl(flowControl);
+        if (flowControl != FLOWCONTROL_NONE) {
+            throw new IllegalArgumentException("Flow control not supported by CDC ACM: "
+                    + flowControl);
+        }
+        mFlowControl = flowControl;
+    }
+
+    private void setDtrRts() throws IOException {
         int value = (mRts ? 0x2 : 0) | (mDtr ? 0x1 : 0);
         sendAcmControlMessage(SET_CONTROL_LINE_STATE, value, null);
     }
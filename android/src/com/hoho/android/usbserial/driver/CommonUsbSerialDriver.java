@@ -22,19 +22,33 @@ package com.hoho.android.usbserial.driver;
 
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.os.Build;
+
+import com.hoho.android.usbserial.util.BufferPool;
+import com.hoho.android.usbserial.util.ReadPipeline;
+import com.hoho.android.usbserial.util.UsbReadPipeline;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A base class shared by several driver implementations.
  *
  * @author mike wakerly (opensource@hoho.com)
  */
-abstract class CommonUsbSerialDriver implements UsbSerialDriver {
+abstract class CommonUsbSerialDriver implements AsyncUsbSerialDriver {
 
     public static final int DEFAULT_READ_BUFFER_SIZE = 16 * 1024;
     public static final int DEFAULT_WRITE_BUFFER_SIZE = 16 * 1024;
 
+    /**
+     * First platform release (JELLY_BEAN_MR1) where a completed UsbRequest
+     * reports the number of bytes read through its buffer position, see
+     * http://b.android.com/28023 .
+     */
+    protected static final int ASYNC_READS_MIN_SDK = 17;
+
     protected final UsbDevice mDevice;
     protected final UsbDeviceConnection mConnection;
 
@@ -47,6 +61,15 @@ abstract class CommonUsbSerialDriver implements UsbSerialDriver {
     /** Internal write buffer.  Guarded by {@link #mWriteBufferLock}. */
     protected byte[] mWriteBuffer;
 
+    /**
+     * Bulk and control I/O once {@link #open()} found the endpoints,
+     * {@code null} before.
+     */
+    protected volatile SerialTransport mTransport;
+
+    /** Flow control mode, set by {@link #setFlowControl(int)}. */
+    protected volatile int mFlowControl = FLOWCONTROL_NONE;
+
     public CommonUsbSerialDriver(UsbDevice device, UsbDeviceConnection connection) {
         mDevice = device;
         mConnection = connection;
@@ -64,6 +87,81 @@ abstract class CommonUsbSerialDriver implements UsbSerialDriver {
         return mDevice;
     }
 
+    @Override
+    public final UsbDeviceConnection getConnection() {
+        return mConnection;
+    }
+
+    @Override
+    public boolean isAsyncReadSupported() {
+        return Build.VERSION.SDK_INT >= ASYNC_READS_MIN_SDK && getReadEndpoint() != null;
+    }
+
+    @Override
+    public abstract UsbEndpoint getReadEndpoint();
+
+    /**
+     * Returns the bulk OUT endpoint serial data is written to.
+     */
+    public abstract UsbEndpoint getWriteEndpoint();
+
+    @Override
+    public int processAsyncRead(ByteBuffer buffer, int bytesRead) {
+        return bytesRead;
+    }
+
+    /**
+     * Opens the transport all further I/O goes through.  Drivers call this
+     * from {@link #open()} once they have claimed their interfaces.
+     */
+    protected final void openTransport(UsbEndpoint readEndpoint, UsbEndpoint writeEndpoint)
+            throws IOException {
+        final SerialTransport transport =
+                new UsbSerialTransport(mConnection, null, readEndpoint, writeEndpoint);
+        transport.open();
+        mTransport = transport;
+    }
+
+    /**
+     * Closes the transport, if it was opened.
+     */
+    protected final void closeTransport() throws IOException {
+        final SerialTransport transport = mTransport;
+        mTransport = null;
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
+    /**
+     * Returns the opened transport.
+     *
+     * @throws IOException if the driver is not open
+     */
+    protected final SerialTransport getTransport() throws IOException {
+        final SerialTransport transport = mTransport;
+        if (transport == null) {
+            throw new IOException("Device not open");
+        }
+        return transport;
+    }
+
+    /**
+     * Performs a control transfer through the transport.
+     *
+     * @return the number of bytes transferred, or a negative value on failure
+     */
+    protected final int controlTransfer(int requestType, int request, int value, int index,
+            byte[] buffer, int length, int timeoutMillis) throws IOException {
+        return getTransport().controlTransfer(requestType, request, value, index, buffer, length,
+                timeoutMillis);
+    }
+
+    @Override
+    public ReadPipeline createReadPipeline(int depth, BufferPool pool) {
+        return new UsbReadPipeline(this, depth, pool);
+    }
+
     /**
      * Sets the size of the internal buffer used to exchange data with the USB
      * stack for read operations.  Most users should not need to change this.
@@ -79,6 +177,28 @@ abstract class CommonUsbSerialDriver implements UsbSerialDriver {
         }
     }
 
+    /**
+     * Returns the largest chunk exchanged with the USB stack per read.
+     *
+     * @return the size in bytes
+     */
+    public final int getReadBufferSize() {
+        synchronized (mReadBufferLock) {
+            return mReadBuffer.length;
+        }
+    }
+
+    /**
+     * Returns the largest chunk exchanged with the USB stack per write.
+     *
+     * @return the size in bytes
+     */
+    public final int getWriteBufferSize() {
+        synchronized (mWriteBufferLock) {
+            return mWriteBuffer.length;
+        }
+    }
+
     /**
      * Sets the size of the internal buffer used to exchange data with the USB
      * stack for write operations.  Most users should not need to change this.
@@ -104,7 +224,113 @@ abstract class CommonUsbSerialDriver implements UsbSerialDriver {
     public abstract int read(final byte[] dest, final int timeoutMillis) throws IOException;
 
     @Override
-    public abstract int write(final byte[] src, final int timeoutMillis) throws IOException;
+    public int write(final byte[] src, final int timeoutMillis) throws IOException {
+        return write(src, 0, src.length, timeoutMillis);
+    }
+
+    /**
+     * Writes in chunks of at most the write buffer size, rounded down to a
+     * whole number of max packets so only the last transfer ends in a short
+     * packet.  Data is handed to the transport straight from {@code src}.
+     */
+    @Override
+    public int write(final byte[] src, final int offset, final int length,
+            final int timeoutMillis) throws IOException {
+        final SerialTransport transport = getTransport();
+        int written = 0;
+
+        while (written < length) {
+            final int writeLength;
+            final int amtWritten;
+
+            synchronized (mWriteBufferLock) {
+                writeLength = Math.min(length - written, getChunkSize());
+                amtWritten = transport.write(src, offset + written, writeLength, timeoutMillis);
+            }
+
+            if (amtWritten <= 0) {
+                throw new IOException("Error writing " + writeLength
+                        + " bytes at offset " + (offset + written) + " length=" + length);
+            }
+            written += amtWritten;
+        }
+        return written;
+    }
+
+    /**
+     * Gathers the buffers into the write buffer and sends it whenever a
+     * chunk is full, so a run of small frames costs one transfer per chunk
+     * instead of one per frame.
+     */
+    @Override
+    public int write(final ByteBuffer[] srcs, final int timeoutMillis) throws IOException {
+        final SerialTransport transport = getTransport();
+        int written = 0;
+
+        synchronized (mWriteBufferLock) {
+            final int chunkSize = getChunkSize();
+            int pending = 0;
+
+            for (final ByteBuffer src : srcs) {
+                while (src.hasRemaining()) {
+                    final int count = Math.min(src.remaining(), chunkSize - pending);
+                    src.get(mWriteBuffer, pending, count);
+                    pending += count;
+
+                    if (pending == chunkSize) {
+                        written += flushWriteBuffer(transport, pending, timeoutMillis);
+                        pending = 0;
+                    }
+                }
+            }
+            if (pending > 0) {
+                written += flushWriteBuffer(transport, pending, timeoutMillis);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Sends the first {@code length} bytes of the write buffer.  Caller must
+     * hold {@link #mWriteBufferLock}.
+     */
+    private int flushWriteBuffer(SerialTransport transport, int length, int timeoutMillis)
+            throws IOException {
+        int written = 0;
+        while (written < length) {
+            final int remaining = length - written;
+            final int amtWritten = transport.write(mWriteBuffer, written, remaining,
+                    timeoutMillis);
+            if (amtWritten <= 0) {
+                throw new IOException("Error writing " + remaining + " gathered bytes");
+            }
+            written += amtWritten;
+        }
+        return written;
+    }
+
+    /**
+     * Returns the largest transfer to make: the write buffer size rounded
+     * down to a multiple of the write endpoint's max packet size.  Caller
+     * must hold {@link #mWriteBufferLock}.
+     */
+    private int getChunkSize() {
+        final int maxPacketSize = getWriteMaxPacketSize();
+        final int bufferSize = mWriteBuffer.length;
+        if (maxPacketSize <= 0 || bufferSize < maxPacketSize) {
+            return bufferSize;
+        }
+        return bufferSize - bufferSize % maxPacketSize;
+    }
+
+    /**
+     * Returns the max packet size of the write endpoint, or {@code 0} if it
+     * is not known yet.
+     */
+    protected int getWriteMaxPacketSize() {
+        final UsbEndpoint endpoint = getWriteEndpoint();
+        return endpoint == null ? 0 : endpoint.getMaxPacketSize();
+    }
 
     @Override
     public abstract void setParameters(
@@ -134,4 +360,28 @@ abstract class CommonUsbSerialDriver implements UsbSerialDriver {
     @Override
     public abstract void setRTS(boolean value) throws IOException;
 
+    @Override
+    public abstract void setFlowControl(int flowControl) throws IOException;
+
+    @Override
+    public int getFlowControl() {
+        return mFlowControl;
+    }
+
+    protected static boolean isRtsCts(int flowControl) {
+        return (flowControl & (FLOWCONTROL_RTSCTS_IN | FLOWCONTROL_RTSCTS_OUT)) != 0;
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code flowControl} has bits that
+     *             are not {@code FLOWCONTROL_*} values
+     */
+    protected static void checkFlowControl(int flowControl) {
+        final int all = FLOWCONTROL_RTSCTS_IN | FLOWCONTROL_RTSCTS_OUT
+                | FLOWCONTROL_XONXOFF_IN | FLOWCONTROL_XONXOFF_OUT;
+        if ((flowControl & ~all) != 0) {
+            throw new IllegalArgumentException("Unknown flowControl value: " + flowControl);
+        }
+    }
+
 }
@@ -23,6 +23,7 @@ public class Cp2102SerialDriver extends CommonUsbSerialDriver {
      * Configuration Request Types
      */
     private static final int REQTYPE_HOST_TO_DEVICE = 0x41;
+    private static final int REQTYPE_DEVICE_TO_HOST = 0xC1;
     
     /*
      * Configuration Request Codes
@@ -31,6 +32,8 @@ public class Cp2102SerialDriver extends CommonUsbSerialDriver {
     private static final int SILABSER_SET_BAUDDIV_REQUEST_CODE = 0x01;
     private static final int SILABSER_SET_LINE_CTL_REQUEST_CODE = 0x03;
     private static final int SILABSER_SET_MHS_REQUEST_CODE = 0x07;
+    private static final int SILABSER_GET_MDMSTS_REQUEST_CODE = 0x08;
+    private static final int SILABSER_SET_FLOW_REQUEST_CODE = 0x13;
     private static final int SILABSER_SET_BAUDRATE = 0x1E;
     
     /*
@@ -54,15 +57,49 @@ public class Cp2102SerialDriver extends CommonUsbSerialDriver {
     private static final int CONTROL_WRITE_DTR = 0x0100;
     private static final int CONTROL_WRITE_RTS = 0x0200;    
 
+    /*
+     * SILABSER_GET_MDMSTS_REQUEST_CODE
+     */
+    private static final int STATUS_DTR = 0x01;
+    private static final int STATUS_RTS = 0x02;
+    private static final int STATUS_CTS = 0x10;
+    private static final int STATUS_DSR = 0x20;
+    private static final int STATUS_RI = 0x40;
+    private static final int STATUS_DCD = 0x80;
+
+    /*
+     * SILABSER_SET_FLOW_REQUEST_CODE, ulControlHandshake
+     */
+    private static final int SERIAL_DTR_ACTIVE = 0x01;
+    private static final int SERIAL_CTS_HANDSHAKE = 0x08;
+
+    /*
+     * SILABSER_SET_FLOW_REQUEST_CODE, ulFlowReplace
+     */
+    private static final int SERIAL_AUTO_TRANSMIT = 0x01;
+    private static final int SERIAL_AUTO_RECEIVE = 0x02;
+    private static final int SERIAL_RTS_ACTIVE = 0x40;
+    private static final int SERIAL_RTS_FLOW_CTL = 0x80;
+
+    /*
+     * Receive buffer fill levels, in bytes, at which XON and XOFF are sent.
+     */
+    private static final int XON_LIMIT = 128;
+    private static final int XOFF_LIMIT = 128;
+
     private UsbEndpoint mReadEndpoint;
     private UsbEndpoint mWriteEndpoint; 
+
+    // Last values set, so changing the flow control mode can restore them.
+    private volatile boolean mDtr = true;
+    private volatile boolean mRts = true;
     
     public Cp2102SerialDriver(UsbDevice device, UsbDeviceConnection connection) {
         super(device, connection);
     }
     
-    private int setConfigSingle(int request, int value) {
-        return mConnection.controlTransfer(REQTYPE_HOST_TO_DEVICE, request, value, 
+    private int setConfigSingle(int request, int value) throws IOException {
+        return controlTransfer(REQTYPE_HOST_TO_DEVICE, request, value, 
                 0, null, 0, USB_WRITE_TIMEOUT_MILLIS);
     }
 
@@ -90,9 +127,12 @@ public class Cp2102SerialDriver extends CommonUsbSerialDriver {
                     }
                 }
             }
-            
+
+            openTransport(mReadEndpoint, mWriteEndpoint);
             setConfigSingle(SILABSER_IFC_ENABLE_REQUEST_CODE, UART_ENABLE);
             setConfigSingle(SILABSER_SET_MHS_REQUEST_CODE, MCR_ALL | CONTROL_WRITE_DTR | CONTROL_WRITE_RTS);
+            mDtr = true;
+            mRts = true;
             setConfigSingle(SILABSER_SET_BAUDDIV_REQUEST_CODE, BAUD_RATE_GEN_FREQ / DEFAULT_BAUD_RATE);            
 //            setParameters(DEFAULT_BAUD_RATE, DEFAULT_DATA_BITS, DEFAULT_STOP_BITS, DEFAULT_PARITY);
             opened = true;
@@ -105,61 +145,34 @@ public class Cp2102SerialDriver extends CommonUsbSerialDriver {
 
     @Override
     public void close() throws IOException {
-        setConfigSingle(SILABSER_IFC_ENABLE_REQUEST_CODE, UART_DISABLE);
-        mConnection.close();
+        try {
+            if (mTransport != null) {
+                setConfigSingle(SILABSER_IFC_ENABLE_REQUEST_CODE, UART_DISABLE);
+            }
+        } finally {
+            closeTransport();
+            mConnection.close();
+        }
+    }
+
+    @Override
+    public UsbEndpoint getReadEndpoint() {
+        return mReadEndpoint;
     }
 
     @Override
     public int read(byte[] dest, int timeoutMillis) throws IOException {
-        final int numBytesRead;
+        final SerialTransport transport = getTransport();
         synchronized (mReadBufferLock) {
-            int readAmt = Math.min(dest.length, mReadBuffer.length);
-            numBytesRead = mConnection.bulkTransfer(mReadEndpoint, mReadBuffer, readAmt,
-                    timeoutMillis);
-            if (numBytesRead < 0) {
-                // This sucks: we get -1 on timeout, not 0 as preferred.
-                // We *should* use UsbRequest, except it has a bug/api oversight
-                // where there is no way to determine the number of bytes read
-                // in response :\ -- http://b.android.com/28023
-                return 0;
-            }
-            System.arraycopy(mReadBuffer, 0, dest, 0, numBytesRead);
+            // mReadBuffer is only used for maximum read size.
+            final int readAmt = Math.min(dest.length, mReadBuffer.length);
+            return transport.read(dest, 0, readAmt, timeoutMillis);
         }
-        return numBytesRead;
     }
 
     @Override
-    public int write(byte[] src, int timeoutMillis) throws IOException {
-        int offset = 0;
-
-        while (offset < src.length) {
-            final int writeLength;
-            final int amtWritten;
-
-            synchronized (mWriteBufferLock) {
-                final byte[] writeBuffer;
-
-                writeLength = Math.min(src.length - offset, mWriteBuffer.length);
-                if (offset == 0) {
-                    writeBuffer = src;
-                } else {
-                    // bulkTransfer does not support offsets, make a copy.
-                    System.arraycopy(src, offset, mWriteBuffer, 0, writeLength);
-                    writeBuffer = mWriteBuffer;
-                }
-
-                amtWritten = mConnection.bulkTransfer(mWriteEndpoint, writeBuffer, writeLength,
-                        timeoutMillis);
-            }
-            if (amtWritten <= 0) {
-                throw new IOException("Error writing " + writeLength
-                        + " bytes at offset " + offset + " length=" + src.length);
-            }
-
-            Log.d(TAG, "Wrote amt=" + amtWritten + " attempted=" + writeLength);
-            offset += amtWritten;
-        }
-        return offset;
+    public UsbEndpoint getWriteEndpoint() {
+        return mWriteEndpoint;
     }
 
     private void setBaudRate(int baudRate) throws IOException {   
@@ -169,7 +182,7 @@ public class Cp2102SerialDriver extends CommonUsbSerialDriver {
                 (byte) ((baudRate >> 16) & 0xff),
                 (byte) ((baudRate >> 24) & 0xff)
         };
-        int ret = mConnection.controlTransfer(REQTYPE_HOST_TO_DEVICE, SILABSER_SET_BAUDRATE, 
+        int ret = controlTransfer(REQTYPE_HOST_TO_DEVICE, SILABSER_SET_BAUDRATE, 
                 0, 0, data, 4, USB_WRITE_TIMEOUT_MILLIS);
         if (ret < 0) {
             throw new IOException("Error setting baud rate.");
@@ -224,42 +237,112 @@ public class Cp2102SerialDriver extends CommonUsbSerialDriver {
         setConfigSingle(SILABSER_SET_LINE_CTL_REQUEST_CODE, configStopBits);        
     }
 
+    private int getModemStatus() throws IOException {
+        byte[] data = new byte[1];
+        int ret = controlTransfer(REQTYPE_DEVICE_TO_HOST,
+                SILABSER_GET_MDMSTS_REQUEST_CODE, 0, 0, data, data.length,
+                USB_WRITE_TIMEOUT_MILLIS);
+        if (ret != data.length) {
+            throw new IOException("Error reading modem status.");
+        }
+        return data[0] & 0xff;
+    }
+
+    private void setModemLine(int mask, boolean value) throws IOException {
+        int control = mask == MCR_DTR ? CONTROL_WRITE_DTR : CONTROL_WRITE_RTS;
+        if (setConfigSingle(SILABSER_SET_MHS_REQUEST_CODE, control | (value ? mask : 0)) < 0) {
+            throw new IOException("Error setting modem lines.");
+        }
+        if (mask == MCR_DTR) {
+            mDtr = value;
+        } else {
+            mRts = value;
+        }
+    }
+
     @Override
     public boolean getCD() throws IOException {
-        return false;
+        return (getModemStatus() & STATUS_DCD) != 0;
     }
 
     @Override
     public boolean getCTS() throws IOException {
-        return false;
+        return (getModemStatus() & STATUS_CTS) != 0;
     }
 
     @Override
     public boolean getDSR() throws IOException {
-        return false;
+        return (getModemStatus() & STATUS_DSR) != 0;
     }
 
     @Override
     public boolean getDTR() throws IOException {
-        return true;
+        return (getModemStatus() & STATUS_DTR) != 0;
     }
 
     @Override
     public void setDTR(boolean value) throws IOException {
+        setModemLine(MCR_DTR, value);
     }
 
     @Override
     public boolean getRI() throws IOException {
-        return false;
+        return (getModemStatus() & STATUS_RI) != 0;
     }
 
     @Override
     public boolean getRTS() throws IOException {
-        return true;
+        return (getModemStatus() & STATUS_RTS) != 0;
     }
 
+    /**
+     * Has no effect while RTS/CTS flow control drives the line; the value
+     * is restored when flow control is turned off again.
+     */
     @Override
     public void setRTS(boolean value) throws IOException {
+        setModemLine(MCR_RTS, value);
+    }
+
+    @Override
+    public void setFlowControl(int flowControl) throws IOException {
+        checkFlowControl(flowControl);
+
+        // The request rewrites both modem lines, so keep them as last set.
+        int controlHandshake = mDtr ? SERIAL_DTR_ACTIVE : 0;
+        int flowReplace;
+        if (isRtsCts(flowControl)) {
+            controlHandshake |= SERIAL_CTS_HANDSHAKE;
+            flowReplace = SERIAL_RTS_FLOW_CTL;
+        } else {
+            flowReplace = mRts ? SERIAL_RTS_ACTIVE : 0;
+        }
+        if ((flowControl & FLOWCONTROL_XONXOFF_OUT) != 0) {
+            flowReplace |= SERIAL_AUTO_TRANSMIT;
+        }
+        if ((flowControl & FLOWCONTROL_XONXOFF_IN) != 0) {
+            flowReplace |= SERIAL_AUTO_RECEIVE;
+        }
+
+        byte[] data = new byte[16];
+        putInt(data, 0, controlHandshake);
+        putInt(data, 4, flowReplace);
+        putInt(data, 8, XON_LIMIT);
+        putInt(data, 12, XOFF_LIMIT);
+        int ret = controlTransfer(REQTYPE_HOST_TO_DEVICE,
+                SILABSER_SET_FLOW_REQUEST_CODE, 0, 0, data, data.length,
+                USB_WRITE_TIMEOUT_MILLIS);
+        if (ret < 0) {
+            throw new IOException("Error setting flow control.");
+        }
+        mFlowControl = flowControl;
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value & 0xff);
+        data[offset + 1] = (byte) ((value >> 8) & 0xff);
+        data[offset + 2] = (byte) ((value >> 16) & 0xff);
+        data[offset + 3] = (byte) ((value >> 24) & 0xff);
     }
     
     public static Map<Integer, int[]> getSupportedDevices() {
@@ -24,13 +24,11 @@ import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
-import android.hardware.usb.UsbRequest;
 import android.util.Log;
 
-import com.hoho.android.usbserial.util.HexDump;
-
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -61,6 +59,8 @@ import java.util.Map;
  * <li>Read and write of serial data (see {@link #read(byte[], int)} and
  * {@link #write(byte[], int)}.
  * <li>Setting baud rate (see {@link #setBaudRate(int)}).
+ * <li>Modem control lines and RTS/CTS or XON/XOFF flow control (see
+ * {@link #setFlowControl(int)}).
  * </ul>
  * </p>
  * <p>
@@ -76,6 +76,7 @@ import java.util.Map;
  * <li>{@value DeviceType#TYPE_2232C}</li>
  * <li>{@value DeviceType#TYPE_2232H}</li>
  * <li>{@value DeviceType#TYPE_4232H}</li>
+ * <li>{@value DeviceType#TYPE_232H}</li>
  * <li>{@value DeviceType#TYPE_AM}</li>
  * <li>{@value DeviceType#TYPE_BM}</li>
  * </ul>
@@ -131,8 +132,52 @@ public class FtdiSerialDriver extends CommonUsbSerialDriver {
      */
     private static final int SIO_SET_DATA_REQUEST = 4;
 
+    /**
+     * Set the latency timer.
+     */
+    private static final int SIO_SET_LATENCY_TIMER_REQUEST = 9;
+
+    /**
+     * Get the latency timer.
+     */
+    private static final int SIO_GET_LATENCY_TIMER_REQUEST = 10;
+
+    /**
+     * Latency timer the chip powers up with, in milliseconds.
+     */
+    public static final int DEFAULT_LATENCY_TIMER_MILLIS = 16;
+
+    public static final int MIN_LATENCY_TIMER_MILLIS = 1;
+    public static final int MAX_LATENCY_TIMER_MILLIS = 255;
+
+    /**
+     * Read the modem status register.
+     */
+    private static final int SIO_POLL_MODEM_STATUS_REQUEST = 5;
+
     private static final int SIO_RESET_SIO = 0;
 
+    // SIO_MODEM_CTRL_REQUEST values: high byte enables the line, low byte
+    // sets it.
+    private static final int SIO_SET_DTR_HIGH = 0x0101;
+    private static final int SIO_SET_DTR_LOW = 0x0100;
+    private static final int SIO_SET_RTS_HIGH = 0x0202;
+    private static final int SIO_SET_RTS_LOW = 0x0200;
+
+    // SIO_SET_FLOW_CTRL_REQUEST modes, sent in the high byte of the index.
+    private static final int SIO_DISABLE_FLOW_CTRL = 0x0;
+    private static final int SIO_RTS_CTS_HS = 0x1 << 8;
+    private static final int SIO_XON_XOFF_HS = 0x4 << 8;
+
+    private static final int XON_CHAR = 0x11;
+    private static final int XOFF_CHAR = 0x13;
+
+    // First byte of the modem status.
+    private static final int MODEM_STATUS_CTS = 0x10;
+    private static final int MODEM_STATUS_DSR = 0x20;
+    private static final int MODEM_STATUS_RI = 0x40;
+    private static final int MODEM_STATUS_RLSD = 0x80;
+
     public static final int FTDI_DEVICE_OUT_REQTYPE =
             UsbConstants.USB_TYPE_VENDOR | USB_RECIP_DEVICE | USB_ENDPOINT_OUT;
 
@@ -151,45 +196,122 @@ public class FtdiSerialDriver extends CommonUsbSerialDriver {
     /**
      * FTDI chip types.
      */
-    private static enum DeviceType {
-        TYPE_BM, TYPE_AM, TYPE_2232C, TYPE_R, TYPE_2232H, TYPE_4232H;
+    public static enum DeviceType {
+        TYPE_BM, TYPE_AM, TYPE_2232C, TYPE_R, TYPE_2232H, TYPE_4232H, TYPE_232H;
     }
 
     private int mInterface = 0; /* INTERFACE_ANY */
 
-    private int mMaxPacketSize = 64; // TODO(mikey): detect
+    /**
+     * Port number sent with per-port requests; ports are numbered from 1
+     * (INTERFACE_A), single port chips ignore it.
+     */
+    private int mIndex = 1;
+
+    private int mMaxPacketSize = 64;
+
+    private boolean mDtr = false;
+    private boolean mRts = false;
 
     /**
-     * Due to http://b.android.com/28023 , we cannot use UsbRequest async reads
-     * since it gives no indication of number of bytes read. Set this to
-     * {@code true} on platforms where it is fixed.
+     * Base clock of the BM/R generation and of H chips with the divide by 16
+     * prescaler.
      */
-    private static final boolean ENABLE_ASYNC_READS = false;
+    private static final int C_CLK = 48000000;
 
     /**
-     * Filter FTDI status bytes from buffer
-     * @param src The source buffer (which contains status bytes)
-     * @param dest The destination buffer to write the status bytes into (can be src)
-     * @param totalBytesRead Number of bytes read to src
-     * @param maxPacketSize The USB endpoint max packet size
-     * @return The number of payload bytes
+     * Base clock of the H series with the divide by 10 prescaler.
      */
-    private final int filterStatusBytes(byte[] src, byte[] dest, int totalBytesRead, int maxPacketSize) {
-        final int packetsCount = totalBytesRead / maxPacketSize + 1;
-        for (int packetIdx = 0; packetIdx < packetsCount; ++packetIdx) {
-            final int count = (packetIdx == (packetsCount - 1))
-                    ? (totalBytesRead % maxPacketSize) - MODEM_STATUS_HEADER_LENGTH
-                    : maxPacketSize - MODEM_STATUS_HEADER_LENGTH;
+    private static final int H_CLK = 120000000;
+
+    /**
+     * Divisor bit selecting the H series divide by 10 prescaler.
+     */
+    private static final int H_CLK_DIV_10 = 0x20000;
+
+    private static final int[] FRAC_CODE = {
+            0, 3, 2, 4, 1, 5, 6, 7
+    };
+
+    private static final int[] AM_ADJUST_UP = {
+            0, 0, 0, 1, 0, 3, 2, 1
+    };
+
+    private static final int[] AM_ADJUST_DN = {
+            0, 0, 0, 1, 0, 1, 1, 1
+    };
+
+    /**
+     * Rates whose divisors are computed once per chip type, in ascending
+     * order.
+     */
+    private static final int[] STANDARD_BAUD_RATES = {
+            300, 600, 1200, 2400, 4800, 9600, 19200, 38400, 57600, 115200,
+            230400, 460800, 921600, 1000000, 1500000, 2000000, 3000000,
+            4000000, 6000000, 8000000, 12000000
+    };
+
+    /**
+     * Per chip type, the encoded divisor and actual rate of each of
+     * {@link #STANDARD_BAUD_RATES}, packed as
+     * {@code (encodedDivisor << 32) | actualBaud}.
+     */
+    private static final long[][] sDivisorTable = new long[DeviceType.values().length][];
+
+    static {
+        for (final DeviceType type : DeviceType.values()) {
+            final long[] divisors = new long[STANDARD_BAUD_RATES.length];
+            for (int i = 0; i < divisors.length; i++) {
+                divisors[i] = computeDivisor(type, STANDARD_BAUD_RATES[i]);
+            }
+            sDivisorTable[type.ordinal()] = divisors;
+        }
+    }
+
+    /**
+     * Strips the modem status header from every packet of a bulk read, moving
+     * the payload down in place in a single pass.
+     *
+     * @param buffer the data as received, starting with a status header
+     * @param offset the start of the data in {@code buffer}
+     * @param totalBytesRead the number of bytes received
+     * @param maxPacketSize the USB endpoint max packet size
+     * @return the number of payload bytes, now at {@code offset}
+     */
+    public static int filterStatusBytes(byte[] buffer, int offset, int totalBytesRead,
+            int maxPacketSize) {
+        int dest = offset;
+        for (int packet = 0; packet < totalBytesRead; packet += maxPacketSize) {
+            final int count = Math.min(maxPacketSize, totalBytesRead - packet)
+                    - MODEM_STATUS_HEADER_LENGTH;
             if (count > 0) {
-                System.arraycopy(src,
-                        packetIdx * maxPacketSize + MODEM_STATUS_HEADER_LENGTH,
-                        dest,
-                        packetIdx * (maxPacketSize - MODEM_STATUS_HEADER_LENGTH),
-                        count);
+                System.arraycopy(buffer, offset + packet + MODEM_STATUS_HEADER_LENGTH,
+                        buffer, dest, count);
+                dest += count;
             }
         }
+        return dest - offset;
+    }
+
+    /**
+     * Same as {@link #filterStatusBytes(byte[], int, int, int)} for a buffer
+     * holding the data from index 0, which need not be backed by an array.
+     * Leaves the position and limit alone.
+     */
+    public static int filterStatusBytes(ByteBuffer buffer, int totalBytesRead, int maxPacketSize) {
+        if (buffer.hasArray()) {
+            return filterStatusBytes(buffer.array(), buffer.arrayOffset(), totalBytesRead,
+                    maxPacketSize);
+        }
 
-      return totalBytesRead - (packetsCount * 2);
+        int dest = 0;
+        for (int packet = 0; packet < totalBytesRead; packet += maxPacketSize) {
+            final int end = Math.min(packet + maxPacketSize, totalBytesRead);
+            for (int src = packet + MODEM_STATUS_HEADER_LENGTH; src < end; src++) {
+                buffer.put(dest++, buffer.get(src));
+            }
+        }
+        return dest;
     }
 
     /**
@@ -206,14 +328,60 @@ public class FtdiSerialDriver extends CommonUsbSerialDriver {
     }
 
     public void reset() throws IOException {
-        int result = mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE, SIO_RESET_REQUEST,
-                SIO_RESET_SIO, 0 /* index */, null, 0, USB_WRITE_TIMEOUT_MILLIS);
+        int result = controlTransfer(FTDI_DEVICE_OUT_REQTYPE, SIO_RESET_REQUEST,
+                SIO_RESET_SIO, mIndex, null, 0, USB_WRITE_TIMEOUT_MILLIS);
         if (result != 0) {
             throw new IOException("Reset failed: result=" + result);
         }
 
-        // TODO(mikey): autodetect.
-        mType = DeviceType.TYPE_R;
+        mType = detectDeviceType(mConnection.getRawDescriptors());
+        Log.d(TAG, "Detected device type " + mType);
+    }
+
+    /**
+     * Returns the chip type detected when the device was opened, or
+     * {@code null} before then.
+     */
+    public DeviceType getDeviceType() {
+        return mType;
+    }
+
+    /**
+     * Identifies the chip from the {@code bcdDevice} field of its device
+     * descriptor, the same way libftdi does.
+     *
+     * @param descriptors the raw descriptors, starting with the device
+     *            descriptor; may be {@code null}
+     */
+    static DeviceType detectDeviceType(byte[] descriptors) {
+        if (descriptors == null || descriptors.length < 17) {
+            Log.w(FtdiSerialDriver.class.getSimpleName(), "No device descriptor, assuming FT232R");
+            return DeviceType.TYPE_R;
+        }
+
+        final int bcdDevice = (descriptors[12] & 0xff) | ((descriptors[13] & 0xff) << 8);
+        final int iSerialNumber = descriptors[16] & 0xff;
+        switch (bcdDevice) {
+            case 0x200:
+                // BM chips with an unprogrammed EEPROM report 0x200 as well.
+                return iSerialNumber == 0 ? DeviceType.TYPE_BM : DeviceType.TYPE_AM;
+            case 0x400:
+                return DeviceType.TYPE_BM;
+            case 0x500:
+                return DeviceType.TYPE_2232C;
+            case 0x600:
+                return DeviceType.TYPE_R;
+            case 0x700:
+                return DeviceType.TYPE_2232H;
+            case 0x800:
+                return DeviceType.TYPE_4232H;
+            case 0x900:
+                return DeviceType.TYPE_232H;
+            default:
+                Log.w(FtdiSerialDriver.class.getSimpleName(),
+                        "Unknown bcdDevice 0x" + Integer.toHexString(bcdDevice) + ", assuming FT232R");
+                return DeviceType.TYPE_R;
+        }
     }
 
     @Override
@@ -227,7 +395,13 @@ public class FtdiSerialDriver extends CommonUsbSerialDriver {
                     throw new IOException("Error claiming interface " + i);
                 }
             }
+            openTransport(getReadEndpoint(), getWriteEndpoint());
             reset();
+
+            final UsbEndpoint endpoint = getReadEndpoint();
+            if (endpoint != null && endpoint.getMaxPacketSize() > 0) {
+                mMaxPacketSize = endpoint.getMaxPacketSize();
+            }
             opened = true;
         } finally {
             if (!opened) {
@@ -237,92 +411,87 @@ public class FtdiSerialDriver extends CommonUsbSerialDriver {
     }
 
     @Override
-    public void close() {
-        mConnection.close();
+    public void close() throws IOException {
+        try {
+            closeTransport();
+        } finally {
+            mConnection.close();
+        }
     }
 
     @Override
-    public int read(byte[] dest, int timeoutMillis) throws IOException {
-        final UsbEndpoint endpoint = mDevice.getInterface(0).getEndpoint(0);
-
-        if (ENABLE_ASYNC_READS) {
-            final int readAmt;
-            synchronized (mReadBufferLock) {
-                // mReadBuffer is only used for maximum read size.
-                readAmt = Math.min(dest.length, mReadBuffer.length);
-            }
-
-            final UsbRequest request = new UsbRequest();
-            request.initialize(mConnection, endpoint);
-
-            final ByteBuffer buf = ByteBuffer.wrap(dest);
-            if (!request.queue(buf, readAmt)) {
-                throw new IOException("Error queueing request.");
-            }
-
-            final UsbRequest response = mConnection.requestWait();
-            if (response == null) {
-                throw new IOException("Null response");
-            }
-
-            final int payloadBytesRead = buf.position() - MODEM_STATUS_HEADER_LENGTH;
-            if (payloadBytesRead > 0) {
-                Log.d(TAG, HexDump.dumpHexString(dest, 0, Math.min(32, dest.length)));
-                return payloadBytesRead;
-            } else {
-                return 0;
-            }
-        } else {
-            final int totalBytesRead;
-
-            synchronized (mReadBufferLock) {
-                final int readAmt = Math.min(dest.length, mReadBuffer.length);
-                totalBytesRead = mConnection.bulkTransfer(endpoint, mReadBuffer,
-                        readAmt, timeoutMillis);
-
-                if (totalBytesRead < MODEM_STATUS_HEADER_LENGTH) {
-                    throw new IOException("Expected at least " + MODEM_STATUS_HEADER_LENGTH + " bytes");
-                }
-  
-                return filterStatusBytes(mReadBuffer, dest, totalBytesRead, endpoint.getMaxPacketSize());
-            }
-        }
+    public UsbEndpoint getReadEndpoint() {
+        return mDevice.getInterface(0).getEndpoint(0);
     }
 
+    /**
+     * Completed requests carry the modem status header of every packet;
+     * strips them so the buffer holds serial data only.
+     */
     @Override
-    public int write(byte[] src, int timeoutMillis) throws IOException {
-        final UsbEndpoint endpoint = mDevice.getInterface(0).getEndpoint(1);
-        int offset = 0;
+    public int processAsyncRead(ByteBuffer buffer, int bytesRead) {
+        return filterStatusBytes(buffer, bytesRead, mMaxPacketSize);
+    }
 
-        while (offset < src.length) {
-            final int writeLength;
-            final int amtWritten;
+    @Override
+    public int read(byte[] dest, int timeoutMillis) throws IOException {
+        final SerialTransport transport = getTransport();
+        final int readAmt;
+        synchronized (mReadBufferLock) {
+            // mReadBuffer is only used for maximum read size.
+            readAmt = Math.min(dest.length, mReadBuffer.length);
+        }
 
-            synchronized (mWriteBufferLock) {
-                final byte[] writeBuffer;
+        // Read straight into dest and strip the headers there.
+        final int totalBytesRead = transport.read(dest, 0, readAmt, timeoutMillis);
+        if (totalBytesRead < MODEM_STATUS_HEADER_LENGTH) {
+            throw new IOException("Expected at least " + MODEM_STATUS_HEADER_LENGTH + " bytes");
+        }
 
-                writeLength = Math.min(src.length - offset, mWriteBuffer.length);
-                if (offset == 0) {
-                    writeBuffer = src;
-                } else {
-                    // bulkTransfer does not support offsets, make a copy.
-                    System.arraycopy(src, offset, mWriteBuffer, 0, writeLength);
-                    writeBuffer = mWriteBuffer;
-                }
+        return filterStatusBytes(dest, 0, totalBytesRead, mMaxPacketSize);
+    }
 
-                amtWritten = mConnection.bulkTransfer(endpoint, writeBuffer, writeLength,
-                        timeoutMillis);
-            }
+    @Override
+    public UsbEndpoint getWriteEndpoint() {
+        return mDevice.getInterface(0).getEndpoint(1);
+    }
 
-            if (amtWritten <= 0) {
-                throw new IOException("Error writing " + writeLength
-                        + " bytes at offset " + offset + " length=" + src.length);
-            }
+    /**
+     * Sets the latency timer: how long the chip holds back a partially
+     * filled packet before sending it to the host.  Lower values make short
+     * responses arrive sooner at the cost of more, smaller USB transfers.
+     *
+     * @param latencyMillis the timeout, from {@value #MIN_LATENCY_TIMER_MILLIS}
+     *            to {@value #MAX_LATENCY_TIMER_MILLIS} milliseconds
+     * @throws IOException if the device rejects the request
+     */
+    public void setLatencyTimer(int latencyMillis) throws IOException {
+        if (latencyMillis < MIN_LATENCY_TIMER_MILLIS || latencyMillis > MAX_LATENCY_TIMER_MILLIS) {
+            throw new IllegalArgumentException("Latency timer out of range: " + latencyMillis);
+        }
+        int result = controlTransfer(FTDI_DEVICE_OUT_REQTYPE,
+                SIO_SET_LATENCY_TIMER_REQUEST, latencyMillis, mIndex,
+                null, 0, USB_WRITE_TIMEOUT_MILLIS);
+        if (result != 0) {
+            throw new IOException("Setting latency timer failed: result=" + result);
+        }
+    }
 
-            Log.d(TAG, "Wrote amtWritten=" + amtWritten + " attempted=" + writeLength);
-            offset += amtWritten;
+    /**
+     * Reads the current latency timer back from the device.
+     *
+     * @return the timeout in milliseconds
+     * @throws IOException if the device rejects the request
+     */
+    public int getLatencyTimer() throws IOException {
+        final byte[] data = new byte[1];
+        int result = controlTransfer(FTDI_DEVICE_IN_REQTYPE,
+                SIO_GET_LATENCY_TIMER_REQUEST, 0, mIndex,
+                data, data.length, USB_READ_TIMEOUT_MILLIS);
+        if (result != 1) {
+            throw new IOException("Getting latency timer failed: result=" + result);
         }
-        return offset;
+        return data[0] & 0xff;
     }
 
     private int setBaudRate(int baudRate) throws IOException {
@@ -330,7 +499,7 @@ public class FtdiSerialDriver extends CommonUsbSerialDriver {
         long actualBaudrate = vals[0];
         long index = vals[1];
         long value = vals[2];
-        int result = mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE,
+        int result = controlTransfer(FTDI_DEVICE_OUT_REQTYPE,
                 SIO_SET_BAUD_RATE_REQUEST, (int) value, (int) index,
                 null, 0, USB_WRITE_TIMEOUT_MILLIS);
         if (result != 0) {
@@ -380,60 +549,143 @@ public class FtdiSerialDriver extends CommonUsbSerialDriver {
                 throw new IllegalArgumentException("Unknown stopBits value: " + stopBits);
         }
 
-        int result = mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE,
-                SIO_SET_DATA_REQUEST, config, 0 /* index */,
+        int result = controlTransfer(FTDI_DEVICE_OUT_REQTYPE,
+                SIO_SET_DATA_REQUEST, config, mIndex,
                 null, 0, USB_WRITE_TIMEOUT_MILLIS);
         if (result != 0) {
             throw new IOException("Setting parameters failed: result=" + result);
         }
     }
 
+    /**
+     * Finds the divisor for {@code baudrate} on the detected chip.
+     *
+     * @return the actual baud rate, and the "index" and "value" to send with
+     *         {@link #SIO_SET_BAUD_RATE_REQUEST}
+     */
     private long[] convertBaudrate(int baudrate) {
-        // TODO(mikey): Braindead transcription of libfti method.  Clean up,
-        // using more idiomatic Java where possible.
+        if (baudrate <= 0) {
+            throw new IllegalArgumentException("Invalid baud rate: " + baudrate);
+        }
+        final DeviceType type = mType != null ? mType : DeviceType.TYPE_R;
+
+        final int standard = Arrays.binarySearch(STANDARD_BAUD_RATES, baudrate);
+        final long divisor = standard >= 0
+                ? sDivisorTable[type.ordinal()][standard]
+                : computeDivisor(type, baudrate);
+        final long encodedDivisor = divisor >>> 32;
+
+        // Split into "value" and "index" values
+        final long value = encodedDivisor & 0xFFFF;
+        long index;
+        if (type == DeviceType.TYPE_2232C || type == DeviceType.TYPE_2232H
+                || type == DeviceType.TYPE_4232H || type == DeviceType.TYPE_232H) {
+            index = (encodedDivisor >> 8) & 0xFF00;
+            index |= mIndex;
+        } else {
+            index = (encodedDivisor >> 16) & 0xFFFF;
+        }
+
+        return new long[] {
+                divisor & 0xFFFFFFFFL, index, value
+        };
+    }
+
+    /**
+     * Computes the encoded divisor closest to {@code baudrate} for a chip
+     * type, after libftdi's ftdi_convert_baudrate().
+     *
+     * @return {@code (encodedDivisor << 32) | actualBaud}
+     */
+    static long computeDivisor(DeviceType type, int baudrate) {
+        final long[] encodedDivisor = new long[1];
+        final int actualBaud;
+        switch (type) {
+            case TYPE_AM:
+                actualBaud = toClockBitsAm(baudrate, encodedDivisor);
+                break;
+            case TYPE_2232H:
+            case TYPE_4232H:
+            case TYPE_232H:
+                if (baudrate * 10L > H_CLK / 0x3FFF) {
+                    // Use the 120 MHz clock whenever its 14 bit divisor can
+                    // reach the rate: it is the only way to 12 Mbaud.
+                    actualBaud = toClockBits(baudrate, H_CLK, 10, encodedDivisor);
+                    encodedDivisor[0] |= H_CLK_DIV_10;
+                } else {
+                    actualBaud = toClockBits(baudrate, C_CLK, 16, encodedDivisor);
+                }
+                break;
+            default:
+                actualBaud = toClockBits(baudrate, C_CLK, 16, encodedDivisor);
+                break;
+        }
+        return (encodedDivisor[0] << 32) | (actualBaud & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Divisor search for the BM generation and later, from libftdi's
+     * ftdi_to_clkbits().  Divisors of 1, 1.5 and 2 have dedicated codes;
+     * above that the divisor has three fractional bits.
+     */
+    private static int toClockBits(int baudrate, int clock, int clockDiv, long[] encodedDivisor) {
+        if (baudrate >= clock / clockDiv) {
+            encodedDivisor[0] = 0;
+            return clock / clockDiv;
+        } else if (baudrate >= clock / (clockDiv + clockDiv / 2)) {
+            encodedDivisor[0] = 1;
+            return clock / (clockDiv + clockDiv / 2);
+        } else if (baudrate >= clock / (2 * clockDiv)) {
+            encodedDivisor[0] = 2;
+            return clock / (2 * clockDiv);
+        }
+
+        // Divide by 16 instead of 8 to keep one more bit for rounding.
+        final int divisor = (int) (clock * 16L / clockDiv / baudrate);
+        int bestDivisor = (divisor & 1) != 0 ? divisor / 2 + 1 : divisor / 2;
+        if (bestDivisor > 0x20000) {
+            bestDivisor = 0x1FFFF;
+        }
+        int bestBaud = (int) (clock * 16L / clockDiv / bestDivisor);
+        bestBaud = (bestBaud & 1) != 0 ? bestBaud / 2 + 1 : bestBaud / 2;
+
+        encodedDivisor[0] = (bestDivisor >> 3) | (FRAC_CODE[bestDivisor & 7] << 14);
+        return bestBaud;
+    }
+
+    /**
+     * Divisor search for the AM, which only supports some fractions, from
+     * libftdi's ftdi_to_clkbits_AM().
+     */
+    private static int toClockBitsAm(int baudrate, long[] encodedDivisor) {
         int divisor = 24000000 / baudrate;
+        // Round down to a supported fraction.
+        divisor -= AM_ADJUST_DN[divisor & 7];
+
         int bestDivisor = 0;
         int bestBaud = 0;
         int bestBaudDiff = 0;
-        int fracCode[] = {
-                0, 3, 2, 4, 1, 5, 6, 7
-        };
 
+        // Try this divisor and the one above it, because division rounds down.
         for (int i = 0; i < 2; i++) {
             int tryDivisor = divisor + i;
-            int baudEstimate;
-            int baudDiff;
-
             if (tryDivisor <= 8) {
                 // Round up to minimum supported divisor
                 tryDivisor = 8;
-            } else if (mType != DeviceType.TYPE_AM && tryDivisor < 12) {
-                // BM doesn't support divisors 9 through 11 inclusive
-                tryDivisor = 12;
             } else if (divisor < 16) {
                 // AM doesn't support divisors 9 through 15 inclusive
                 tryDivisor = 16;
             } else {
-                if (mType == DeviceType.TYPE_AM) {
-                    // TODO
-                } else {
-                    if (tryDivisor > 0x1FFFF) {
-                        // Round down to maximum supported divisor value (for
-                        // BM)
-                        tryDivisor = 0x1FFFF;
-                    }
+                // Round up to a supported fraction.
+                tryDivisor += AM_ADJUST_UP[tryDivisor & 7];
+                if (tryDivisor > 0x1FFF8) {
+                    tryDivisor = 0x1FFF8;
                 }
             }
 
             // Get estimated baud rate (to nearest integer)
-            baudEstimate = (24000000 + (tryDivisor / 2)) / tryDivisor;
-
-            // Get absolute difference from requested baud rate
-            if (baudEstimate < baudrate) {
-                baudDiff = baudrate - baudEstimate;
-            } else {
-                baudDiff = baudEstimate - baudrate;
-            }
+            final int baudEstimate = (24000000 + (tryDivisor / 2)) / tryDivisor;
+            final int baudDiff = Math.abs(baudEstimate - baudrate);
 
             if (i == 0 || baudDiff < bestBaudDiff) {
                 // Closest to requested baud rate so far
@@ -448,68 +700,111 @@ public class FtdiSerialDriver extends CommonUsbSerialDriver {
         }
 
         // Encode the best divisor value
-        long encodedDivisor = (bestDivisor >> 3) | (fracCode[bestDivisor & 7] << 14);
+        long encoded = (bestDivisor >> 3) | (FRAC_CODE[bestDivisor & 7] << 14);
         // Deal with special cases for encoded value
-        if (encodedDivisor == 1) {
-            encodedDivisor = 0; // 3000000 baud
-        } else if (encodedDivisor == 0x4001) {
-            encodedDivisor = 1; // 2000000 baud (BM only)
+        if (encoded == 1) {
+            encoded = 0; // 3000000 baud
+        } else if (encoded == 0x4001) {
+            encoded = 1; // 2000000 baud (BM only)
         }
+        encodedDivisor[0] = encoded;
+        return bestBaud;
+    }
 
-        // Split into "value" and "index" values
-        long value = encodedDivisor & 0xFFFF;
-        long index;
-        if (mType == DeviceType.TYPE_2232C || mType == DeviceType.TYPE_2232H
-                || mType == DeviceType.TYPE_4232H) {
-            index = (encodedDivisor >> 8) & 0xffff;
-            index &= 0xFF00;
-            index |= 0 /* TODO mIndex */;
-        } else {
-            index = (encodedDivisor >> 16) & 0xffff;
+    private int getModemStatus() throws IOException {
+        final byte[] data = new byte[2];
+        int result = controlTransfer(FTDI_DEVICE_IN_REQTYPE,
+                SIO_POLL_MODEM_STATUS_REQUEST, 0, mIndex,
+                data, data.length, USB_READ_TIMEOUT_MILLIS);
+        if (result != data.length) {
+            throw new IOException("Polling modem status failed: result=" + result);
         }
+        return data[0] & 0xff;
+    }
 
-        // Return the nearest baud rate
-        return new long[] {
-                bestBaud, index, value
-        };
+    private void setModemControl(int value) throws IOException {
+        int result = controlTransfer(FTDI_DEVICE_OUT_REQTYPE,
+                SIO_MODEM_CTRL_REQUEST, value, mIndex,
+                null, 0, USB_WRITE_TIMEOUT_MILLIS);
+        if (result != 0) {
+            throw new IOException("Setting modem control failed: result=" + result);
+        }
     }
 
     @Override
     public boolean getCD() throws IOException {
-        return false;
+        return (getModemStatus() & MODEM_STATUS_RLSD) != 0;
     }
 
     @Override
     public boolean getCTS() throws IOException {
-        return false;
+        return (getModemStatus() & MODEM_STATUS_CTS) != 0;
     }
 
     @Override
     public boolean getDSR() throws IOException {
-        return false;
+        return (getModemStatus() & MODEM_STATUS_DSR) != 0;
     }
 
     @Override
     public boolean getDTR() throws IOException {
-        return false;
+        return mDtr;
     }
 
     @Override
     public void setDTR(boolean value) throws IOException {
+        setModemControl(value ? SIO_SET_DTR_HIGH : SIO_SET_DTR_LOW);
+        mDtr = value;
     }
 
     @Override
     public boolean getRI() throws IOException {
-        return false;
+        return (getModemStatus() & MODEM_STATUS_RI) != 0;
     }
 
     @Override
     public boolean getRTS() throws IOException {
-        return false;
+        return mRts;
     }
 
     @Override
     public void setRTS(boolean value) throws IOException {
+        setModemControl(value ? SIO_SET_RTS_HIGH : SIO_SET_RTS_LOW);
+        mRts = value;
+    }
+
+    /**
+     * The chip handshakes in both directions at once, so either RTS/CTS flag
+     * enables RTS/CTS, and either XON/XOFF flag enables XON/XOFF.  The two
+     * cannot be combined.
+     */
+    @Override
+    public void setFlowControl(int flowControl) throws IOException {
+        checkFlowControl(flowControl);
+
+        final boolean xonXoff = (flowControl
+                & (FLOWCONTROL_XONXOFF_IN | FLOWCONTROL_XONXOFF_OUT)) != 0;
+        final int mode;
+        int value = 0;
+        if (isRtsCts(flowControl)) {
+            if (xonXoff) {
+                throw new IllegalArgumentException("RTS/CTS and XON/XOFF are exclusive");
+            }
+            mode = SIO_RTS_CTS_HS;
+        } else if (xonXoff) {
+            mode = SIO_XON_XOFF_HS;
+            value = XON_CHAR | (XOFF_CHAR << 8);
+        } else {
+            mode = SIO_DISABLE_FLOW_CTRL;
+        }
+
+        int result = controlTransfer(FTDI_DEVICE_OUT_REQTYPE,
+                SIO_SET_FLOW_CTRL_REQUEST, value, mode | mIndex,
+                null, 0, USB_WRITE_TIMEOUT_MILLIS);
+        if (result != 0) {
+            throw new IOException("Setting flow control failed: result=" + result);
+        }
+        mFlowControl = flowControl;
     }
 
     public static Map<Integer, int[]> getSupportedDevices() {
@@ -517,6 +812,9 @@ public class FtdiSerialDriver extends CommonUsbSerialDriver {
         supportedDevices.put(Integer.valueOf(UsbId.VENDOR_FTDI),
                 new int[] {
                     UsbId.FTDI_FT232R,
+                    UsbId.FTDI_FT2232,
+                    UsbId.FTDI_FT4232H,
+                    UsbId.FTDI_FT232H,
                 });
         return supportedDevices;
     }
@@ -0,0 +1,307 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.driver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * An in-memory {@link SerialTransport}, so everything above the transport
+ * can run and be measured without a device.
+ * <p>
+ * Each direction is a bounded byte pipe that models a serial link: bytes
+ * written are serialized at the configured bandwidth and become readable
+ * after the configured latency, and writers wait while the pipe is full, as
+ * they would on a stalled USB endpoint.  {@link #LoopbackTransport(long, long, int)}
+ * echoes every write back to the reader; {@link #createPair(long, long, int)}
+ * connects two ends crosswise, for a host and a device emulator.
+ * <p>
+ * Transfers do not allocate, and any number of threads may use an end.
+ */
+public class LoopbackTransport implements SerialTransport {
+
+    /** Unlimited bandwidth. */
+    public static final long UNLIMITED = 0;
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    /**
+     * Receives the control requests sent to an end.
+     */
+    public interface ControlHandler {
+        /**
+         * @return the result to report, as for {@link SerialTransport#controlTransfer}
+         */
+        public int onControlTransfer(int requestType, int request, int value, int index,
+                byte[] buffer, int length);
+    }
+
+    private final Pipe mIn;
+    private final Pipe mOut;
+
+    private volatile ControlHandler mControlHandler;
+
+    private volatile boolean mOpen = false;
+
+    /**
+     * Creates an end whose writes come back on its own reads.
+     *
+     * @param bytesPerSecond the link bandwidth, or {@link #UNLIMITED}
+     * @param latencyNanos the delay from the end of a write to its bytes
+     *            becoming readable
+     * @param capacity the number of bytes buffered in the link
+     */
+    public LoopbackTransport(long bytesPerSecond, long latencyNanos, int capacity) {
+        mIn = new Pipe(bytesPerSecond, latencyNanos, capacity);
+        mOut = mIn;
+    }
+
+    private LoopbackTransport(Pipe in, Pipe out) {
+        mIn = in;
+        mOut = out;
+    }
+
+    /**
+     * Creates two connected ends: what one writes, the other reads.  Both
+     * directions have the given bandwidth and latency.
+     */
+    public static LoopbackTransport[] createPair(long bytesPerSecond, long latencyNanos,
+            int capacity) {
+        final Pipe forward = new Pipe(bytesPerSecond, latencyNanos, capacity);
+        final Pipe backward = new Pipe(bytesPerSecond, latencyNanos, capacity);
+        return new LoopbackTransport[] {
+                new LoopbackTransport(backward, forward),
+                new LoopbackTransport(forward, backward)
+        };
+    }
+
+    /**
+     * Sets the handler answering control requests.  Without one every
+     * request succeeds and IN requests read zeros.
+     */
+    public void setControlHandler(ControlHandler handler) {
+        mControlHandler = handler;
+    }
+
+    /**
+     * Returns the number of bytes written to this end that the other end has
+     * not read yet, including those still in flight.
+     */
+    public int getPendingWriteBytes() {
+        return mOut.size();
+    }
+
+    @Override
+    public void open() throws IOException {
+        mOpen = true;
+    }
+
+    /**
+     * Closes this end and wakes anyone blocked on it; reads from the other
+     * end drain what was already written and then fail.
+     */
+    @Override
+    public void close() throws IOException {
+        mOpen = false;
+        mIn.close();
+        mOut.close();
+    }
+
+    @Override
+    public int read(byte[] dest, int offset, int length, int timeoutMillis) throws IOException {
+        checkOpen();
+        return mIn.read(dest, offset, length, timeoutMillis);
+    }
+
+    @Override
+    public int write(byte[] src, int offset, int length, int timeoutMillis) throws IOException {
+        checkOpen();
+        return mOut.write(src, offset, length, timeoutMillis);
+    }
+
+    @Override
+    public int controlTransfer(int requestType, int request, int value, int index,
+            byte[] buffer, int length, int timeoutMillis) throws IOException {
+        checkOpen();
+        final ControlHandler handler = mControlHandler;
+        if (handler != null) {
+            return handler.onControlTransfer(requestType, request, value, index, buffer, length);
+        }
+        if (buffer != null && (requestType & 0x80) != 0) {
+            for (int i = 0; i < length; i++) {
+                buffer[i] = 0;
+            }
+        }
+        return length;
+    }
+
+    private void checkOpen() throws IOException {
+        if (!mOpen) {
+            throw new IOException("Transport is not open");
+        }
+    }
+
+    /**
+     * One direction of the link: a byte ring plus a ring of marks recording
+     * when each write becomes readable.
+     */
+    private static final class Pipe {
+
+        private static final int MAX_MARKS = 1024;
+
+        private final double mNanosPerByte;
+        private final long mLatencyNanos;
+
+        private final byte[] mData;
+        private long mHead = 0;
+        private long mTail = 0;
+
+        private final long[] mMarkEnd = new long[MAX_MARKS];
+        private final long[] mMarkTime = new long[MAX_MARKS];
+        private long mMarkHead = 0;
+        private long mMarkTail = 0;
+
+        /** When the link finishes sending what has been written so far. */
+        private long mBusyUntil = 0;
+
+        private boolean mClosed = false;
+
+        Pipe(long bytesPerSecond, long latencyNanos, int capacity) {
+            mNanosPerByte = bytesPerSecond == UNLIMITED ? 0 : 1e9 / bytesPerSecond;
+            mLatencyNanos = latencyNanos;
+            mData = new byte[capacity];
+        }
+
+        synchronized int size() {
+            return (int) (mTail - mHead);
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        synchronized int write(byte[] src, int offset, int length, int timeoutMillis)
+                throws IOException {
+            final long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+            while (!mClosed && (mTail - mHead == mData.length || mMarkTail - mMarkHead == MAX_MARKS)) {
+                if (!await(deadline)) {
+                    return 0;
+                }
+            }
+            if (mClosed) {
+                throw new IOException("Transport closed");
+            }
+
+            final int count = (int) Math.min(length, mData.length - (mTail - mHead));
+            final int tail = (int) (mTail % mData.length);
+            final int first = Math.min(count, mData.length - tail);
+            System.arraycopy(src, offset, mData, tail, first);
+            System.arraycopy(src, offset + first, mData, 0, count - first);
+            mTail += count;
+
+            final long now = System.nanoTime();
+            mBusyUntil = Math.max(mBusyUntil, now) + (long) (count * mNanosPerByte);
+            final int mark = (int) (mMarkTail++ % MAX_MARKS);
+            mMarkEnd[mark] = mTail;
+            mMarkTime[mark] = mBusyUntil + mLatencyNanos;
+
+            notifyAll();
+            return count;
+        }
+
+        synchronized int read(byte[] dest, int offset, int length, int timeoutMillis)
+                throws IOException {
+            final long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+            long readable;
+            while (true) {
+                final long now = System.nanoTime();
+                readable = readableEnd(now) - mHead;
+                if (readable > 0) {
+                    break;
+                }
+                if (mClosed && mHead == mTail) {
+                    throw new IOException("Transport closed");
+                }
+                if (now >= deadline) {
+                    return 0;
+                }
+
+                // Sleep until the next write arrives, or the deadline.
+                long wakeAt = deadline;
+                if (mMarkHead < mMarkTail) {
+                    wakeAt = Math.min(wakeAt, mMarkTime[(int) (mMarkHead % MAX_MARKS)]);
+                }
+                await(wakeAt);
+            }
+
+            final int count = (int) Math.min(length, readable);
+            final int head = (int) (mHead % mData.length);
+            final int first = Math.min(count, mData.length - head);
+            System.arraycopy(mData, head, dest, offset, first);
+            System.arraycopy(mData, 0, dest, offset + first, count - first);
+            mHead += count;
+            while (mMarkHead < mMarkTail && mMarkEnd[(int) (mMarkHead % MAX_MARKS)] <= mHead) {
+                mMarkHead++;
+            }
+
+            notifyAll();
+            return count;
+        }
+
+        /**
+         * Returns the end of the data that has arrived by {@code now}.
+         */
+        private long readableEnd(long now) {
+            long end = mHead;
+            for (long mark = mMarkHead; mark < mMarkTail; mark++) {
+                final int index = (int) (mark % MAX_MARKS);
+                if (mMarkTime[index] > now) {
+                    break;
+                }
+                end = mMarkEnd[index];
+            }
+            return end;
+        }
+
+        /**
+         * Waits until notified or {@code wakeAt}.
+         *
+         * @return {@code false} if {@code wakeAt} had already passed
+         * @throws InterruptedIOException if interrupted while waiting
+         */
+        private boolean await(long wakeAt) throws IOException {
+            final long remaining = wakeAt - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining / 1000000L, (int) (remaining % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted in transfer");
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.driver;
+
+import java.io.IOException;
+
+/**
+ * The byte pipe beneath a serial driver: bulk data in each direction plus
+ * vendor control requests.  {@link UsbSerialTransport} runs it over a USB
+ * connection; {@link LoopbackTransport} keeps it in memory so the data path
+ * above it can run without a device.
+ */
+public interface SerialTransport {
+
+    /**
+     * Prepares the transport for transfers.
+     *
+     * @throws IOException if it cannot be opened
+     */
+    public void open() throws IOException;
+
+    /**
+     * Releases the transport; pending and later transfers fail.
+     *
+     * @throws IOException if an error occurred while closing
+     */
+    public void close() throws IOException;
+
+    /**
+     * Reads up to {@code length} bytes into {@code dest} at {@code offset},
+     * waiting up to {@code timeoutMillis} for the first of them.
+     *
+     * @return the number of bytes read, {@code 0} on timeout
+     * @throws IOException if the transfer failed
+     */
+    public int read(byte[] dest, int offset, int length, int timeoutMillis) throws IOException;
+
+    /**
+     * Writes up to {@code length} bytes from {@code src} at {@code offset}.
+     *
+     * @return the number of bytes accepted, {@code 0} on timeout
+     * @throws IOException if the transfer failed
+     */
+    public int write(byte[] src, int offset, int length, int timeoutMillis) throws IOException;
+
+    /**
+     * Performs a control transfer on the default endpoint, with the same
+     * arguments and result as
+     * {@link android.hardware.usb.UsbDeviceConnection#controlTransfer(int, int, int, int, byte[], int, int)}.
+     *
+     * @return the number of bytes transferred, or a negative value on failure
+     * @throws IOException if the transport is closed
+     */
+    public int controlTransfer(int requestType, int request, int value, int index,
+            byte[] buffer, int length, int timeoutMillis) throws IOException;
+
+}
@@ -0,0 +1,193 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.driver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link UsbSerialDriver} for a device that needs no vendor protocol, on
+ * any {@link SerialTransport}.  Serial parameters, modem lines and flow
+ * control are recorded but not sent anywhere.
+ * <p>
+ * Over a {@link LoopbackTransport} this runs the host data path, for
+ * example a {@link com.hoho.android.usbserial.util.SerialInputOutputManager},
+ * on a plain JVM; {@code build-jvm.xml} builds and tests it that way.
+ */
+public class TransportSerialDriver implements UsbSerialDriver {
+
+    private static final int GATHER_BUFFER_SIZE = 16 * 1024;
+
+    private final SerialTransport mTransport;
+
+    private final byte[] mGatherBuffer = new byte[GATHER_BUFFER_SIZE];
+
+    private volatile int mBaudRate;
+    private volatile int mDataBits;
+    private volatile int mStopBits;
+    private volatile int mParity;
+    private volatile int mFlowControl = FLOWCONTROL_NONE;
+    private volatile boolean mDtr = false;
+    private volatile boolean mRts = false;
+
+    public TransportSerialDriver(SerialTransport transport) {
+        mTransport = transport;
+    }
+
+    public SerialTransport getTransport() {
+        return mTransport;
+    }
+
+    @Override
+    public void open() throws IOException {
+        mTransport.open();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mTransport.close();
+    }
+
+    @Override
+    public int read(byte[] dest, int timeoutMillis) throws IOException {
+        return mTransport.read(dest, 0, dest.length, timeoutMillis);
+    }
+
+    @Override
+    public int write(byte[] src, int timeoutMillis) throws IOException {
+        return write(src, 0, src.length, timeoutMillis);
+    }
+
+    @Override
+    public int write(byte[] src, int offset, int length, int timeoutMillis) throws IOException {
+        int written = 0;
+        while (written < length) {
+            final int amtWritten = mTransport.write(src, offset + written, length - written,
+                    timeoutMillis);
+            if (amtWritten <= 0) {
+                throw new IOException("Error writing " + (length - written)
+                        + " bytes at offset " + (offset + written) + " length=" + length);
+            }
+            written += amtWritten;
+        }
+        return written;
+    }
+
+    @Override
+    public int write(ByteBuffer[] srcs, int timeoutMillis) throws IOException {
+        int written = 0;
+        synchronized (mGatherBuffer) {
+            int pending = 0;
+            for (final ByteBuffer src : srcs) {
+                while (src.hasRemaining()) {
+                    final int count = Math.min(src.remaining(), mGatherBuffer.length - pending);
+                    src.get(mGatherBuffer, pending, count);
+                    pending += count;
+                    if (pending == mGatherBuffer.length) {
+                        written += write(mGatherBuffer, 0, pending, timeoutMillis);
+                        pending = 0;
+                    }
+                }
+            }
+            if (pending > 0) {
+                written += write(mGatherBuffer, 0, pending, timeoutMillis);
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public void setParameters(int baudRate, int dataBits, int stopBits, int parity)
+            throws IOException {
+        mBaudRate = baudRate;
+        mDataBits = dataBits;
+        mStopBits = stopBits;
+        mParity = parity;
+    }
+
+    public int getBaudRate() {
+        return mBaudRate;
+    }
+
+    public int getDataBits() {
+        return mDataBits;
+    }
+
+    public int getStopBits() {
+        return mStopBits;
+    }
+
+    public int getParity() {
+        return mParity;
+    }
+
+    @Override
+    public boolean getCD() throws IOException {
+        return false;
+    }
+
+    @Override
+    public boolean getCTS() throws IOException {
+        return false;
+    }
+
+    @Override
+    public boolean getDSR() throws IOException {
+        return false;
+    }
+
+    @Override
+    public boolean getDTR() throws IOException {
+        return mDtr;
+    }
+
+    @Override
+    public void setDTR(boolean value) throws IOException {
+        mDtr = value;
+    }
+
+    @Override
+    public boolean getRI() throws IOException {
+        return false;
+    }
+
+    @Override
+    public boolean getRTS() throws IOException {
+        return mRts;
+    }
+
+    @Override
+    public void setRTS(boolean value) throws IOException {
+        mRts = value;
+    }
+
+    @Override
+    public void setFlowControl(int flowControl) throws IOException {
+        mFlowControl = flowControl;
+    }
+
+    @Override
+    public int getFlowControl() {
+        return mFlowControl;
+    }
+
+}
@@ -21,6 +21,7 @@
 package com.hoho.android.usbserial.driver;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Driver interface for a USB serial device.
@@ -115,6 +116,32 @@ public interface UsbSerialDriver {
      */
     public int write(final byte[] src, final int timeoutMillis) throws IOException;
 
+    /**
+     * Writes {@code length} bytes starting at {@code offset} of the source
+     * buffer.
+     *
+     * @param src the source byte buffer
+     * @param offset the index of the first byte to write
+     * @param length the number of bytes to write
+     * @param timeoutMillis the timeout for writing
+     * @return the actual number of bytes written
+     * @throws IOException if an error occurred during writing
+     */
+    public int write(final byte[] src, final int offset, final int length,
+            final int timeoutMillis) throws IOException;
+
+    /**
+     * Writes the remaining bytes of each buffer in turn, gathering several
+     * small buffers (for example whole frames) into a single USB transfer.
+     * Each buffer's position is advanced past the bytes written.
+     *
+     * @param srcs the source buffers, heap or direct
+     * @param timeoutMillis the timeout for each transfer
+     * @return the actual number of bytes written
+     * @throws IOException if an error occurred during writing
+     */
+    public int write(final ByteBuffer[] srcs, final int timeoutMillis) throws IOException;
+
     /**
      * Sets various serial port parameters.
      *
@@ -197,4 +224,23 @@ public interface UsbSerialDriver {
      */
     public void setRTS(boolean value) throws IOException;
 
+    /**
+     * Sets the flow control mode of the underlying UART.
+     *
+     * @param flowControl {@link #FLOWCONTROL_NONE}, or a combination of the
+     *            {@code FLOWCONTROL_RTSCTS_*} and {@code FLOWCONTROL_XONXOFF_*}
+     *            values
+     * @throws IllegalArgumentException if the device does not support the
+     *             requested mode
+     * @throws IOException if an error occurred during writing
+     */
+    public void setFlowControl(int flowControl) throws IOException;
+
+    /**
+     * Gets the flow control mode last set with {@link #setFlowControl(int)}.
+     *
+     * @return the mode, {@link #FLOWCONTROL_NONE} by default
+     */
+    public int getFlowControl();
+
 }
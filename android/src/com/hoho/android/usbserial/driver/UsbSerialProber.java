@@ -26,6 +26,7 @@ import android.hardware.usb.UsbManager;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -43,12 +44,18 @@ import java.util.Map;
  * method will either return an empty list (device unknown / unsupported) or a
  * singleton list. However, multi-port drivers may return multiple instances.
  *
+ * <p/>
+ * Matching a device is a single lookup in a vendor/product index built once
+ * from every driver's supported devices, and its result is cached per device
+ * until {@link #invalidate(UsbDevice)} is called on detach.  No connection is
+ * opened until a driver is actually created, see
+ * {@link #findSupportedDevices(UsbManager)} and
+ * {@link #openDriver(UsbManager, UsbDevice)}.
+ *
  * @author mike wakerly (opensource@hoho.com)
  */
 public enum UsbSerialProber {
 
-    // TODO(mikey): Too much boilerplate.
-
     /**
      * Prober for {@link FtdiSerialDriver}.
      *
@@ -56,49 +63,64 @@ public enum UsbSerialProber {
      */
     FTDI_SERIAL {
         @Override
-        public List<UsbSerialDriver> probe(final UsbManager manager, final UsbDevice usbDevice) {
-            if (!testIfSupported(usbDevice, FtdiSerialDriver.getSupportedDevices())) {
-                return Collections.emptyList();
-            }
-            final UsbDeviceConnection connection = manager.openDevice(usbDevice);
-            if (connection == null) {
-                return Collections.emptyList();
-            }
-            final UsbSerialDriver driver = new FtdiSerialDriver(usbDevice, connection);
-            return Collections.singletonList(driver);
+        protected Map<Integer, int[]> getSupportedDevices() {
+            return FtdiSerialDriver.getSupportedDevices();
+        }
+
+        @Override
+        protected UsbSerialDriver createDriver(UsbDevice usbDevice, UsbDeviceConnection connection) {
+            return new FtdiSerialDriver(usbDevice, connection);
         }
     },
 
     CDC_ACM_SERIAL {
         @Override
-        public List<UsbSerialDriver> probe(UsbManager manager, UsbDevice usbDevice) {
-            if (!testIfSupported(usbDevice, CdcAcmSerialDriver.getSupportedDevices())) {
-               return Collections.emptyList();
-            }
-            final UsbDeviceConnection connection = manager.openDevice(usbDevice);
-            if (connection == null) {
-                return Collections.emptyList();
-            }
-            final UsbSerialDriver driver = new CdcAcmSerialDriver(usbDevice, connection);
-            return Collections.singletonList(driver);
+        protected Map<Integer, int[]> getSupportedDevices() {
+            return CdcAcmSerialDriver.getSupportedDevices();
+        }
+
+        @Override
+        protected UsbSerialDriver createDriver(UsbDevice usbDevice, UsbDeviceConnection connection) {
+            return new CdcAcmSerialDriver(usbDevice, connection);
         }
     },
 
     SILAB_SERIAL {
         @Override
-        public List<UsbSerialDriver> probe(final UsbManager manager, final UsbDevice usbDevice) {
-            if (!testIfSupported(usbDevice, Cp2102SerialDriver.getSupportedDevices())) {
-                return Collections.emptyList();
-            }
-            final UsbDeviceConnection connection = manager.openDevice(usbDevice);
-            if (connection == null) {
-                return Collections.emptyList();
-            }
-            final UsbSerialDriver driver = new Cp2102SerialDriver(usbDevice, connection);
-            return Collections.singletonList(driver);
+        protected Map<Integer, int[]> getSupportedDevices() {
+            return Cp2102SerialDriver.getSupportedDevices();
+        }
+
+        @Override
+        protected UsbSerialDriver createDriver(UsbDevice usbDevice, UsbDeviceConnection connection) {
+            return new Cp2102SerialDriver(usbDevice, connection);
         }
     };
 
+    /**
+     * Maps {@code (vendorId << 16) | productId} to the prober that handles
+     * it.  Built once, read only afterwards.
+     */
+    private static final Map<Integer, UsbSerialProber> sIndex = buildIndex();
+
+    /**
+     * Probe results keyed by device name; a {@code null} value records an
+     * unsupported device.  Guarded by itself.
+     */
+    private static final Map<String, UsbSerialProber> sProbeCache =
+            new HashMap<String, UsbSerialProber>();
+
+    /**
+     * Returns the vendor/product map of the driver this prober creates.
+     */
+    protected abstract Map<Integer, int[]> getSupportedDevices();
+
+    /**
+     * Creates this prober's driver on an opened connection.
+     */
+    protected abstract UsbSerialDriver createDriver(UsbDevice usbDevice,
+            UsbDeviceConnection connection);
+
     /**
      * Tests the supplied {@link UsbDevice} for compatibility with this enum
      * member, returning one or more driver instances if compatible.
@@ -108,7 +130,107 @@ public enum UsbSerialProber {
      * @return zero or more {@link UsbSerialDriver}, depending on compatibility
      *         (never {@code null}).
      */
-    protected abstract List<UsbSerialDriver> probe(final UsbManager manager, final UsbDevice usbDevice);
+    protected List<UsbSerialDriver> probe(final UsbManager manager, final UsbDevice usbDevice) {
+        if (getProber(usbDevice) != this) {
+            return Collections.emptyList();
+        }
+        final UsbDeviceConnection connection = manager.openDevice(usbDevice);
+        if (connection == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(createDriver(usbDevice, connection));
+    }
+
+    private static Map<Integer, UsbSerialProber> buildIndex() {
+        final Map<Integer, UsbSerialProber> index = new HashMap<Integer, UsbSerialProber>();
+        for (final UsbSerialProber prober : values()) {
+            for (final Map.Entry<Integer, int[]> vendor : prober.getSupportedDevices().entrySet()) {
+                for (final int productId : vendor.getValue()) {
+                    final Integer key = Integer.valueOf(deviceKey(vendor.getKey().intValue(), productId));
+                    // First prober wins, as it did when probers ran in order.
+                    if (!index.containsKey(key)) {
+                        index.put(key, prober);
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    private static int deviceKey(int vendorId, int productId) {
+        return (vendorId << 16) | (productId & 0xffff);
+    }
+
+    /**
+     * Returns the prober whose driver supports {@code usbDevice}, without
+     * opening it.
+     *
+     * @return the prober, or {@code null} if no driver supports the device
+     */
+    public static UsbSerialProber getProber(final UsbDevice usbDevice) {
+        final String name = usbDevice.getDeviceName();
+        synchronized (sProbeCache) {
+            if (sProbeCache.containsKey(name)) {
+                return sProbeCache.get(name);
+            }
+        }
+
+        final UsbSerialProber prober = sIndex.get(
+                Integer.valueOf(deviceKey(usbDevice.getVendorId(), usbDevice.getProductId())));
+        synchronized (sProbeCache) {
+            sProbeCache.put(name, prober);
+        }
+        return prober;
+    }
+
+    /**
+     * Forgets the cached probe result of a device; call when it is detached,
+     * since the bus may hand its name to the next device plugged in.
+     */
+    public static void invalidate(final UsbDevice usbDevice) {
+        synchronized (sProbeCache) {
+            sProbeCache.remove(usbDevice.getDeviceName());
+        }
+    }
+
+    /**
+     * Forgets every cached probe result.
+     */
+    public static void invalidateAll() {
+        synchronized (sProbeCache) {
+            sProbeCache.clear();
+        }
+    }
+
+    /**
+     * Returns every {@link UsbDevice} on the bus that a driver supports,
+     * without opening any of them.
+     */
+    public static List<UsbDevice> findSupportedDevices(final UsbManager usbManager) {
+        final List<UsbDevice> result = new ArrayList<UsbDevice>();
+        for (final UsbDevice usbDevice : usbManager.getDeviceList().values()) {
+            if (getProber(usbDevice) != null) {
+                result.add(usbDevice);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Opens {@code usbDevice} and creates its driver.
+     *
+     * @return the driver, or {@code null} if the device is unsupported or
+     *         could not be opened
+     */
+    public static UsbSerialDriver openDriver(final UsbManager usbManager,
+            final UsbDevice usbDevice) {
+        final UsbSerialProber prober = getProber(usbDevice);
+        if (prober == null) {
+            return null;
+        }
+        final List<UsbSerialDriver> drivers = prober.probe(usbManager, usbDevice);
+        return drivers.isEmpty() ? null : drivers.get(0);
+    }
 
     /**
      * Creates and returns a new {@link UsbSerialDriver} instance for the first
@@ -125,12 +247,10 @@ public enum UsbSerialProber {
      *         none are available.
      */
     public static UsbSerialDriver findFirstDevice(final UsbManager usbManager) {
-        for (final UsbDevice usbDevice : usbManager.getDeviceList().values()) {
-            for (final UsbSerialProber prober : values()) {
-                final List<UsbSerialDriver> probedDevices = prober.probe(usbManager, usbDevice);
-                if (!probedDevices.isEmpty()) {
-                    return probedDevices.get(0);
-                }
+        for (final UsbDevice usbDevice : findSupportedDevices(usbManager)) {
+            final UsbSerialDriver driver = openDriver(usbManager, usbDevice);
+            if (driver != null) {
+                return driver;
             }
         }
         return null;
@@ -139,16 +259,15 @@ public enum UsbSerialProber {
     /**
      * Creates a new {@link UsbSerialDriver} instance for all compatible
      * {@link UsbDevice}s found on the bus. If no compatible devices are found,
-     * the list will be empty.
+     * the list will be empty.  This opens every compatible device; prefer
+     * {@link #findSupportedDevices(UsbManager)} when only one will be used.
      *
      * @param usbManager
      * @return
      */
     public static List<UsbSerialDriver> findAllDevices(final UsbManager usbManager) {
         final List<UsbSerialDriver> result = new ArrayList<UsbSerialDriver>();
-
-        // For each UsbDevice, call probe() for each prober.
-        for (final UsbDevice usbDevice : usbManager.getDeviceList().values()) {
+        for (final UsbDevice usbDevice : findSupportedDevices(usbManager)) {
             result.addAll(probeSingleDevice(usbManager, usbDevice));
         }
         return result;
@@ -169,12 +288,11 @@ public enum UsbSerialProber {
      */
     public static List<UsbSerialDriver> probeSingleDevice(final UsbManager usbManager,
             UsbDevice usbDevice) {
-        final List<UsbSerialDriver> result = new ArrayList<UsbSerialDriver>();
-        for (final UsbSerialProber prober : values()) {
-            final List<UsbSerialDriver> probedDevices = prober.probe(usbManager, usbDevice);
-            result.addAll(probedDevices);
+        final UsbSerialProber prober = getProber(usbDevice);
+        if (prober == null) {
+            return new ArrayList<UsbSerialDriver>();
         }
-        return result;
+        return new ArrayList<UsbSerialDriver>(prober.probe(usbManager, usbDevice));
     }
 
     /**
@@ -204,29 +322,4 @@ public enum UsbSerialProber {
         return null;
     }
 
-    /**
-     * Returns {@code true} if the given device is found in the driver's
-     * vendor/product map.
-     *
-     * @param usbDevice the device to test
-     * @param supportedDevices map of vendor IDs to product ID(s)
-     * @return {@code true} if supported
-     */
-    private static boolean testIfSupported(final UsbDevice usbDevice,
-            final Map<Integer, int[]> supportedDevices) {
-        final int[] supportedProducts = supportedDevices.get(
-                Integer.valueOf(usbDevice.getVendorId()));
-        if (supportedProducts == null) {
-            return false;
-        }
-
-        final int productId = usbDevice.getProductId();
-        for (int supportedProductId : supportedProducts) {
-            if (productId == supportedProductId) {
-                return true;
-            }
-        }
-        return false;
-    }
-
 }
@@ -0,0 +1,183 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.os.Build;
+
+import java.io.IOException;
+
+/**
+ * A {@link SerialTransport} over a pair of bulk endpoints of an opened USB
+ * connection.  The vendor drivers open one once they have claimed their
+ * interfaces and do all their bulk and control I/O through it.
+ * <p>
+ * Below API 18 bulk transfers cannot start at an offset into the buffer;
+ * such transfers go through a scratch buffer instead.
+ */
+public class UsbSerialTransport implements SerialTransport {
+
+    /**
+     * First platform release (JELLY_BEAN_MR2) with a bulkTransfer() that
+     * takes an offset into the buffer.
+     */
+    private static final int OFFSET_TRANSFERS_MIN_SDK = 18;
+
+    private final UsbDeviceConnection mConnection;
+    private final UsbInterface mInterface;
+    private final UsbEndpoint mReadEndpoint;
+    private final UsbEndpoint mWriteEndpoint;
+    private final boolean mOffsetTransfers;
+
+    private final Object mReadBufferLock = new Object();
+    private final Object mWriteBufferLock = new Object();
+
+    /** Used below API 18 to move data to offset 0.  Guarded by mReadBufferLock. */
+    private byte[] mReadBuffer = new byte[0];
+
+    /** Used below API 18 to move data to offset 0.  Guarded by mWriteBufferLock. */
+    private byte[] mWriteBuffer = new byte[0];
+
+    private volatile boolean mOpen = false;
+
+    /**
+     * @param connection an opened connection
+     * @param usbInterface the interface to claim on {@link #open()}, or
+     *            {@code null} if the caller claims it
+     * @param readEndpoint the bulk IN endpoint
+     * @param writeEndpoint the bulk OUT endpoint
+     */
+    public UsbSerialTransport(UsbDeviceConnection connection, UsbInterface usbInterface,
+            UsbEndpoint readEndpoint, UsbEndpoint writeEndpoint) {
+        this(connection, usbInterface, readEndpoint, writeEndpoint,
+                Build.VERSION.SDK_INT >= OFFSET_TRANSFERS_MIN_SDK);
+    }
+
+    /**
+     * @param offsetTransfers whether the platform supports bulk transfers at
+     *            an offset
+     */
+    UsbSerialTransport(UsbDeviceConnection connection, UsbInterface usbInterface,
+            UsbEndpoint readEndpoint, UsbEndpoint writeEndpoint, boolean offsetTransfers) {
+        mConnection = connection;
+        mInterface = usbInterface;
+        mReadEndpoint = readEndpoint;
+        mWriteEndpoint = writeEndpoint;
+        mOffsetTransfers = offsetTransfers;
+    }
+
+    @Override
+    public void open() throws IOException {
+        if (mInterface != null && !mConnection.claimInterface(mInterface, true)) {
+            throw new IOException("Error claiming interface " + mInterface);
+        }
+        mOpen = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOpen = false;
+        if (mInterface != null) {
+            mConnection.releaseInterface(mInterface);
+        }
+    }
+
+    @Override
+    public int read(byte[] dest, int offset, int length, int timeoutMillis) throws IOException {
+        checkOpen();
+        if (offset == 0) {
+            return Math.max(bulkTransfer(mReadEndpoint, dest, length, timeoutMillis), 0);
+        }
+        if (mOffsetTransfers) {
+            return Math.max(bulkTransfer(mReadEndpoint, dest, offset, length, timeoutMillis), 0);
+        }
+        synchronized (mReadBufferLock) {
+            if (mReadBuffer.length < length) {
+                mReadBuffer = new byte[length];
+            }
+            final int read = bulkTransfer(mReadEndpoint, mReadBuffer, length, timeoutMillis);
+            if (read <= 0) {
+                // -1 is a timeout as often as an error.
+                return 0;
+            }
+            System.arraycopy(mReadBuffer, 0, dest, offset, read);
+            return read;
+        }
+    }
+
+    @Override
+    public int write(byte[] src, int offset, int length, int timeoutMillis) throws IOException {
+        checkOpen();
+        final int written;
+        if (offset == 0) {
+            written = bulkTransfer(mWriteEndpoint, src, length, timeoutMillis);
+        } else if (mOffsetTransfers) {
+            written = bulkTransfer(mWriteEndpoint, src, offset, length, timeoutMillis);
+        } else {
+            synchronized (mWriteBufferLock) {
+                if (mWriteBuffer.length < length) {
+                    mWriteBuffer = new byte[length];
+                }
+                System.arraycopy(src, offset, mWriteBuffer, 0, length);
+                written = bulkTransfer(mWriteEndpoint, mWriteBuffer, length, timeoutMillis);
+            }
+        }
+        if (written < 0) {
+            throw new IOException("Error writing " + length + " bytes");
+        }
+        return written;
+    }
+
+    @Override
+    public int controlTransfer(int requestType, int request, int value, int index,
+            byte[] buffer, int length, int timeoutMillis) throws IOException {
+        checkOpen();
+        return mConnection.controlTransfer(requestType, request, value, index, buffer, length,
+                timeoutMillis);
+    }
+
+    /**
+     * Transfers from offset 0, see
+     * {@link UsbDeviceConnection#bulkTransfer(UsbEndpoint, byte[], int, int)}.
+     */
+    protected int bulkTransfer(UsbEndpoint endpoint, byte[] buffer, int length,
+            int timeoutMillis) {
+        return mConnection.bulkTransfer(endpoint, buffer, length, timeoutMillis);
+    }
+
+    /**
+     * Transfers from {@code offset}, only called from API 18 on.
+     */
+    protected int bulkTransfer(UsbEndpoint endpoint, byte[] buffer, int offset, int length,
+            int timeoutMillis) {
+        return mConnection.bulkTransfer(endpoint, buffer, offset, length, timeoutMillis);
+    }
+
+    private void checkOpen() throws IOException {
+        if (!mOpen) {
+            throw new IOException("Transport is not open");
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.util;
+
+import android.util.Log;
+
+/**
+ * {@link SerialLog} on {@link Log}, created by {@link SerialLog#getDefault()}
+ * on a device.
+ */
+class AndroidSerialLog extends SerialLog {
+
+    @Override
+    public void d(String tag, String msg) {
+        Log.d(tag, msg);
+    }
+
+    @Override
+    public void i(String tag, String msg) {
+        Log.i(tag, msg);
+    }
+
+    @Override
+    public void w(String tag, String msg, Throwable tr) {
+        Log.w(tag, msg, tr);
+    }
+
+}
@@ -0,0 +1,141 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed set of equally sized {@link ByteBuffer}s that are handed out and
+ * returned instead of allocated, bounding the memory used for received data.
+ * <p>
+ * Acquiring and releasing are thread safe and do not allocate once the pool
+ * has been created. The pool knows which of its buffers are handed out, so
+ * releasing a buffer twice or one it never handed out fails instead of
+ * giving the same buffer to two readers.
+ */
+public class BufferPool {
+
+    private final ArrayBlockingQueue<ByteBuffer> mFree;
+    // every buffer of the pool and whether it is handed out, guarded by mBuffers
+    private final ByteBuffer[] mBuffers;
+    private final boolean[] mAcquired;
+    private final int mBufferSize;
+    private final int mCount;
+    private final boolean mDirect;
+
+    /**
+     * @param count the number of buffers
+     * @param bufferSize the capacity of each buffer
+     * @param direct whether to allocate direct buffers; heap buffers expose
+     *            their {@link ByteBuffer#array()}
+     */
+    public BufferPool(int count, int bufferSize, boolean direct) {
+        mFree = new ArrayBlockingQueue<ByteBuffer>(count);
+        mBufferSize = bufferSize;
+        mCount = count;
+        mDirect = direct;
+        mBuffers = new ByteBuffer[count];
+        mAcquired = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            mBuffers[i] = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+            mFree.add(mBuffers[i]);
+        }
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public boolean isDirect() {
+        return mDirect;
+    }
+
+    /**
+     * Returns the number of buffers not currently handed out.
+     */
+    public int available() {
+        return mFree.size();
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, waiting up to
+     * {@code timeoutMillis} for one to be released.
+     *
+     * @return the buffer, or {@code null} if none became available in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public ByteBuffer acquire(long timeoutMillis) throws InterruptedException {
+        ByteBuffer buffer = mFree.poll();
+        if (buffer == null && timeoutMillis > 0) {
+            buffer = mFree.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        if (buffer != null) {
+            synchronized (mBuffers) {
+                mAcquired[indexOf(buffer)] = true;
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire(long)} to the pool.
+     *
+     * @throws IllegalArgumentException if the buffer does not belong to this
+     *             pool
+     * @throws IllegalStateException if the buffer is not handed out, for
+     *             instance because it was already released
+     */
+    public void release(ByteBuffer buffer) {
+        synchronized (mBuffers) {
+            final int index = indexOf(buffer);
+            if (index < 0) {
+                throw new IllegalArgumentException("Buffer was not acquired from this pool");
+            }
+            if (!mAcquired[index]) {
+                throw new IllegalStateException("Buffer released twice");
+            }
+            mAcquired[index] = false;
+        }
+        buffer.clear();
+        mFree.add(buffer);
+    }
+
+    /**
+     * Returns the index of {@code buffer} by identity, -1 if it is foreign.
+     * A linear scan, pools hold a handful of buffers.
+     */
+    private int indexOf(ByteBuffer buffer) {
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (mBuffers[i] == buffer) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,316 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.util;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free byte ring for exactly one producer thread and one consumer
+ * thread.
+ * <p>
+ * The consumer drains the ring without copying: {@link #drainTo(Sink)} hands
+ * out regions of the backing array directly and only frees them once the sink
+ * returns.  What happens when the producer outpaces the consumer is decided by
+ * the {@link OverflowPolicy}.
+ * <p>
+ * Positions are free-running counters; the ring holds the bytes between
+ * {@code mHead} (freed by the consumer) and {@code mTail} (published by the
+ * producer).  {@code mReadPos} marks how far the consumer has claimed, bytes
+ * between {@code mHead} and {@code mReadPos} are being drained right now and
+ * are never overwritten, not even by {@link OverflowPolicy#DROP_OLDEST}.
+ */
+public class ByteRingBuffer {
+
+    /**
+     * What {@link ByteRingBuffer#write(byte[], int, int)} does when there is
+     * not enough free space.
+     */
+    public enum OverflowPolicy {
+        /** Wait for the consumer to free space. */
+        BLOCK,
+        /** Write nothing and throw {@link BufferOverflowException}. */
+        FAIL_FAST,
+        /**
+         * Discard the oldest queued bytes that are not already being
+         * drained.  Note that this can cut a queued frame in half.
+         */
+        DROP_OLDEST
+    }
+
+    /**
+     * Receives regions of the ring from {@link ByteRingBuffer#drainTo(Sink)}.
+     */
+    public interface Sink {
+        /**
+         * Consumes all {@code length} bytes at {@code offset}.  The region is
+         * only valid until this returns.
+         */
+        public void drain(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    private static final long MAX_PARK_NANOS = 1000000L;
+
+    private final byte[] mBuffer;
+    private final int mMask;
+    private final OverflowPolicy mPolicy;
+
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mReadPos = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private volatile Thread mWaitingProducer;
+    private volatile Thread mWaitingConsumer;
+
+    /**
+     * @param capacity the capacity in bytes, rounded up to a power of two
+     * @param policy what to do when the ring is full
+     */
+    public ByteRingBuffer(int capacity, OverflowPolicy policy) {
+        final int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mBuffer = new byte[size];
+        mMask = size - 1;
+        mPolicy = policy;
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Returns the number of bytes queued and not yet claimed by the consumer.
+     */
+    public int available() {
+        return (int) (mTail.get() - mReadPos.get());
+    }
+
+    public boolean isEmpty() {
+        return available() == 0;
+    }
+
+    /**
+     * Returns the number of bytes discarded by
+     * {@link OverflowPolicy#DROP_OLDEST} so far.
+     */
+    public long getDroppedBytes() {
+        return mDropped.get();
+    }
+
+    /**
+     * Queues {@code length} bytes from {@code src}.  Producer thread only.
+     *
+     * @return the number of bytes queued; less than {@code length} only if a
+     *         {@link OverflowPolicy#BLOCK} wait was interrupted
+     * @throws BufferOverflowException under {@link OverflowPolicy#FAIL_FAST}
+     *             if the bytes do not fit
+     */
+    public int write(byte[] src, int offset, int length) {
+        if (length > mBuffer.length) {
+            if (mPolicy == OverflowPolicy.FAIL_FAST) {
+                throw new BufferOverflowException();
+            } else if (mPolicy == OverflowPolicy.DROP_OLDEST) {
+                // Only the newest bytes could survive anyway.
+                final int skipped = length - mBuffer.length;
+                mDropped.addAndGet(skipped);
+                offset += skipped;
+                length = mBuffer.length;
+            }
+        }
+
+        int written = 0;
+        while (written < length) {
+            final long tail = mTail.get();
+            int free = mBuffer.length - (int) (tail - mHead.get());
+            final int wanted = length - written;
+
+            if (free < wanted) {
+                if (mPolicy == OverflowPolicy.FAIL_FAST) {
+                    throw new BufferOverflowException();
+                } else if (mPolicy == OverflowPolicy.DROP_OLDEST) {
+                    free += dropOldest(wanted - free);
+                }
+                if (free == 0) {
+                    if (!awaitSpace()) {
+                        return written;
+                    }
+                    continue;
+                }
+            }
+
+            final int count = Math.min(free, wanted);
+            final int start = (int) (tail & mMask);
+            final int first = Math.min(count, mBuffer.length - start);
+            System.arraycopy(src, offset + written, mBuffer, start, first);
+            System.arraycopy(src, offset + written + first, mBuffer, 0, count - first);
+            mTail.set(tail + count);
+            written += count;
+
+            final Thread consumer = mWaitingConsumer;
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Passes every queued byte to {@code sink}, at most two regions per call
+     * when the data wraps around the end of the ring.  Consumer thread only.
+     *
+     * @return the number of bytes drained
+     */
+    public int drainTo(Sink sink) throws IOException {
+        int drained = 0;
+        while (true) {
+            final long readPos = mReadPos.get();
+            final int count = Math.min((int) (mTail.get() - readPos),
+                    mBuffer.length - (int) (readPos & mMask));
+            if (count <= 0) {
+                return drained;
+            }
+            if (!mReadPos.compareAndSet(readPos, readPos + count)) {
+                // The producer dropped some of these bytes; look again.
+                continue;
+            }
+
+            try {
+                sink.drain(mBuffer, (int) (readPos & mMask), count);
+            } finally {
+                release();
+            }
+            drained += count;
+        }
+    }
+
+    /**
+     * Blocks the consumer until data is queued, {@link #wakeConsumer()} is
+     * called or {@code timeoutMillis} elapses.
+     *
+     * @return {@code true} if data is available
+     */
+    public boolean awaitData(long timeoutMillis) {
+        if (!isEmpty()) {
+            return true;
+        }
+        mWaitingConsumer = Thread.currentThread();
+        try {
+            if (isEmpty()) {
+                LockSupport.parkNanos(this, timeoutMillis * 1000000L);
+            }
+            return !isEmpty();
+        } finally {
+            mWaitingConsumer = null;
+        }
+    }
+
+    /**
+     * Wakes a consumer blocked in {@link #awaitData(long)}, eg. to make it
+     * notice a state change.
+     */
+    public void wakeConsumer() {
+        final Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Discards everything not already being drained.  Consumer thread only.
+     */
+    public void clear() {
+        while (true) {
+            final long readPos = mReadPos.get();
+            if (mReadPos.compareAndSet(readPos, mTail.get())) {
+                release();
+                return;
+            }
+        }
+    }
+
+    private void release() {
+        // Re-check in case the producer dropped bytes meanwhile; those are
+        // freed here too.
+        long readPos;
+        do {
+            readPos = mReadPos.get();
+            mHead.set(readPos);
+        } while (mReadPos.get() != readPos);
+        wakeProducer();
+    }
+
+    private void wakeProducer() {
+        final Thread producer = mWaitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    /**
+     * Discards up to {@code count} unclaimed bytes.
+     *
+     * @return the number of bytes of space actually freed
+     */
+    private int dropOldest(int count) {
+        while (true) {
+            final long readPos = mReadPos.get();
+            final int droppable = Math.min(count, (int) (mTail.get() - readPos));
+            if (droppable <= 0) {
+                return 0;
+            }
+            if (!mReadPos.compareAndSet(readPos, readPos + droppable)) {
+                continue;
+            }
+            mDropped.addAndGet(droppable);
+
+            // Nothing was being drained, so the space is free right away.
+            // Otherwise the consumer frees it when it releases its region.
+            if (mHead.compareAndSet(readPos, readPos + droppable)) {
+                return droppable;
+            }
+            return 0;
+        }
+    }
+
+    private boolean awaitSpace() {
+        mWaitingProducer = Thread.currentThread();
+        try {
+            final long tail = mTail.get();
+            if (tail - mHead.get() == mBuffer.length) {
+                LockSupport.parkNanos(this, MAX_PARK_NANOS);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            return true;
+        } finally {
+            mWaitingProducer = null;
+        }
+    }
+
+}
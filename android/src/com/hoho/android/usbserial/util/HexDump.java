@@ -16,74 +16,103 @@
 
 package com.hoho.android.usbserial.util;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
 /**
- * Clone of Android's HexDump class, for use in debugging. Cosmetic changes
- * only.
+ * Clone of Android's HexDump class, for use in debugging.
+ *
+ * Formatting is table driven and the {@code appendHex} methods write into a
+ * caller supplied {@link StringBuilder} or {@link CharBuffer}, so a builder
+ * reused across calls makes hex tracing allocation free.
  */
 public class HexDump {
     private final static char[] HEX_DIGITS = {
             '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
     };
 
+    /** Both digits of every byte value: byte {@code b} is at {@code 2 * (b & 0xFF)}. */
+    private final static char[] HEX_PAIRS = new char[512];
+
+    /** Value of each ASCII hex digit, -1 for other characters. */
+    private final static byte[] DIGIT_VALUES = new byte[128];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            HEX_PAIRS[2 * b] = HEX_DIGITS[b >>> 4];
+            HEX_PAIRS[2 * b + 1] = HEX_DIGITS[b & 0x0F];
+        }
+
+        Arrays.fill(DIGIT_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            DIGIT_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            DIGIT_VALUES['A' + i] = (byte) (10 + i);
+            DIGIT_VALUES['a' + i] = (byte) (10 + i);
+        }
+    }
+
     public static String dumpHexString(byte[] array) {
         return dumpHexString(array, 0, array.length);
     }
 
     public static String dumpHexString(byte[] array, int offset, int length) {
-        StringBuilder result = new StringBuilder();
-
-        byte[] line = new byte[16];
-        int lineIndex = 0;
+        // 16 bytes per line: "\n0x" + 8 digits + 16 * 3 + 1 + 16
+        return appendDump(new StringBuilder(4 + (length / 16 + 1) * 77), array, offset, length)
+                .toString();
+    }
 
+    /**
+     * Appends the same dump as {@link #dumpHexString(byte[], int, int)}.
+     */
+    public static StringBuilder appendDump(StringBuilder result, byte[] array, int offset,
+            int length) {
         result.append("\n0x");
-        result.append(toHexString(offset));
+        appendHex(result, offset);
 
+        int lineStart = offset;
         for (int i = offset; i < offset + length; i++) {
-            if (lineIndex == 16) {
-                result.append(" ");
-
-                for (int j = 0; j < 16; j++) {
-                    if (line[j] > ' ' && line[j] < '~') {
-                        result.append(new String(line, j, 1));
-                    } else {
-                        result.append(".");
-                    }
-                }
+            if (i - lineStart == 16) {
+                result.append(' ');
+                appendPrintable(result, array, lineStart, 16);
 
                 result.append("\n0x");
-                result.append(toHexString(i));
-                lineIndex = 0;
+                appendHex(result, i);
+                lineStart = i;
             }
 
-            byte b = array[i];
-            result.append(" ");
-            result.append(HEX_DIGITS[(b >>> 4) & 0x0F]);
-            result.append(HEX_DIGITS[b & 0x0F]);
-
-            line[lineIndex++] = b;
+            final int b = array[i] & 0xFF;
+            result.append(' ');
+            result.append(HEX_PAIRS, 2 * b, 2);
         }
 
-        if (lineIndex != 16) {
-            int count = (16 - lineIndex) * 3;
+        final int lineLength = offset + length - lineStart;
+        if (lineLength != 16) {
+            int count = (16 - lineLength) * 3;
             count++;
             for (int i = 0; i < count; i++) {
-                result.append(" ");
+                result.append(' ');
             }
 
-            for (int i = 0; i < lineIndex; i++) {
-                if (line[i] > ' ' && line[i] < '~') {
-                    result.append(new String(line, i, 1));
-                } else {
-                    result.append(".");
-                }
-            }
+            appendPrintable(result, array, lineStart, lineLength);
         }
 
-        return result.toString();
+        return result;
+    }
+
+    private static void appendPrintable(StringBuilder result, byte[] array, int offset,
+            int length) {
+        for (int i = offset; i < offset + length; i++) {
+            final byte b = array[i];
+            result.append(b > ' ' && b < '~' ? (char) b : '.');
+        }
     }
 
     public static String toHexString(byte b) {
-        return toHexString(toByteArray(b));
+        return new String(HEX_PAIRS, 2 * (b & 0xFF), 2);
     }
 
     public static String toHexString(byte[] array) {
@@ -95,20 +124,93 @@ public class HexDump {
 
         int bufIndex = 0;
         for (int i = offset; i < offset + length; i++) {
-            byte b = array[i];
-            buf[bufIndex++] = HEX_DIGITS[(b >>> 4) & 0x0F];
-            buf[bufIndex++] = HEX_DIGITS[b & 0x0F];
+            final int b = 2 * (array[i] & 0xFF);
+            buf[bufIndex++] = HEX_PAIRS[b];
+            buf[bufIndex++] = HEX_PAIRS[b + 1];
         }
 
         return new String(buf);
     }
 
     public static String toHexString(int i) {
-        return toHexString(toByteArray(i));
+        return appendHex(new StringBuilder(8), i).toString();
     }
 
     public static String toHexString(short i) {
-        return toHexString(toByteArray(i));
+        return appendHex(new StringBuilder(4), i).toString();
+    }
+
+    /**
+     * Appends two hex digits for {@code b}.
+     */
+    public static StringBuilder appendHex(StringBuilder dst, byte b) {
+        return dst.append(HEX_PAIRS, 2 * (b & 0xFF), 2);
+    }
+
+    /**
+     * Appends eight hex digits for {@code i}, most significant first.
+     */
+    public static StringBuilder appendHex(StringBuilder dst, int i) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            dst.append(HEX_PAIRS, 2 * ((i >>> shift) & 0xFF), 2);
+        }
+        return dst;
+    }
+
+    /**
+     * Appends four hex digits for {@code i}, most significant first.
+     */
+    public static StringBuilder appendHex(StringBuilder dst, short i) {
+        dst.append(HEX_PAIRS, 2 * ((i >>> 8) & 0xFF), 2);
+        return dst.append(HEX_PAIRS, 2 * (i & 0xFF), 2);
+    }
+
+    /**
+     * Appends two hex digits for each of {@code length} bytes, as
+     * {@link #toHexString(byte[], int, int)} would format them.
+     */
+    public static StringBuilder appendHex(StringBuilder dst, byte[] array, int offset,
+            int length) {
+        dst.ensureCapacity(dst.length() + 2 * length);
+        for (int i = offset; i < offset + length; i++) {
+            dst.append(HEX_PAIRS, 2 * (array[i] & 0xFF), 2);
+        }
+        return dst;
+    }
+
+    /**
+     * Same as {@link #appendHex(StringBuilder, byte[], int, int)} for the
+     * bytes at absolute indexes {@code offset} to {@code offset + length} of
+     * {@code buffer}, which need not be backed by an array. Leaves the
+     * position and limit alone.
+     */
+    public static StringBuilder appendHex(StringBuilder dst, ByteBuffer buffer, int offset,
+            int length) {
+        if (buffer.hasArray()) {
+            return appendHex(dst, buffer.array(), buffer.arrayOffset() + offset, length);
+        }
+
+        dst.ensureCapacity(dst.length() + 2 * length);
+        for (int i = offset; i < offset + length; i++) {
+            dst.append(HEX_PAIRS, 2 * (buffer.get(i) & 0xFF), 2);
+        }
+        return dst;
+    }
+
+    /**
+     * Puts two hex digits for each of {@code length} bytes into {@code dst}.
+     *
+     * @throws BufferOverflowException if fewer than
+     *             {@code 2 * length} chars remain in {@code dst}
+     */
+    public static CharBuffer appendHex(CharBuffer dst, byte[] array, int offset, int length) {
+        if (dst.remaining() < 2 * length) {
+            throw new BufferOverflowException();
+        }
+        for (int i = offset; i < offset + length; i++) {
+            dst.put(HEX_PAIRS, 2 * (array[i] & 0xFF), 2);
+        }
+        return dst;
     }
 
     public static byte[] toByteArray(byte b) {
@@ -138,25 +240,36 @@ public class HexDump {
     }
 
     private static int toByte(char c) {
-        if (c >= '0' && c <= '9')
-            return (c - '0');
-        if (c >= 'A' && c <= 'F')
-            return (c - 'A' + 10);
-        if (c >= 'a' && c <= 'f')
-            return (c - 'a' + 10);
-
-        throw new RuntimeException("Invalid hex char '" + c + "'");
+        final int value = c < 128 ? DIGIT_VALUES[c] : -1;
+        if (value < 0) {
+            throw new RuntimeException("Invalid hex char '" + c + "'");
+        }
+        return value;
     }
 
     public static byte[] hexStringToByteArray(String hexString) {
-        int length = hexString.length();
-        byte[] buffer = new byte[length / 2];
+        byte[] buffer = new byte[hexString.length() / 2];
+        hexStringToByteArray(hexString, buffer, 0);
+        return buffer;
+    }
 
-        for (int i = 0; i < length; i += 2) {
-            buffer[i / 2] = (byte) ((toByte(hexString.charAt(i)) << 4) | toByte(hexString
-                    .charAt(i + 1)));
+    /**
+     * Parses pairs of hex digits from {@code hex} into {@code dst} starting at
+     * {@code offset}.
+     *
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if {@code hex} has an odd number of digits
+     * @throws RuntimeException on a character that isn't a hex digit
+     */
+    public static int hexStringToByteArray(CharSequence hex, byte[] dst, int offset) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd number of hex digits: " + hex.length());
         }
-
-        return buffer;
+        final int count = hex.length() / 2;
+        for (int i = 0; i < count; i++) {
+            dst[offset + i] = (byte) ((toByte(hex.charAt(2 * i)) << 4)
+                    | toByte(hex.charAt(2 * i + 1)));
+        }
+        return count;
     }
 }
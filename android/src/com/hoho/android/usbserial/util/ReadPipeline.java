@@ -0,0 +1,100 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads with several transfers in flight, as an alternative to blocking
+ * reads for drivers that can queue them.  Keeps
+ * {@link SerialInputOutputManager} free of the platform classes behind it,
+ * see {@link UsbReadPipeline}.
+ * <p>
+ * All methods except {@link #cancel()} must be called from the same thread.
+ */
+public interface ReadPipeline {
+
+    /**
+     * Receives the data of completed reads.
+     */
+    public interface Handler {
+        /**
+         * Called with {@code length} bytes of serial data at the start of
+         * {@code buffer}, whose position and limit frame the data.
+         *
+         * @return {@code true} to keep the buffer, which must later be
+         *         released to the pipeline's pool, or {@code false} to have
+         *         it re-queued as soon as this returns
+         */
+        public boolean onData(ByteBuffer buffer, int length) throws IOException;
+    }
+
+    /**
+     * Implemented by drivers that can create a pipeline.
+     */
+    public interface Source {
+        /**
+         * Returns {@code true} if reads on this device and platform can be
+         * pipelined.
+         */
+        public boolean isAsyncReadSupported();
+
+        /**
+         * Creates a pipeline over the opened device.
+         *
+         * @param depth the number of reads to keep in flight
+         * @param pool a pool of direct buffers holding at least
+         *            {@code depth} buffers; each read is the size of one
+         */
+        public ReadPipeline createReadPipeline(int depth, BufferPool pool);
+    }
+
+    /**
+     * Queues the first reads.
+     *
+     * @throws IOException if a read cannot be queued
+     */
+    public void start() throws IOException;
+
+    /**
+     * Blocks until the next read completes and passes its data to
+     * {@code handler}.
+     *
+     * @return {@code false} once the pipeline has been cancelled
+     * @throws IOException if waiting for or re-queueing a read fails
+     */
+    public boolean next(Handler handler) throws IOException;
+
+    /**
+     * Cancels all queued reads, unblocking {@link #next(Handler)}.  Safe to
+     * call from any thread.
+     */
+    public void cancel();
+
+    /**
+     * Releases the reads and returns their buffers to the pool; call after
+     * the reading thread has stopped.
+     */
+    public void close();
+
+}
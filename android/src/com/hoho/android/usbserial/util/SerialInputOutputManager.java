@@ -20,17 +20,20 @@
 
 package com.hoho.android.usbserial.util;
 
-import android.hardware.usb.UsbRequest;
-import android.util.Log;
-
 import com.hoho.android.usbserial.driver.UsbSerialDriver;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
 /**
  * Utility class which services a {@link UsbSerialDriver} in its {@link #run()}
  * method.
+ * <p>
+ * Uses no platform classes itself: logging goes through a {@link SerialLog}
+ * and pipelined reads through the driver's {@link ReadPipeline.Source}, so
+ * over a {@link com.hoho.android.usbserial.driver.TransportSerialDriver} it
+ * runs on a plain JVM.
  *
  * @author mike wakerly (opensource@hoho.com)
  */
@@ -41,13 +44,35 @@ public class SerialInputOutputManager implements Runnable {
 
     private static final int READ_WAIT_MILLIS = 200;
     private static final int BUFSIZ = 4096;
+    private static final int WRITE_QUEUE_SIZE = 16 * 1024;
+    private static final int READ_POOL_BUFFERS = 16;
+    private static final int READ_PIPELINE_DEPTH = 4;
 
     private final UsbSerialDriver mDriver;
 
+    private volatile SerialLog mLog = SerialLog.getDefault();
+
     private final ByteBuffer mReadBuffer = ByteBuffer.allocate(BUFSIZ);
 
-    // Synchronized by 'mWriteBuffer'
-    private final ByteBuffer mWriteBuffer = ByteBuffer.allocate(BUFSIZ);
+    // Created by the first run(): direct buffers when reads are pipelined,
+    // heap buffers for blocking reads.
+    private volatile BufferPool mReadPool;
+
+    // Synchronized by 'this'; set while reads are pipelined.
+    private ReadPipeline mReadPipeline;
+
+    // Written by writeAsync() callers, drained by the write loop.
+    private final ByteRingBuffer mWriteQueue;
+
+    private final ByteRingBuffer.Sink mWriteSink = new ByteRingBuffer.Sink() {
+        @Override
+        public void drain(byte[] buffer, int offset, int length) throws IOException {
+            if (DEBUG) {
+                mLog.d(TAG, "Writing data len=" + length);
+            }
+            mDriver.write(buffer, offset, length, READ_WAIT_MILLIS);
+        }
+    };
 
     private enum State {
         STOPPED,
@@ -61,6 +86,9 @@ public class SerialInputOutputManager implements Runnable {
     // Synchronized by 'this'
     private Listener mListener;
 
+    // Synchronized by 'this'
+    private BufferListener mBufferListener;
+
     public interface Listener {
         /**
          * Called when new incoming data is available.
@@ -74,6 +102,28 @@ public class SerialInputOutputManager implements Runnable {
         public void onRunError(Exception e);
     }
 
+    /**
+     * Receives incoming data in pooled buffers instead of a new array per
+     * read.  Takes precedence over a {@link Listener} when both are set.
+     */
+    public interface BufferListener {
+        /**
+         * Called on the reader thread with {@code length} bytes at
+         * {@code offset} of {@code buffer}; its position and limit frame the
+         * same bytes.  The buffer stays valid until it is handed back with
+         * {@link SerialInputOutputManager#release(ByteBuffer)}, which may be
+         * done from any thread.  Reading stalls while every pooled buffer is
+         * held, so release them promptly.
+         */
+        public void onNewData(ByteBuffer buffer, int offset, int length);
+
+        /**
+         * Called when {@link SerialInputOutputManager#run()} aborts due to an
+         * error.
+         */
+        public void onRunError(Exception e);
+    }
+
     /**
      * Creates a new instance with no listener.
      */
@@ -82,11 +132,29 @@ public class SerialInputOutputManager implements Runnable {
     }
 
     /**
-     * Creates a new instance with the provided listener.
+     * Creates a new instance with the provided listener.  Writes block while
+     * the write queue is full.
      */
     public SerialInputOutputManager(UsbSerialDriver driver, Listener listener) {
+        this(driver, listener, ByteRingBuffer.OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Creates a new instance with the provided listener and write queue
+     * overflow policy.
+     */
+    public SerialInputOutputManager(UsbSerialDriver driver, Listener listener,
+            ByteRingBuffer.OverflowPolicy writePolicy) {
         mDriver = driver;
         mListener = listener;
+        mWriteQueue = new ByteRingBuffer(WRITE_QUEUE_SIZE, writePolicy);
+    }
+
+    /**
+     * Replaces the {@link SerialLog#getDefault() default log}.
+     */
+    public void setLog(SerialLog log) {
+        mLog = log;
     }
 
     public synchronized void setListener(Listener listener) {
@@ -97,16 +165,51 @@ public class SerialInputOutputManager implements Runnable {
         return mListener;
     }
 
+    public synchronized void setBufferListener(BufferListener listener) {
+        mBufferListener = listener;
+    }
+
+    public synchronized BufferListener getBufferListener() {
+        return mBufferListener;
+    }
+
+    /**
+     * Returns a buffer passed to {@link BufferListener#onNewData} to the pool.
+     *
+     * @throws IllegalStateException if no buffer was handed out yet, or the
+     *             buffer was already released
+     */
+    public void release(ByteBuffer buffer) {
+        final BufferPool pool = mReadPool;
+        if (pool == null) {
+            throw new IllegalStateException("No buffers handed out before run()");
+        }
+        pool.release(buffer);
+    }
+
+    /**
+     * Queues data for the write loop.  Must only be called from one thread at
+     * a time; what happens when the queue is full depends on the overflow
+     * policy given at construction.
+     *
+     * @throws java.nio.BufferOverflowException if the data does not fit under
+     *             {@link ByteRingBuffer.OverflowPolicy#FAIL_FAST}, or a
+     *             blocking write was interrupted
+     */
     public void writeAsync(byte[] data) {
-        synchronized (mWriteBuffer) {
-            mWriteBuffer.put(data);
+        if (mWriteQueue.write(data, 0, data.length) < data.length) {
+            throw new BufferOverflowException();
         }
     }
 
     public synchronized void stop() {
         if (getState() == State.RUNNING) {
-            Log.i(TAG, "Stop requested");
+            mLog.i(TAG, "Stop requested");
             mState = State.STOPPING;
+            if (mReadPipeline != null) {
+                mReadPipeline.cancel();
+            }
+            mWriteQueue.wakeConsumer();
         }
     }
 
@@ -118,8 +221,11 @@ public class SerialInputOutputManager implements Runnable {
      * Continuously services the read and write buffers until {@link #stop()} is
      * called, or until a driver exception is raised.
      *
-     * NOTE(mikey): Uses inefficient read/write-with-timeout.
-     * TODO(mikey): Read asynchronously with {@link UsbRequest#queue(ByteBuffer, int)}
+     * Reads and writes run full duplex: reads are serviced by a second thread,
+     * while this thread sleeps on the write queue and sends queued data as soon
+     * as {@link #writeAsync(byte[])} wakes it, never behind a read timeout.
+     * Drivers that support it are read through a {@link ReadPipeline} with
+     * several requests in flight, others with blocking reads.
      */
     @Override
     public void run() {
@@ -130,34 +236,142 @@ public class SerialInputOutputManager implements Runnable {
             mState = State.RUNNING;
         }
 
-        Log.i(TAG, "Running ..");
+        mLog.i(TAG, "Running ..");
+        Thread readThread = null;
         try {
+            final boolean pipelined = isAsyncReadSupported();
+            if (mReadPool == null) {
+                mReadPool = new BufferPool(READ_POOL_BUFFERS, BUFSIZ, pipelined);
+            }
+            final ReadPipeline pipeline = pipelined ? startReadPipeline() : null;
+            readThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runReads(pipeline);
+                }
+            }, TAG + " reader");
+            readThread.start();
+
             while (true) {
                 if (getState() != State.RUNNING) {
-                    Log.i(TAG, "Stopping mState=" + getState());
+                    mLog.i(TAG, "Stopping mState=" + getState());
                     break;
                 }
-                step();
+                stepWrite(READ_WAIT_MILLIS);
             }
         } catch (Exception e) {
-            Log.w(TAG, "Run ending due to exception: " + e.getMessage(), e);
-            final Listener listener = getListener();
-            if (listener != null) {
-              listener.onRunError(e);
-            }
+            mLog.w(TAG, "Run ending due to exception: " + e.getMessage(), e);
+            notifyRunError(e);
         } finally {
+            stop();
+            stopReader(readThread);
             synchronized (this) {
                 mState = State.STOPPED;
-                Log.i(TAG, "Stopped.");
+                mLog.i(TAG, "Stopped.");
             }
         }
     }
 
-    private void step() throws IOException {
-        // Handle incoming data.
+    private boolean isAsyncReadSupported() {
+        return mDriver instanceof ReadPipeline.Source
+                && ((ReadPipeline.Source) mDriver).isAsyncReadSupported();
+    }
+
+    private ReadPipeline startReadPipeline() throws IOException {
+        final ReadPipeline pipeline = ((ReadPipeline.Source) mDriver).createReadPipeline(
+                READ_PIPELINE_DEPTH, mReadPool);
+        synchronized (this) {
+            mReadPipeline = pipeline;
+        }
+        pipeline.start();
+        if (DEBUG) mLog.d(TAG, "Reading with " + READ_PIPELINE_DEPTH + " queued requests");
+        return pipeline;
+    }
+
+    private void stopReader(Thread readThread) {
+        final ReadPipeline pipeline;
+        synchronized (this) {
+            pipeline = mReadPipeline;
+            mReadPipeline = null;
+        }
+
+        if (pipeline != null) {
+            pipeline.cancel();
+        }
+        if (readThread != null) {
+            try {
+                readThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
+    private void runReads(ReadPipeline pipeline) {
+        final ReadPipeline.Handler handler = new ReadPipeline.Handler() {
+            @Override
+            public boolean onData(ByteBuffer buffer, int length) {
+                if (DEBUG) mLog.d(TAG, "Read data len=" + length);
+                final BufferListener bufferListener = getBufferListener();
+                if (bufferListener != null) {
+                    bufferListener.onNewData(buffer, 0, length);
+                    return true;
+                }
+                final Listener listener = getListener();
+                if (listener != null) {
+                    final byte[] data = new byte[length];
+                    buffer.get(data, 0, length);
+                    listener.onNewData(data);
+                }
+                return false;
+            }
+        };
+
+        try {
+            if (pipeline != null) {
+                while (getState() == State.RUNNING && pipeline.next(handler)) {
+                }
+            } else {
+                while (getState() == State.RUNNING) {
+                    stepRead();
+                }
+            }
+        } catch (Exception e) {
+            if (getState() == State.RUNNING) {
+                mLog.w(TAG, "Reader ending due to exception: " + e.getMessage(), e);
+                notifyRunError(e);
+                stop();
+            }
+        } finally {
+            // Wake the write loop so it notices the state change.
+            mWriteQueue.wakeConsumer();
+        }
+    }
+
+    private void notifyRunError(Exception e) {
+        final Listener listener = getListener();
+        if (listener != null) {
+            listener.onRunError(e);
+        }
+        final BufferListener bufferListener = getBufferListener();
+        if (bufferListener != null) {
+            bufferListener.onRunError(e);
+        }
+    }
+
+    private void stepRead() throws IOException {
+        final BufferListener bufferListener = getBufferListener();
+        if (bufferListener != null) {
+            stepReadPooled(bufferListener);
+            return;
+        }
+
         int len = mDriver.read(mReadBuffer.array(), READ_WAIT_MILLIS);
         if (len > 0) {
-            if (DEBUG) Log.d(TAG, "Read data len=" + len);
+            if (DEBUG) mLog.d(TAG, "Read data len=" + len);
             final Listener listener = getListener();
             if (listener != null) {
                 final byte[] data = new byte[len];
@@ -166,24 +380,50 @@ public class SerialInputOutputManager implements Runnable {
             }
             mReadBuffer.clear();
         }
+    }
+
+    private void stepReadPooled(BufferListener listener) throws IOException {
+        final ByteBuffer buffer;
+        try {
+            buffer = mReadPool.acquire(READ_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stop();
+            return;
+        }
+        if (buffer == null) {
+            // Every buffer is held downstream; leave the data in the device.
+            if (DEBUG) mLog.d(TAG, "Read pool exhausted");
+            return;
+        }
 
-        // Handle outgoing data.
-        byte[] outBuff = null;
-        synchronized (mWriteBuffer) {
-            if (mWriteBuffer.position() > 0) {
-                len = mWriteBuffer.position();
-                outBuff = new byte[len];
-                mWriteBuffer.rewind();
-                mWriteBuffer.get(outBuff, 0, len);
-                mWriteBuffer.clear();
+        int len = 0;
+        try {
+            len = mDriver.read(buffer.array(), READ_WAIT_MILLIS);
+        } finally {
+            if (len <= 0) {
+                mReadPool.release(buffer);
             }
         }
-        if (outBuff != null) {
-            if (DEBUG) {
-                Log.d(TAG, "Writing data len=" + len);
+        if (len > 0) {
+            if (DEBUG) mLog.d(TAG, "Read data len=" + len);
+            buffer.limit(len);
+            listener.onNewData(buffer, 0, len);
+        }
+    }
+
+    /**
+     * Writes any pending outgoing data, first waiting up to
+     * {@code waitMillis} for some to be queued.
+     */
+    private void stepWrite(int waitMillis) throws IOException {
+        if (waitMillis > 0 && !mWriteQueue.awaitData(waitMillis)) {
+            if (Thread.interrupted()) {
+                stop();
             }
-            mDriver.write(outBuff, READ_WAIT_MILLIS);
+            return;
         }
+        mWriteQueue.drainTo(mWriteSink);
     }
 
 }
@@ -0,0 +1,101 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.util;
+
+/**
+ * The logging the serial data path needs, so that it does not depend on
+ * {@code android.util.Log} and runs on a plain JVM.
+ * <p>
+ * {@link #getDefault()} logs through {@code android.util.Log} on a device
+ * and to {@link System#err} elsewhere; pass {@link #NONE} to keep quiet.
+ */
+public abstract class SerialLog {
+
+    /** Drops every message. */
+    public static final SerialLog NONE = new SerialLog() {
+        @Override
+        public void d(String tag, String msg) {
+        }
+
+        @Override
+        public void i(String tag, String msg) {
+        }
+
+        @Override
+        public void w(String tag, String msg, Throwable tr) {
+        }
+    };
+
+    private static final String ANDROID_LOG = "com.hoho.android.usbserial.util.AndroidSerialLog";
+
+    private static volatile SerialLog sDefault;
+
+    public abstract void d(String tag, String msg);
+
+    public abstract void i(String tag, String msg);
+
+    public abstract void w(String tag, String msg, Throwable tr);
+
+    /**
+     * Returns the log used unless another one is set.
+     */
+    public static SerialLog getDefault() {
+        SerialLog log = sDefault;
+        if (log == null) {
+            log = createDefault();
+            sDefault = log;
+        }
+        return log;
+    }
+
+    private static SerialLog createDefault() {
+        // By name, so android.util.Log is only linked where it exists.
+        try {
+            Class.forName("android.util.Log");
+            return (SerialLog) Class.forName(ANDROID_LOG).newInstance();
+        } catch (Exception e) {
+            return new StreamLog();
+        } catch (LinkageError e) {
+            return new StreamLog();
+        }
+    }
+
+    private static class StreamLog extends SerialLog {
+        @Override
+        public void d(String tag, String msg) {
+        }
+
+        @Override
+        public void i(String tag, String msg) {
+            System.err.println(tag + ": " + msg);
+        }
+
+        @Override
+        public void w(String tag, String msg, Throwable tr) {
+            System.err.println(tag + ": " + msg);
+            if (tr != null) {
+                tr.printStackTrace();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.util;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+
+import com.hoho.android.usbserial.driver.AsyncUsbSerialDriver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps several {@link UsbRequest} reads queued on a driver's read endpoint,
+ * so the bus always has a buffer to complete into while the previous one is
+ * being handed to the caller.
+ * <p>
+ * Each request holds one direct {@link ByteBuffer} taken from a
+ * {@link BufferPool}; completed requests are collected with
+ * {@link UsbDeviceConnection#requestWait()} and re-queued once their data has
+ * been delivered, with a fresh pool buffer if the handler kept the old one.
+ * All methods except {@link #cancel()} must be called from the same thread.
+ */
+public class UsbReadPipeline implements ReadPipeline {
+
+    public static final int DEFAULT_DEPTH = 4;
+
+    private static final int ACQUIRE_WAIT_MILLIS = 100;
+
+    private final AsyncUsbSerialDriver mDriver;
+    private final UsbDeviceConnection mConnection;
+    private final UsbEndpoint mEndpoint;
+
+    private final BufferPool mPool;
+    private final UsbRequest[] mRequests;
+    private final ByteBuffer[] mBuffers;
+
+    private volatile boolean mCancelled = false;
+
+    /**
+     * Creates a pipeline with a private pool of exactly {@code depth}
+     * buffers, so its handler must never keep them.
+     *
+     * @param driver an opened driver, see
+     *            {@link AsyncUsbSerialDriver#isAsyncReadSupported()}
+     * @param depth the number of reads to keep in flight
+     * @param bufferSize the size of each read
+     */
+    public UsbReadPipeline(AsyncUsbSerialDriver driver, int depth, int bufferSize) {
+        this(driver, depth, new BufferPool(depth, bufferSize, true));
+    }
+
+    /**
+     * @param driver an opened driver, see
+     *            {@link AsyncUsbSerialDriver#isAsyncReadSupported()}
+     * @param depth the number of reads to keep in flight
+     * @param pool a pool of direct buffers holding at least {@code depth}
+     *            buffers; each read is the size of one buffer
+     */
+    public UsbReadPipeline(AsyncUsbSerialDriver driver, int depth, BufferPool pool) {
+        if (!pool.isDirect() || pool.getCount() < depth) {
+            throw new IllegalArgumentException("Need at least " + depth + " direct buffers");
+        }
+        mDriver = driver;
+        mConnection = driver.getConnection();
+        mEndpoint = driver.getReadEndpoint();
+        mPool = pool;
+
+        mRequests = new UsbRequest[depth];
+        mBuffers = new ByteBuffer[depth];
+    }
+
+    public BufferPool getPool() {
+        return mPool;
+    }
+
+    /**
+     * Initializes and queues every request.
+     *
+     * @throws IOException if a request cannot be queued, or the pool has no
+     *             buffers left
+     */
+    @Override
+    public void start() throws IOException {
+        for (int i = 0; i < mRequests.length; i++) {
+            mBuffers[i] = acquire();
+            if (mBuffers[i] == null) {
+                throw new IOException("No buffer for request " + i);
+            }
+            final UsbRequest request = new UsbRequest();
+            if (!request.initialize(mConnection, mEndpoint)) {
+                throw new IOException("Error initializing request " + i);
+            }
+            mRequests[i] = request;
+            queue(i);
+        }
+    }
+
+    /**
+     * Blocks until the next read completes and passes its data to
+     * {@code handler}.
+     *
+     * @return {@code false} once the pipeline has been cancelled
+     * @throws IOException if waiting for or re-queueing a request fails
+     */
+    @Override
+    public boolean next(Handler handler) throws IOException {
+        final UsbRequest response = mConnection.requestWait();
+        if (mCancelled) {
+            return false;
+        }
+        if (response == null) {
+            throw new IOException("requestWait failed");
+        }
+
+        final int index = indexOf(response);
+        if (index < 0) {
+            // Someone else's request on the same connection.
+            return true;
+        }
+
+        final ByteBuffer buffer = mBuffers[index];
+        final int length = mDriver.processAsyncRead(buffer, buffer.position());
+        if (length > 0) {
+            buffer.limit(length);
+            buffer.position(0);
+            if (handler.onData(buffer, length)) {
+                // The handler owns it now; wait for a replacement.
+                mBuffers[index] = null;
+                final ByteBuffer replacement = acquire();
+                if (replacement == null) {
+                    return false;
+                }
+                mBuffers[index] = replacement;
+            }
+        }
+        queue(index);
+        return true;
+    }
+
+    /**
+     * Cancels all queued requests, unblocking {@link #next(Handler)}.  Safe
+     * to call from any thread.
+     */
+    @Override
+    public void cancel() {
+        mCancelled = true;
+        for (final UsbRequest request : mRequests) {
+            if (request != null) {
+                request.cancel();
+            }
+        }
+    }
+
+    /**
+     * Releases the requests and returns their buffers to the pool; call after
+     * the reading thread has stopped.
+     */
+    @Override
+    public void close() {
+        for (int i = 0; i < mRequests.length; i++) {
+            if (mRequests[i] != null) {
+                mRequests[i].close();
+                mRequests[i] = null;
+            }
+            if (mBuffers[i] != null) {
+                mPool.release(mBuffers[i]);
+                mBuffers[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Takes a buffer from the pool, waiting while all of them are held
+     * downstream.
+     *
+     * @return the buffer, or {@code null} if cancelled while waiting
+     */
+    private ByteBuffer acquire() throws IOException {
+        try {
+            while (!mCancelled) {
+                final ByteBuffer buffer = mPool.acquire(ACQUIRE_WAIT_MILLIS);
+                if (buffer != null) {
+                    return buffer;
+                }
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a buffer");
+        }
+    }
+
+    private void queue(int index) throws IOException {
+        final ByteBuffer buffer = mBuffers[index];
+        buffer.clear();
+        if (!mRequests[index].queue(buffer, buffer.capacity())) {
+            throw new IOException("Error queueing request " + index);
+        }
+    }
+
+    private int indexOf(UsbRequest request) {
+        for (int i = 0; i < mRequests.length; i++) {
+            if (mRequests[i] == request) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
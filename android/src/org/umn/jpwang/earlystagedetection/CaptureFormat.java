@@ -0,0 +1,151 @@
+package org.umn.jpwang.earlystagedetection;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Layout of the capture segment files written by {@link CaptureWriter} and
+ * read by {@link CaptureReader}. All values are little endian.
+ * <pre>
+ * header   magic 'ESDC', version u16, reserved u16, segment number u32,
+ *          segment size u32, created millis u64, reserved u32, CRC32 of the above
+ * block*   magic 'BLK1', payload length u32, record count u32,
+ *          first timestamp u64, CRC32 of these 20 bytes and the payload, payload
+ * index    per block: offset u32, record count u32, first timestamp u64
+ * (zeros)
+ * trailer  magic 'ESDF', index offset u32, block count u32,
+ *          CRC32 of the index and the first 12 trailer bytes
+ * </pre>
+ * The trailer sits in the last {@link #TRAILER_SIZE} bytes of the segment
+ * and is only written once the segment is complete, so a segment without a
+ * valid trailer was cut short by a crash and is recovered by scanning its
+ * blocks up to the first one that doesn't check out.
+ * <p/>
+ * A block payload is a sequence of records, each starting with its type:
+ * <pre>
+ * RECORD_FRAME    type u8, timestamp u64, command u8, length u8, payload
+ * RECORD_SAMPLES  type u8, timestamp u64, sequence u32, channels u8, f32 * channels
+ * RECORD_PACKED   type u8, samples compressed by {@link SampleCodec}
+ * </pre>
+ * Version 2 writes samples as RECORD_PACKED, version 1 as RECORD_SAMPLES.
+ * The codec starts over in every block, from the block's first timestamp.
+ */
+public final class CaptureFormat
+{
+    public static final String EXTENSION = ".cap";
+
+    public static final int SEGMENT_MAGIC = 0x43445345; // "ESDC"
+    public static final int BLOCK_MAGIC = 0x314B4C42;   // "BLK1"
+    public static final int TRAILER_MAGIC = 0x46445345; // "ESDF"
+    public static final int VERSION = 2;
+
+    public static final int HEADER_SIZE = 32;
+    public static final int BLOCK_HEADER_SIZE = 24;
+    public static final int INDEX_ENTRY_SIZE = 16;
+    public static final int TRAILER_SIZE = 16;
+
+    public static final byte RECORD_FRAME = 1;
+    public static final byte RECORD_SAMPLES = 2;
+    public static final byte RECORD_PACKED = 3;
+
+    public static final int FRAME_RECORD_HEADER_SIZE = 1 + 8 + 1 + 1;
+    public static final int SAMPLES_RECORD_HEADER_SIZE = 1 + 8 + 4 + 1;
+
+    /** Largest record that can be written, a full frame. */
+    public static final int MAX_RECORD_SIZE = Math.max(FRAME_RECORD_HEADER_SIZE + Packet.MAX_PAYLOAD_LENGTH,
+        1 + SampleCodec.getMaxEncodedLength(SampleFrame.MAX_CHANNELS));
+
+    private CaptureFormat() { }
+
+    public static String getSegmentName(String prefix, int segmentNumber)
+    {
+        return String.format("%s-%06d%s", prefix, segmentNumber, EXTENSION);
+    }
+
+    /**
+     * Returns the segments of a capture in {@code directory}, in order.
+     */
+    public static File[] listSegments(File directory, final String prefix)
+    {
+        File[] files = directory.listFiles(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String name)
+            {
+                return name.startsWith(prefix + "-") && name.endsWith(EXTENSION)
+                    && name.length() == prefix.length() + 7 + EXTENSION.length();
+            }
+        });
+        if ( files == null )
+            return new File[0];
+
+        // zero padded numbers sort by name
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Returns the names of the captures in {@code directory}, oldest name
+     * first.
+     */
+    public static String[] listCaptures(File directory)
+    {
+        String[] names = directory.list();
+        if ( names == null )
+            return new String[0];
+
+        TreeSet<String> prefixes = new TreeSet<String>();
+        for ( String name : names )
+        {
+            int dash = name.length() - 7 - EXTENSION.length();
+            if ( dash > 0 && name.endsWith(EXTENSION) && name.charAt(dash) == '-' )
+                prefixes.add(name.substring(0, dash));
+        }
+        return prefixes.toArray(new String[prefixes.size()]);
+    }
+
+    /**
+     * Returns the CRC32 of a block: its first 20 header bytes and its payload.
+     */
+    static int blockCrc(CRC32 crc, byte[] block, int offset, int payloadLength)
+    {
+        crc.reset();
+        crc.update(block, offset, 20);
+        crc.update(block, offset + BLOCK_HEADER_SIZE, payloadLength);
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Writes the index after the last block at {@code indexOffset} and the
+     * trailer at the end of {@code segment}, which must be little endian and
+     * span the whole segment. Leaves the position alone.
+     */
+    static void writeFooter(ByteBuffer segment, int indexOffset, int blockCount, int[] offsets, int[] recordCounts,
+                            long[] timestamps)
+    {
+        ByteBuffer footer = ByteBuffer.allocate(blockCount * INDEX_ENTRY_SIZE + 12).order(segment.order());
+        for ( int i = 0; i < blockCount; i++ )
+        {
+            footer.putInt(offsets[i]);
+            footer.putInt(recordCounts[i]);
+            footer.putLong(timestamps[i]);
+        }
+        footer.putInt(TRAILER_MAGIC);
+        footer.putInt(indexOffset);
+        footer.putInt(blockCount);
+
+        CRC32 crc = new CRC32();
+        crc.update(footer.array(), 0, footer.capacity());
+
+        int trailer = segment.capacity() - TRAILER_SIZE;
+        for ( int i = 0; i < blockCount * INDEX_ENTRY_SIZE; i++ )
+            segment.put(indexOffset + i, footer.get(i));
+        for ( int i = 0; i < 12; i++ )
+            segment.put(trailer + i, footer.get(blockCount * INDEX_ENTRY_SIZE + i));
+        segment.putInt(trailer + 12, (int)crc.getValue());
+    }
+}
@@ -0,0 +1,328 @@
+package org.umn.jpwang.earlystagedetection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads one capture segment written by {@link CaptureWriter}, see
+ * {@link CaptureFormat}.
+ * <p/>
+ * A sealed segment is opened through its footer index without touching the
+ * blocks. A segment left open by a crash is scanned block by block instead,
+ * up to the first block whose checksum doesn't match, and
+ * {@link #recover(File)} writes the index it found back to the file so the
+ * scan only ever happens once.
+ */
+public class CaptureReader
+{
+    /**
+     * Receives the records of a block. Arrays are only valid until the
+     * method returns.
+     */
+    public interface Visitor
+    {
+        public void onFrame(long timestampNanos, byte command, byte[] payload, int offset, int length);
+        public void onSamples(long timestampNanos, long sequence, float[] samples, int channels);
+    }
+
+    private final File _file;
+    private final MappedByteBuffer _segment;
+    private final int _segmentNumber;
+    private final long _createdMillis;
+    private final CRC32 _crc = new CRC32();
+
+    private boolean _sealed;
+    private int _blockCount = 0;
+    private int[] _blockOffsets = new int[64];
+    private int[] _blockRecordCounts = new int[64];
+    private long[] _blockTimestamps = new long[64];
+    private int _endOfBlocks = CaptureFormat.HEADER_SIZE;
+
+    private byte[] _block = new byte[CaptureWriter.DEFAULT_BLOCK_SIZE];
+    private ByteBuffer _blockBuffer = ByteBuffer.wrap(_block).order(ByteOrder.LITTLE_ENDIAN);
+    private final float[] _samples = new float[SampleFrame.MAX_CHANNELS];
+    private final SampleCodec _codec = new SampleCodec();
+
+    public CaptureReader(File file) throws IOException
+    {
+        _file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            long length = raf.length();
+            if ( length < CaptureFormat.HEADER_SIZE + CaptureFormat.TRAILER_SIZE || length > Integer.MAX_VALUE )
+                throw new IOException(file + " is not a capture segment");
+
+            _segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        finally
+        {
+            raf.close();
+        }
+        _segment.order(ByteOrder.LITTLE_ENDIAN);
+
+        byte[] header = new byte[28];
+        _segment.position(0);
+        _segment.get(header);
+        _crc.reset();
+        _crc.update(header, 0, header.length);
+        if ( _segment.getInt(0) != CaptureFormat.SEGMENT_MAGIC || _segment.getInt(28) != (int)_crc.getValue() )
+            throw new IOException(file + " has no valid capture header");
+        if ( _segment.getShort(4) < 1 || _segment.getShort(4) > CaptureFormat.VERSION )
+            throw new IOException(file + " has unsupported version " + _segment.getShort(4));
+        if ( _segment.getInt(12) != _segment.capacity() )
+            throw new IOException(file + " is truncated");
+
+        _segmentNumber = _segment.getInt(8);
+        _createdMillis = _segment.getLong(16);
+
+        _sealed = readFooter();
+        if ( !_sealed )
+            scanBlocks();
+    }
+
+    /**
+     * Seals a segment left open by a crash, writing the index of its intact
+     * blocks. Does nothing to a sealed segment.
+     *
+     * @return whether the segment needed recovery
+     */
+    public static boolean recover(File file) throws IOException
+    {
+        CaptureReader reader = new CaptureReader(file);
+        if ( reader._sealed )
+            return false;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            MappedByteBuffer segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            CaptureFormat.writeFooter(segment, reader._endOfBlocks, reader._blockCount, reader._blockOffsets,
+                reader._blockRecordCounts, reader._blockTimestamps);
+            segment.force();
+        }
+        finally
+        {
+            raf.close();
+        }
+        return true;
+    }
+
+    /**
+     * Seals every segment a crash left open in {@code directory}, whatever
+     * capture it belongs to. Segments too damaged to read are left alone
+     * for the reader to reject.
+     *
+     * @return the number of segments recovered
+     */
+    public static int recoverAll(File directory)
+    {
+        int recovered = 0;
+        for ( String capture : CaptureFormat.listCaptures(directory) )
+        {
+            for ( File segment : CaptureFormat.listSegments(directory, capture) )
+            {
+                try
+                {
+                    if ( recover(segment) )
+                        recovered++;
+                }
+                catch (IOException e)
+                {
+                    // unreadable, nothing to seal
+                }
+            }
+        }
+        return recovered;
+    }
+
+    public File getFile() { return _file; }
+    public int getSegmentNumber() { return _segmentNumber; }
+    public long getCreatedMillis() { return _createdMillis; }
+
+    /** Returns false if the segment was left open by a crash. */
+    public boolean isSealed() { return _sealed; }
+
+    public int getBlockCount() { return _blockCount; }
+    public int getBlockOffset(int block) { return _blockOffsets[block]; }
+    public int getRecordCount(int block) { return _blockRecordCounts[block]; }
+    public long getFirstTimestamp(int block) { return _blockTimestamps[block]; }
+
+    /**
+     * Returns the last block whose first record is at or before
+     * {@code timestampNanos}, or 0 if there is none.
+     */
+    public int findBlock(long timestampNanos)
+    {
+        int low = 0;
+        int high = _blockCount - 1;
+        while ( low < high )
+        {
+            int mid = (low + high + 1) >>> 1;
+            if ( _blockTimestamps[mid] <= timestampNanos )
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+
+    /**
+     * Verifies the checksum of a block and hands its records to
+     * {@code visitor}.
+     *
+     * @throws IOException if the block is corrupt
+     */
+    public void readBlock(int block, Visitor visitor) throws IOException
+    {
+        int offset = _blockOffsets[block];
+        int payloadLength = loadBlock(offset);
+        if ( payloadLength < 0 )
+            throw new IOException(_file + ": block " + block + " is corrupt");
+
+        int at = CaptureFormat.BLOCK_HEADER_SIZE;
+        int end = at + payloadLength;
+        _codec.reset(_blockBuffer.getLong(12));
+        while ( at < end )
+        {
+            byte type = _block[at];
+            if ( type == CaptureFormat.RECORD_PACKED )
+            {
+                at = _codec.decode(_block, at + 1, _samples);
+                visitor.onSamples(_codec.getTimestamp(), _codec.getSequence(), _samples, _codec.getChannelCount());
+                continue;
+            }
+
+            long timestamp = _blockBuffer.getLong(at + 1);
+            if ( type == CaptureFormat.RECORD_FRAME )
+            {
+                int length = _block[at + 10] & 0xFF;
+                visitor.onFrame(timestamp, _block[at + 9], _block, at + CaptureFormat.FRAME_RECORD_HEADER_SIZE, length);
+                at += CaptureFormat.FRAME_RECORD_HEADER_SIZE + length;
+            }
+            else if ( type == CaptureFormat.RECORD_SAMPLES )
+            {
+                long sequence = _blockBuffer.getInt(at + 9) & 0xFFFFFFFFL;
+                int channels = _block[at + 13] & 0xFF;
+                int first = at + CaptureFormat.SAMPLES_RECORD_HEADER_SIZE;
+                for ( int c = 0; c < channels; c++ )
+                    _samples[c] = _blockBuffer.getFloat(first + 4 * c);
+
+                visitor.onSamples(timestamp, sequence, _samples, channels);
+                at = first + 4 * channels;
+            }
+            else
+            {
+                throw new IOException(_file + ": unknown record type " + type + " in block " + block);
+            }
+        }
+    }
+
+    /**
+     * Hands every record of the segment to {@code visitor}, in order.
+     */
+    public void readAll(Visitor visitor) throws IOException
+    {
+        for ( int i = 0; i < _blockCount; i++ )
+            readBlock(i, visitor);
+    }
+
+    /**
+     * Copies the block at {@code offset} into {@link #_block} and checks it.
+     *
+     * @return the payload length, or -1 if there is no intact block there
+     */
+    private int loadBlock(int offset)
+    {
+        int limit = _segment.capacity() - CaptureFormat.TRAILER_SIZE;
+        if ( offset + CaptureFormat.BLOCK_HEADER_SIZE > limit
+            || _segment.getInt(offset) != CaptureFormat.BLOCK_MAGIC )
+            return -1;
+
+        int payloadLength = _segment.getInt(offset + 4);
+        if ( payloadLength <= 0 || payloadLength > limit - offset - CaptureFormat.BLOCK_HEADER_SIZE )
+            return -1;
+
+        int blockLength = CaptureFormat.BLOCK_HEADER_SIZE + payloadLength;
+        if ( blockLength > _block.length )
+        {
+            _block = new byte[blockLength];
+            _blockBuffer = ByteBuffer.wrap(_block).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        _segment.position(offset);
+        _segment.get(_block, 0, blockLength);
+
+        int crc = CaptureFormat.blockCrc(_crc, _block, 0, payloadLength);
+        return crc == _blockBuffer.getInt(20) ? payloadLength : -1;
+    }
+
+    private boolean readFooter()
+    {
+        int trailer = _segment.capacity() - CaptureFormat.TRAILER_SIZE;
+        if ( _segment.getInt(trailer) != CaptureFormat.TRAILER_MAGIC )
+            return false;
+
+        int indexOffset = _segment.getInt(trailer + 4);
+        int blockCount = _segment.getInt(trailer + 8);
+        if ( indexOffset < CaptureFormat.HEADER_SIZE || blockCount < 0
+            || (long)indexOffset + (long)blockCount * CaptureFormat.INDEX_ENTRY_SIZE > trailer )
+            return false;
+
+        _crc.reset();
+        for ( int i = 0; i < blockCount * CaptureFormat.INDEX_ENTRY_SIZE; i++ )
+            _crc.update(_segment.get(indexOffset + i));
+        for ( int i = 0; i < 12; i++ )
+            _crc.update(_segment.get(trailer + i));
+        if ( (int)_crc.getValue() != _segment.getInt(trailer + 12) )
+            return false;
+
+        for ( int i = 0; i < blockCount; i++ )
+        {
+            int entry = indexOffset + i * CaptureFormat.INDEX_ENTRY_SIZE;
+            addBlock(_segment.getInt(entry), _segment.getInt(entry + 4), _segment.getLong(entry + 8));
+        }
+        _endOfBlocks = indexOffset;
+        return true;
+    }
+
+    private void scanBlocks()
+    {
+        int offset = CaptureFormat.HEADER_SIZE;
+        int payloadLength;
+        while ( (payloadLength = loadBlock(offset)) >= 0 )
+        {
+            addBlock(offset, _blockBuffer.getInt(8), _blockBuffer.getLong(12));
+            offset += CaptureFormat.BLOCK_HEADER_SIZE + payloadLength;
+        }
+        _endOfBlocks = offset;
+    }
+
+    private void addBlock(int offset, int records, long timestamp)
+    {
+        if ( _blockCount == _blockOffsets.length )
+        {
+            int capacity = 2 * _blockCount;
+            int[] offsets = new int[capacity];
+            int[] counts = new int[capacity];
+            long[] timestamps = new long[capacity];
+            System.arraycopy(_blockOffsets, 0, offsets, 0, _blockCount);
+            System.arraycopy(_blockRecordCounts, 0, counts, 0, _blockCount);
+            System.arraycopy(_blockTimestamps, 0, timestamps, 0, _blockCount);
+            _blockOffsets = offsets;
+            _blockRecordCounts = counts;
+            _blockTimestamps = timestamps;
+        }
+
+        _blockOffsets[_blockCount] = offset;
+        _blockRecordCounts[_blockCount] = records;
+        _blockTimestamps[_blockCount] = timestamp;
+        _blockCount++;
+    }
+}
@@ -0,0 +1,154 @@
+package org.umn.jpwang.earlystagedetection;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Records everything published to a {@link FrameRing} into a capture on its
+ * own thread: data frames as decoded samples, any other frame as is.
+ * Records are flushed to the segment at least every
+ * {@link #FLUSH_INTERVAL_MILLIS}, so a crash loses no more than that.
+ */
+public class CaptureRecorder implements Runnable
+{
+    private static final String TAG = "EarlyStageDetector::CaptureRecorder";
+
+    public static final long FLUSH_INTERVAL_MILLIS = 500;
+
+    public interface Listener
+    {
+        /** Called on the recording thread once recording has ended. */
+        public void onRecordingStopped(CaptureRecorder recorder, IOException error);
+    }
+
+    private final FrameRing.Consumer _consumer;
+    private final File _directory;
+    private final String _prefix;
+    private final Listener _listener;
+
+    // recording thread only
+    private CaptureWriter _writer;
+    private IOException _error;
+    private final float[] _samples = new float[SampleFrame.MAX_CHANNELS];
+
+    private final FrameRing.Handler _handler = new FrameRing.Handler()
+    {
+        @Override
+        public void onFrame(long sequence, long timestampNanos, byte command, byte[] payload, int length)
+        {
+            try
+            {
+                if ( command == SampleFrame.COMMAND_DATA )
+                {
+                    int channels = SampleFrame.getChannelCount(length);
+                    for ( int c = 0; c < channels; c++ )
+                        _samples[c] = SampleFrame.getSample(payload, 0, c);
+
+                    _writer.appendSamples(timestampNanos, SampleFrame.getSequence(payload, 0), _samples, channels);
+                }
+                else
+                {
+                    _writer.appendFrame(timestampNanos, command, payload, 0, length);
+                }
+            }
+            catch (IOException e)
+            {
+                _error = e;
+                _consumer.halt();
+            }
+        }
+    };
+
+    /**
+     * @param ring the frames to record, from the next one published on
+     * @param directory where the segment files go
+     * @param prefix the name of the capture
+     */
+    public CaptureRecorder(FrameRing ring, File directory, String prefix, Listener listener)
+    {
+        _consumer = ring.newConsumer(FrameRing.WaitStrategy.BLOCKING);
+        _directory = directory;
+        _prefix = prefix;
+        _listener = listener;
+    }
+
+    public File getDirectory() { return _directory; }
+    public String getPrefix() { return _prefix; }
+
+    /** Frames the recorder fell too far behind to record. */
+    public long getMissedFrames() { return _consumer.getMissedFrames(); }
+
+    public void start()
+    {
+        new Thread(this, TAG).start();
+    }
+
+    /**
+     * Makes the recorder seal its capture and stop; safe from any thread.
+     */
+    public void stop()
+    {
+        _consumer.halt();
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            // every recording gets a new prefix, so the writer would never see a crashed one
+            if ( _directory.isDirectory() )
+            {
+                int recovered = CaptureReader.recoverAll(_directory);
+                if ( recovered > 0 )
+                    Log.i(TAG, "Sealed " + recovered + " segments left open by a crash");
+            }
+            _writer = new CaptureWriter(_directory, _prefix);
+            long lastFlush = System.nanoTime();
+            while ( !_consumer.isHalted() )
+            {
+                _consumer.process(_handler, FLUSH_INTERVAL_MILLIS);
+                if ( System.nanoTime() - lastFlush >= FLUSH_INTERVAL_MILLIS * 1000000L )
+                {
+                    _writer.flush();
+                    lastFlush = System.nanoTime();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            _error = e;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            close();
+        }
+
+        if ( _error != null )
+            Log.w(TAG, "Recording failed: " + _error.getMessage(), _error);
+        if ( _listener != null )
+            _listener.onRecordingStopped(this, _error);
+    }
+
+    private void close()
+    {
+        if ( _writer == null )
+            return;
+
+        try
+        {
+            _writer.close();
+        }
+        catch (IOException e)
+        {
+            if ( _error == null )
+                _error = e;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package org.umn.jpwang.earlystagedetection;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Records frames and decoded samples into a series of fixed size segment
+ * files, see {@link CaptureFormat}.
+ * <p/>
+ * Records are collected into a block in memory; a full block gets its
+ * checksum and is copied into the memory mapped segment in one go, so the
+ * file only ever grows by whole, verifiable blocks and a crash loses at most
+ * the block being collected. When a segment is full its index and trailer
+ * are written and the next segment is started. Nothing is allocated or
+ * formatted per record.
+ * <p/>
+ * Samples are compressed with a {@link SampleCodec}, typically to a
+ * fraction of the 4 bytes per channel they take in memory, depending on
+ * how noisy the channels are.
+ * <p/>
+ * Not thread safe: feed it from one thread, typically a
+ * {@link FrameRing.Consumer}, never from the UI thread.
+ */
+public class CaptureWriter implements Closeable
+{
+    public static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+    public static final int DEFAULT_BLOCK_SIZE = 16 << 10;
+
+    private final File _directory;
+    private final String _prefix;
+    private final int _segmentSize;
+
+    private final byte[] _block;
+    private final ByteBuffer _blockBuffer;
+    private int _blockLength = CaptureFormat.BLOCK_HEADER_SIZE;
+    private int _blockRecords = 0;
+    private final CRC32 _crc = new CRC32();
+    private final SampleCodec _codec = new SampleCodec();
+
+    private RandomAccessFile _file;
+    private MappedByteBuffer _segment;
+    private int _segmentNumber;
+    private int _position;
+
+    // index of the current segment
+    private int _blockCount = 0;
+    private int[] _blockOffsets = new int[256];
+    private int[] _blockRecordCounts = new int[256];
+    private long[] _blockTimestamps = new long[256];
+
+    private long _recordsWritten = 0;
+    private long _bytesWritten = 0;
+    private boolean _closed = false;
+
+    public CaptureWriter(File directory, String prefix) throws IOException
+    {
+        this(directory, prefix, DEFAULT_SEGMENT_SIZE, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Starts a new segment after any existing ones of the same capture in
+     * {@code directory}, sealing the last one first if a crash left it open.
+     */
+    public CaptureWriter(File directory, String prefix, int segmentSize, int blockSize) throws IOException
+    {
+        if ( blockSize < CaptureFormat.BLOCK_HEADER_SIZE + CaptureFormat.MAX_RECORD_SIZE )
+            throw new IllegalArgumentException("block size too small: " + blockSize);
+        if ( segmentSize < CaptureFormat.HEADER_SIZE + blockSize + CaptureFormat.INDEX_ENTRY_SIZE + CaptureFormat.TRAILER_SIZE )
+            throw new IllegalArgumentException("segment size too small for the block size: " + segmentSize);
+
+        _directory = directory;
+        _prefix = prefix;
+        _segmentSize = segmentSize;
+        _block = new byte[blockSize];
+        _blockBuffer = ByteBuffer.wrap(_block).order(ByteOrder.LITTLE_ENDIAN);
+
+        if ( !directory.isDirectory() && !directory.mkdirs() )
+            throw new IOException("Cannot create " + directory);
+
+        int next = 1;
+        for ( File existing : CaptureFormat.listSegments(directory, prefix) )
+        {
+            CaptureReader.recover(existing);
+            String name = existing.getName();
+            next = Integer.parseInt(name.substring(prefix.length() + 1, prefix.length() + 7)) + 1;
+        }
+        openSegment(next);
+    }
+
+    public int getSegmentNumber() { return _segmentNumber; }
+    public long getRecordsWritten() { return _recordsWritten; }
+
+    /** Returns the number of bytes of blocks written to segments so far. */
+    public long getBytesWritten() { return _bytesWritten; }
+
+    /**
+     * Records a frame as received, for instance a command acknowledgement.
+     */
+    public void appendFrame(long timestampNanos, byte command, byte[] payload, int offset, int length) throws IOException
+    {
+        if ( length > Packet.MAX_PAYLOAD_LENGTH )
+            throw new IllegalArgumentException("payload too long: " + length);
+
+        int at = reserve(CaptureFormat.FRAME_RECORD_HEADER_SIZE + length, timestampNanos);
+        _block[at] = CaptureFormat.RECORD_FRAME;
+        _blockBuffer.putLong(at + 1, timestampNanos);
+        _block[at + 9] = command;
+        _block[at + 10] = (byte)length;
+        System.arraycopy(payload, offset, _block, at + 11, length);
+    }
+
+    /**
+     * Records one frame of decoded samples.
+     *
+     * @param sequence the sequence number sent by the device
+     */
+    public void appendSamples(long timestampNanos, long sequence, float[] samples, int channels) throws IOException
+    {
+        if ( channels > SampleFrame.MAX_CHANNELS )
+            throw new IllegalArgumentException("too many channels: " + channels);
+
+        int at = reserve(1 + SampleCodec.getMaxEncodedLength(channels), timestampNanos);
+        _block[at] = CaptureFormat.RECORD_PACKED;
+        int length = _codec.encode(_block, at + 1, timestampNanos, sequence, samples, channels);
+
+        // give back what the worst case reserved
+        _blockLength = at + 1 + length;
+    }
+
+    /**
+     * Writes the records collected so far to the segment as a block, where
+     * they survive a crash of the app but not necessarily of the device.
+     */
+    public void flush() throws IOException
+    {
+        checkOpen();
+        if ( _blockRecords == 0 )
+            return;
+
+        if ( !fits(_blockLength) )
+        {
+            finishSegment();
+            openSegment(_segmentNumber + 1);
+        }
+
+        int payloadLength = _blockLength - CaptureFormat.BLOCK_HEADER_SIZE;
+        _blockBuffer.putInt(0, CaptureFormat.BLOCK_MAGIC);
+        _blockBuffer.putInt(4, payloadLength);
+        _blockBuffer.putInt(8, _blockRecords);
+        _blockBuffer.putInt(20, CaptureFormat.blockCrc(_crc, _block, 0, payloadLength));
+
+        _segment.position(_position);
+        _segment.put(_block, 0, _blockLength);
+        addIndexEntry(_position, _blockRecords, _blockBuffer.getLong(12));
+
+        _position += _blockLength;
+        _bytesWritten += _blockLength;
+        _blockLength = CaptureFormat.BLOCK_HEADER_SIZE;
+        _blockRecords = 0;
+    }
+
+    /**
+     * Flushes and forces the segment to storage.
+     */
+    public void sync() throws IOException
+    {
+        flush();
+        _segment.force();
+    }
+
+    /**
+     * Flushes and seals the current segment.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if ( _closed )
+            return;
+
+        try
+        {
+            flush();
+            finishSegment();
+        }
+        finally
+        {
+            _closed = true;
+        }
+    }
+
+    /**
+     * Makes room for a record of {@code size} bytes in the block, flushing it
+     * first if it's full.
+     *
+     * @return the offset of the record in the block
+     */
+    private int reserve(int size, long timestampNanos) throws IOException
+    {
+        checkOpen();
+        if ( _blockLength + size > _block.length )
+            flush();
+
+        if ( _blockRecords == 0 )
+        {
+            _blockBuffer.putLong(12, timestampNanos);
+            _codec.reset(timestampNanos);
+        }
+
+        int at = _blockLength;
+        _blockLength += size;
+        _blockRecords++;
+        _recordsWritten++;
+        return at;
+    }
+
+    /**
+     * Returns whether a block of {@code length} bytes still fits in the
+     * segment, together with its index entry and the trailer.
+     */
+    private boolean fits(int length)
+    {
+        long end = (long)_position + length + (long)(_blockCount + 1) * CaptureFormat.INDEX_ENTRY_SIZE
+            + CaptureFormat.TRAILER_SIZE;
+        return end <= _segmentSize;
+    }
+
+    private void addIndexEntry(int offset, int records, long timestamp)
+    {
+        if ( _blockCount == _blockOffsets.length )
+        {
+            int capacity = 2 * _blockCount;
+            int[] offsets = new int[capacity];
+            int[] counts = new int[capacity];
+            long[] timestamps = new long[capacity];
+            System.arraycopy(_blockOffsets, 0, offsets, 0, _blockCount);
+            System.arraycopy(_blockRecordCounts, 0, counts, 0, _blockCount);
+            System.arraycopy(_blockTimestamps, 0, timestamps, 0, _blockCount);
+            _blockOffsets = offsets;
+            _blockRecordCounts = counts;
+            _blockTimestamps = timestamps;
+        }
+
+        _blockOffsets[_blockCount] = offset;
+        _blockRecordCounts[_blockCount] = records;
+        _blockTimestamps[_blockCount] = timestamp;
+        _blockCount++;
+    }
+
+    private void openSegment(int number) throws IOException
+    {
+        File file = new File(_directory, CaptureFormat.getSegmentName(_prefix, number));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(_segmentSize);
+            _segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, _segmentSize);
+        }
+        catch (IOException e)
+        {
+            raf.close();
+            throw e;
+        }
+        _segment.order(ByteOrder.LITTLE_ENDIAN);
+        _file = raf;
+        _segmentNumber = number;
+
+        _segment.putInt(0, CaptureFormat.SEGMENT_MAGIC);
+        _segment.putShort(4, (short)CaptureFormat.VERSION);
+        _segment.putShort(6, (short)0);
+        _segment.putInt(8, number);
+        _segment.putInt(12, _segmentSize);
+        _segment.putLong(16, System.currentTimeMillis());
+        _segment.putInt(24, 0);
+
+        byte[] header = new byte[28];
+        _segment.position(0);
+        _segment.get(header);
+        _crc.reset();
+        _crc.update(header, 0, header.length);
+        _segment.putInt(28, (int)_crc.getValue());
+
+        _position = CaptureFormat.HEADER_SIZE;
+        _blockCount = 0;
+    }
+
+    private void finishSegment() throws IOException
+    {
+        CaptureFormat.writeFooter(_segment, _position, _blockCount, _blockOffsets, _blockRecordCounts, _blockTimestamps);
+        _segment.force();
+        _file.close();
+        _segment = null;
+        _file = null;
+    }
+
+    private void checkOpen() throws IOException
+    {
+        if ( _closed )
+            throw new IOException("Capture closed");
+    }
+}
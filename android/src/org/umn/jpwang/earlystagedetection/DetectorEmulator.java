@@ -0,0 +1,270 @@
+package org.umn.jpwang.earlystagedetection;
+
+import com.hoho.android.usbserial.driver.SerialTransport;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Stands in for the detector firmware on the device end of a
+ * {@link SerialTransport}, typically one of a
+ * {@link com.hoho.android.usbserial.driver.LoopbackTransport} pair, so the
+ * host stack can be load tested without hardware.
+ * <p/>
+ * A Config command sets the channel map and is acknowledged with a Config
+ * frame carrying the same map. A Start command sets the signal parameters
+ * and starts a stream of {@link SampleFrame}s at the configured sample rate:
+ * every channel carries the sensor sine with a per channel phase, the field
+ * sine, a slow random walk drift and gaussian noise.
+ * <p/>
+ * Like the real device it only buffers a limited number of samples: when
+ * the link can't keep up the oldest unsent samples are dropped, which shows
+ * up on the host as a gap in the sequence numbers and in
+ * {@link #getFramesDropped()}.
+ */
+public class DetectorEmulator implements Runnable
+{
+    public static final double DEFAULT_SAMPLE_RATE = 1000.0;
+    public static final int DEFAULT_FIFO_FRAMES = 256;
+
+    private static final int IDLE_READ_MILLIS = 20;
+    private static final int WRITE_TIMEOUT_MILLIS = 100;
+    private static final int WRITE_BUFFER_SIZE = 8192;
+
+    private final SerialTransport _transport;
+
+    private final FrameDecoder _decoder;
+    private final byte[] _readBuffer = new byte[1024];
+    private final byte[] _writeBuffer = new byte[WRITE_BUFFER_SIZE];
+
+    private final Random _random;
+    private final float[] _samples = new float[SampleFrame.MAX_CHANNELS];
+    private final double[] _drift = new double[SampleFrame.MAX_CHANNELS];
+
+    private volatile double _sampleRate = DEFAULT_SAMPLE_RATE;
+    private volatile int _channelCount = 0;
+    private volatile int _fifoFrames = DEFAULT_FIFO_FRAMES;
+    private volatile double _noise = 0.01;
+    private volatile double _driftStep = 0.0001;
+
+    private volatile boolean _running = false;
+
+    // reader thread only
+    private byte[] _channelMap = new byte[0];
+    private StartParameters _parameters = StartParameters.DEFAULT;
+    private boolean _streaming = false;
+    private long _streamStart;
+    private long _sequence;
+
+    // set by the decoder callback, thrown from run()
+    private IOException _writeError;
+
+    private volatile long _framesSent = 0;
+    private volatile long _framesDropped = 0;
+
+    public DetectorEmulator(SerialTransport transport)
+    {
+        this(transport, System.nanoTime());
+    }
+
+    public DetectorEmulator(SerialTransport transport, long seed)
+    {
+        _transport = transport;
+        _random = new Random(seed);
+        _decoder = new FrameDecoder(new FrameDecoder.Listener()
+        {
+            @Override
+            public void onFrame(byte command, byte[] payload, int offset, int length)
+            {
+                try
+                {
+                    onCommand(command, payload, offset, length);
+                }
+                catch (IOException e)
+                {
+                    _writeError = e;
+                }
+                catch (IllegalArgumentException e)
+                {
+                    // malformed Start parameters, the firmware ignores those too
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the number of data frames per second streamed after Start.
+     */
+    public void setSampleRate(double framesPerSecond)
+    {
+        if ( !(framesPerSecond > 0.0) )
+            throw new IllegalArgumentException("sample rate must be > 0: " + framesPerSecond);
+
+        _sampleRate = framesPerSecond;
+    }
+
+    /**
+     * Overrides the number of channels per frame, which otherwise follows
+     * the length of the Config channel map. Pass 0 to follow it again.
+     */
+    public void setChannelCount(int channels)
+    {
+        if ( channels < 0 || channels > SampleFrame.MAX_CHANNELS )
+            throw new IllegalArgumentException("channel count out of range: " + channels);
+
+        _channelCount = channels;
+    }
+
+    /**
+     * Sets how many frames the device buffers before it starts dropping.
+     */
+    public void setFifoFrames(int frames)
+    {
+        _fifoFrames = frames;
+    }
+
+    public void setNoise(double standardDeviation) { _noise = standardDeviation; }
+    public void setDriftStep(double standardDeviation) { _driftStep = standardDeviation; }
+
+    public double getSampleRate() { return _sampleRate; }
+    public long getFramesSent() { return _framesSent; }
+    public long getFramesDropped() { return _framesDropped; }
+
+    public void stop()
+    {
+        _running = false;
+    }
+
+    /**
+     * Serves commands and streams data until {@link #stop()} is called or the
+     * transport is closed.
+     */
+    @Override
+    public void run()
+    {
+        _running = true;
+        try
+        {
+            while ( _running )
+            {
+                int n = _transport.read(_readBuffer, 0, _readBuffer.length, readTimeoutMillis());
+                if ( n > 0 )
+                {
+                    _decoder.feed(_readBuffer, 0, n);
+                    if ( _writeError != null )
+                        throw _writeError;
+                }
+
+                if ( _streaming )
+                    stream();
+            }
+        }
+        catch (IOException e)
+        {
+            // transport closed underneath us, nothing left to serve
+        }
+        finally
+        {
+            _running = false;
+        }
+    }
+
+    private int readTimeoutMillis()
+    {
+        if ( !_streaming )
+            return IDLE_READ_MILLIS;
+
+        // wake up in time for the next frame
+        long next = _streamStart + (long)((_sequence + 1) * 1e9 / _sampleRate);
+        long millis = (next - System.nanoTime()) / 1000000L;
+        // 0 would mean "forever" to a USB transport
+        return (int)Math.max(1, Math.min(millis, IDLE_READ_MILLIS));
+    }
+
+    private void onCommand(byte command, byte[] payload, int offset, int length) throws IOException
+    {
+        if ( command == Packet.COMMAND_CONFIG )
+        {
+            _channelMap = new byte[length];
+            System.arraycopy(payload, offset, _channelMap, 0, length);
+            _streaming = false;
+
+            byte[] ack = new Packet(Packet.COMMAND_CONFIG, _channelMap).getBuffer();
+            writeFully(ack, ack.length);
+        }
+        else if ( command == Packet.COMMAND_START )
+        {
+            _parameters = StartParameters.fromPayload(payload, offset, length);
+            for ( int c = 0; c < _drift.length; c++ )
+                _drift[c] = 0.0;
+
+            _sequence = 0;
+            _streamStart = System.nanoTime();
+            _streaming = true;
+        }
+    }
+
+    /**
+     * Sends every frame that has come due since the last call, dropping the
+     * oldest ones beyond the FIFO size.
+     */
+    private void stream() throws IOException
+    {
+        int channels = _channelCount > 0 ? _channelCount : Math.min(_channelMap.length, SampleFrame.MAX_CHANNELS);
+        int frameLength = SampleFrame.getFrameLength(channels);
+
+        long due = (long)((System.nanoTime() - _streamStart) * _sampleRate / 1e9) - _sequence;
+        if ( due > _fifoFrames )
+        {
+            long dropped = due - _fifoFrames;
+            for ( long i = 0; i < dropped; i++ )
+                advanceSignal(channels);
+
+            _sequence += dropped;
+            _framesDropped += dropped;
+            due = _fifoFrames;
+        }
+
+        int pending = 0;
+        while ( due > 0 )
+        {
+            if ( pending + frameLength > _writeBuffer.length )
+            {
+                writeFully(_writeBuffer, pending);
+                pending = 0;
+            }
+
+            advanceSignal(channels);
+            pending += SampleFrame.encode(_writeBuffer, pending, _sequence, _samples, channels);
+            _sequence++;
+            _framesSent++;
+            due--;
+        }
+        if ( pending > 0 )
+            writeFully(_writeBuffer, pending);
+    }
+
+    /**
+     * Computes the samples of frame {@code _sequence} into {@code _samples}.
+     */
+    private void advanceSignal(int channels)
+    {
+        double t = _sequence / _sampleRate;
+        double sensor = 2.0 * Math.PI * _parameters.getSensorFrequency() * t;
+        double field = _parameters.getFieldAmplitude() * Math.sin(2.0 * Math.PI * _parameters.getFieldFrequency() * t);
+
+        for ( int c = 0; c < channels; c++ )
+        {
+            _drift[c] += _driftStep * _random.nextGaussian();
+            _samples[c] = (float)(_parameters.getSensorAmplitude() * Math.sin(sensor + 0.1 * c)
+                + field + _drift[c] + _noise * _random.nextGaussian());
+        }
+    }
+
+    private void writeFully(byte[] data, int length) throws IOException
+    {
+        int written = 0;
+        while ( written < length && _running )
+            written += _transport.write(data, written, length - written, WRITE_TIMEOUT_MILLIS);
+    }
+}
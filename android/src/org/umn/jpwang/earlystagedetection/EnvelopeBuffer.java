@@ -0,0 +1,128 @@
+package org.umn.jpwang.earlystagedetection;
+
+/**
+ * Min/max envelope of a multi-channel signal at display resolution: every
+ * {@code samplesPerColumn} frames are folded into one column holding the
+ * minimum and maximum of each channel, and the last {@code columns} columns
+ * are kept in a ring. Adding a frame is constant time and allocation free,
+ * so the reader thread can feed it at the full sample rate while the UI
+ * thread copies out the envelope at its own pace.
+ */
+public class EnvelopeBuffer
+{
+    private final int _channels;
+    private int _columns;
+    private int _samplesPerColumn;
+
+    // [channel * _columns + column]
+    private float[] _mins;
+    private float[] _maxs;
+    private int _head = 0;
+    private int _filled = 0;
+
+    // column being accumulated
+    private final float[] _currentMin;
+    private final float[] _currentMax;
+    private int _currentCount = 0;
+
+    private long _framesAdded = 0;
+
+    public EnvelopeBuffer(int channels, int columns, int samplesPerColumn)
+    {
+        if ( channels <= 0 )
+            throw new IllegalArgumentException("channels must be > 0: " + channels);
+
+        _channels = channels;
+        _currentMin = new float[channels];
+        _currentMax = new float[channels];
+        resize(columns, samplesPerColumn);
+    }
+
+    public int getChannelCount() { return _channels; }
+    public synchronized int getColumnCount() { return _columns; }
+    public synchronized int getSamplesPerColumn() { return _samplesPerColumn; }
+    public synchronized long getFramesAdded() { return _framesAdded; }
+
+    /**
+     * Changes the resolution, dropping everything collected so far.
+     */
+    public synchronized void resize(int columns, int samplesPerColumn)
+    {
+        if ( columns <= 0 || samplesPerColumn <= 0 )
+            throw new IllegalArgumentException("bad resolution: " + columns + " x " + samplesPerColumn);
+
+        if ( columns != _columns )
+        {
+            _mins = new float[_channels * columns];
+            _maxs = new float[_channels * columns];
+            _columns = columns;
+        }
+        _samplesPerColumn = samplesPerColumn;
+        _head = 0;
+        _filled = 0;
+        _currentCount = 0;
+    }
+
+    /**
+     * Adds one frame, {@code samples[c]} being the sample of channel
+     * {@code c}. Channels beyond {@code samples.length} are left alone.
+     */
+    public synchronized void add(float[] samples)
+    {
+        int channels = Math.min(samples.length, _channels);
+        if ( _currentCount == 0 )
+        {
+            for ( int c = 0; c < channels; c++ )
+            {
+                _currentMin[c] = samples[c];
+                _currentMax[c] = samples[c];
+            }
+        }
+        else
+        {
+            for ( int c = 0; c < channels; c++ )
+            {
+                float sample = samples[c];
+                if ( sample < _currentMin[c] )
+                    _currentMin[c] = sample;
+                if ( sample > _currentMax[c] )
+                    _currentMax[c] = sample;
+            }
+        }
+
+        _framesAdded++;
+        if ( ++_currentCount < _samplesPerColumn )
+            return;
+
+        for ( int c = 0; c < _channels; c++ )
+        {
+            _mins[c * _columns + _head] = _currentMin[c];
+            _maxs[c * _columns + _head] = _currentMax[c];
+        }
+        _head = (_head + 1) % _columns;
+        if ( _filled < _columns )
+            _filled++;
+        _currentCount = 0;
+    }
+
+    /**
+     * Copies the completed columns, oldest first, into {@code mins} and
+     * {@code maxs} laid out as {@code [channel * getColumnCount() + column]}.
+     *
+     * @return the number of columns copied per channel
+     */
+    public synchronized int copyTo(float[] mins, float[] maxs)
+    {
+        int start = (_head - _filled + _columns) % _columns;
+        int first = Math.min(_filled, _columns - start);
+        for ( int c = 0; c < _channels; c++ )
+        {
+            int base = c * _columns;
+            System.arraycopy(_mins, base + start, mins, base, first);
+            System.arraycopy(_maxs, base + start, maxs, base, first);
+            System.arraycopy(_mins, base, mins, base + first, _filled - first);
+            System.arraycopy(_maxs, base, maxs, base + first, _filled - first);
+        }
+        return _filled;
+    }
+}
@@ -0,0 +1,186 @@
+package org.umn.jpwang.earlystagedetection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder for the SOF/command/length/payload/XOR frames used by
+ * the detector, the inverse of {@link Packet}.
+ * <p/>
+ * Incoming bytes are copied into a fixed ring buffer, so frames split across
+ * several reads are reassembled without allocating. When a frame fails its
+ * XOR check only the SOF byte is dropped and the decoder resyncs on the next
+ * SOF found in the stream.
+ * <p/>
+ * Not thread safe, feed it from a single (reader) thread.
+ */
+public class FrameDecoder
+{
+    public interface Listener
+    {
+        /**
+         * Called for every complete, XOR-checked frame. The payload is only
+         * valid for the duration of the call, copy it if it needs to be kept.
+         */
+        public void onFrame(byte command, byte[] payload, int offset, int length);
+    }
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final int HEADER_LENGTH = 3; // SOF, command, length
+    private static final int MAX_PAYLOAD_LENGTH = 255;
+    private static final int MAX_FRAME_LENGTH = HEADER_LENGTH + MAX_PAYLOAD_LENGTH + 1;
+
+    private final byte[] _ring;
+    private final int _mask;
+    private int _head = 0;
+    private int _size = 0;
+
+    // used when a payload wraps around the end of the ring
+    private final byte[] _scratch = new byte[MAX_PAYLOAD_LENGTH];
+
+    private Listener _listener;
+
+    private long _framesDecoded = 0;
+    private long _checksumErrors = 0;
+    private long _bytesDiscarded = 0;
+
+    public FrameDecoder(Listener listener)
+    {
+        this(listener, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity ring size in bytes, rounded up to a power of two large
+     *                 enough to hold two maximum sized frames
+     */
+    public FrameDecoder(Listener listener, int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(capacity, 2 * MAX_FRAME_LENGTH) - 1) << 1;
+
+        _ring = new byte[size];
+        _mask = size - 1;
+        _listener = listener;
+    }
+
+    public void setListener(Listener listener) { _listener = listener; }
+
+    public long getFramesDecoded() { return _framesDecoded; }
+    public long getChecksumErrors() { return _checksumErrors; }
+    public long getBytesDiscarded() { return _bytesDiscarded; }
+
+    /**
+     * Discards any partially received frame.
+     */
+    public void reset()
+    {
+        _head = 0;
+        _size = 0;
+    }
+
+    public void feed(byte[] data, int offset, int length)
+    {
+        while ( length > 0 )
+        {
+            int count = Math.min(length, _ring.length - _size);
+            int tail = (_head + _size) & _mask;
+            int first = Math.min(count, _ring.length - tail);
+
+            System.arraycopy(data, offset, _ring, tail, first);
+            System.arraycopy(data, offset + first, _ring, 0, count - first);
+
+            _size += count;
+            offset += count;
+            length -= count;
+
+            decode();
+        }
+    }
+
+    /**
+     * Consumes the bytes between the buffer's position and limit, works for
+     * both heap and direct buffers.
+     */
+    public void feed(ByteBuffer data)
+    {
+        if ( data.hasArray() )
+        {
+            feed(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+            return;
+        }
+
+        while ( data.hasRemaining() )
+        {
+            int count = Math.min(data.remaining(), _ring.length - _size);
+            int tail = (_head + _size) & _mask;
+            int first = Math.min(count, _ring.length - tail);
+
+            data.get(_ring, tail, first);
+            data.get(_ring, 0, count - first);
+
+            _size += count;
+
+            decode();
+        }
+    }
+
+    private void decode()
+    {
+        while ( _size > 0 )
+        {
+            if ( _ring[_head] != Packet.SOF )
+            {
+                // out of sync, skip ahead to the next start of frame
+                _head = (_head + 1) & _mask;
+                _size--;
+                _bytesDiscarded++;
+                continue;
+            }
+
+            if ( _size < HEADER_LENGTH )
+                return;
+
+            byte command = _ring[(_head + 1) & _mask];
+            int payloadLength = _ring[(_head + 2) & _mask] & 0xFF;
+            int frameLength = HEADER_LENGTH + payloadLength + 1;
+
+            if ( _size < frameLength )
+                return;
+
+            int payloadStart = (_head + HEADER_LENGTH) & _mask;
+
+            byte xor = (byte)(command ^ payloadLength);
+            for ( int i = 0; i < payloadLength; i++ )
+                xor ^= _ring[(payloadStart + i) & _mask];
+
+            if ( xor != _ring[(payloadStart + payloadLength) & _mask] )
+            {
+                // drop just the SOF, the real frame may start inside this one
+                _head = (_head + 1) & _mask;
+                _size--;
+                _bytesDiscarded++;
+                _checksumErrors++;
+                continue;
+            }
+
+            if ( _listener != null )
+            {
+                if ( payloadStart + payloadLength <= _ring.length )
+                {
+                    _listener.onFrame(command, _ring, payloadStart, payloadLength);
+                }
+                else
+                {
+                    int first = _ring.length - payloadStart;
+                    System.arraycopy(_ring, payloadStart, _scratch, 0, first);
+                    System.arraycopy(_ring, 0, _scratch, first, payloadLength - first);
+                    _listener.onFrame(command, _scratch, 0, payloadLength);
+                }
+            }
+
+            _head = (_head + frameLength) & _mask;
+            _size -= frameLength;
+            _framesDecoded++;
+        }
+    }
+}
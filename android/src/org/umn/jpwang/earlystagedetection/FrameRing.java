@@ -0,0 +1,323 @@
+package org.umn.jpwang.earlystagedetection;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated, sequence numbered ring of decoded frames, published by the
+ * reader thread and read by any number of independent {@link Consumer}s.
+ * <p/>
+ * Every frame gets the next sequence number and is copied into the slot
+ * {@code sequence % capacity}, so publishing never allocates and never
+ * waits: a consumer that falls more than a capacity behind is lapped, skips
+ * to the oldest frame still in the ring and counts the rest as missed. The
+ * USB reader therefore runs at full speed whatever the consumers do.
+ * <p/>
+ * Consumers copy a slot before handing it to their {@link Handler}. Each
+ * slot carries the sequence of the frame in it, which the producer clears
+ * before overwriting the slot and sets once it is filled; a consumer reads
+ * it before and after its copy and drops the copy if it changed, so a
+ * handler only ever sees complete frames and nobody takes a lock. The slot
+ * contents are atomics, as in {@link SampleStore}, so the second read of
+ * the sequence can't be reordered before the copy. How a consumer waits for
+ * new frames is its {@link WaitStrategy}.
+ * <p/>
+ * The ring is a {@link FrameDecoder.Listener}, so it can be plugged in
+ * directly behind a decoder or {@link ProtocolSession}.
+ */
+public class FrameRing implements FrameDecoder.Listener
+{
+    /**
+     * How a consumer waits for the next frame, trading latency for CPU.
+     */
+    public enum WaitStrategy
+    {
+        /** Spin on the cursor: lowest latency, burns a core. */
+        BUSY_SPIN,
+        /** Spin, yielding the thread between checks. */
+        YIELDING,
+        /** Park for short intervals: no signalling cost for the producer. */
+        SLEEPING,
+        /** Sleep until the producer signals; cheapest while idle. */
+        BLOCKING
+    }
+
+    /**
+     * Receives frames from a {@link Consumer}. The payload array belongs to
+     * the consumer and is only valid until this returns.
+     */
+    public interface Handler
+    {
+        public void onFrame(long sequence, long timestampNanos, byte command, byte[] payload, int length);
+    }
+
+    private static final long SLEEP_NANOS = 100000L;
+
+    private static final int PAYLOAD_WORDS = (Packet.MAX_PAYLOAD_LENGTH + 3) / 4;
+
+    private static class Slot
+    {
+        // sequence of the frame in the slot, -1 while it is being written
+        final AtomicLong sequence = new AtomicLong(-1);
+        // command << 16 | length
+        final AtomicInteger header = new AtomicInteger();
+        final AtomicLong timestampNanos = new AtomicLong();
+        // the payload, four bytes to a word, little endian
+        final AtomicIntegerArray payload = new AtomicIntegerArray(PAYLOAD_WORDS);
+    }
+
+    private final Slot[] _slots;
+    private final int _mask;
+
+    // sequences completely published, written after the slot
+    private volatile long _published = 0;
+
+    private final Object _signal = new Object();
+    private volatile int _blockedConsumers = 0;
+
+    /**
+     * @param capacity the number of slots, a power of two
+     */
+    public FrameRing(int capacity)
+    {
+        if ( capacity <= 0 || Integer.bitCount(capacity) != 1 )
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+
+        _slots = new Slot[capacity];
+        for ( int i = 0; i < capacity; i++ )
+            _slots[i] = new Slot();
+        _mask = capacity - 1;
+    }
+
+    public int getCapacity() { return _slots.length; }
+
+    /**
+     * Returns the number of frames published so far, which is also the
+     * sequence number the next frame will get.
+     */
+    public long getPublishedCount() { return _published; }
+
+    @Override
+    public void onFrame(byte command, byte[] payload, int offset, int length)
+    {
+        publish(command, payload, offset, length, System.nanoTime());
+    }
+
+    /**
+     * Copies a frame into the next slot. Only one thread may publish.
+     *
+     * @return the sequence number of the frame
+     */
+    public long publish(byte command, byte[] payload, int offset, int length, long timestampNanos)
+    {
+        if ( length > Packet.MAX_PAYLOAD_LENGTH )
+            throw new IllegalArgumentException("payload too long: " + length);
+
+        long sequence = _published;
+        Slot slot = _slots[(int)sequence & _mask];
+        slot.sequence.set(-1);
+        slot.header.set((command & 0xFF) << 16 | length);
+        slot.timestampNanos.set(timestampNanos);
+        for ( int i = 0; i < length; i += 4 )
+        {
+            int word = 0;
+            for ( int b = Math.min(4, length - i) - 1; b >= 0; b-- )
+                word = word << 8 | (payload[offset + i + b] & 0xFF);
+            slot.payload.set(i >> 2, word);
+        }
+        slot.sequence.set(sequence);
+
+        _published = sequence + 1;
+
+        if ( _blockedConsumers > 0 )
+        {
+            synchronized ( _signal )
+            {
+                _signal.notifyAll();
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Creates a consumer that starts with the next frame published.
+     */
+    public Consumer newConsumer(WaitStrategy strategy)
+    {
+        return new Consumer(strategy, _published);
+    }
+
+    /**
+     * One reader of the ring with its own position. A consumer must only be
+     * used from one thread at a time.
+     */
+    public class Consumer
+    {
+        private final WaitStrategy _strategy;
+        private final byte[] _payload = new byte[Packet.MAX_PAYLOAD_LENGTH];
+
+        private long _next;
+        private long _missed = 0;
+        private volatile boolean _halted = false;
+
+        private Consumer(WaitStrategy strategy, long next)
+        {
+            _strategy = strategy;
+            _next = next;
+        }
+
+        /** Sequence number of the next frame this consumer will handle. */
+        public long getSequence() { return _next; }
+
+        /** Frames overwritten before this consumer got to them. */
+        public long getMissedFrames() { return _missed; }
+
+        /** Frames published but not handled yet. */
+        public long getBacklog() { return Math.max(0, _published - _next); }
+
+        /**
+         * Hands every frame published so far to {@code handler}, without
+         * waiting.
+         *
+         * @return the number of frames handled
+         */
+        public int poll(Handler handler)
+        {
+            long end = _published;
+            int handled = 0;
+            while ( _next < end )
+            {
+                Slot slot = _slots[(int)_next & _mask];
+                byte command = 0;
+                int length = 0;
+                long timestamp = 0;
+                boolean intact = slot.sequence.get() == _next;
+                if ( intact )
+                {
+                    int header = slot.header.get();
+                    command = (byte)(header >>> 16);
+                    length = header & 0xFFFF;
+                    timestamp = slot.timestampNanos.get();
+                    for ( int i = 0; i < length; i += 4 )
+                    {
+                        int word = slot.payload.get(i >> 2);
+                        for ( int b = i; b < i + 4 && b < length; b++, word >>>= 8 )
+                            _payload[b] = (byte)word;
+                    }
+                    // the producer clears the sequence before touching the slot
+                    intact = slot.sequence.get() == _next;
+                }
+
+                if ( !intact )
+                {
+                    // lapped by the producer; if it is still writing over
+                    // _published - capacity, the next pass finds that slot torn too
+                    long oldest = Math.max(_next + 1, _published - _slots.length);
+                    _missed += oldest - _next;
+                    _next = oldest;
+                    end = _published;
+                    continue;
+                }
+
+                handler.onFrame(_next, timestamp, command, _payload, length);
+                _next++;
+                handled++;
+            }
+            return handled;
+        }
+
+        /**
+         * Waits up to {@code timeoutMillis} for frames according to the wait
+         * strategy, then handles whatever is available.
+         *
+         * @return the number of frames handled, 0 on timeout or halt
+         */
+        public int process(Handler handler, long timeoutMillis) throws InterruptedException
+        {
+            if ( awaitFrames(timeoutMillis) )
+                return poll(handler);
+            return 0;
+        }
+
+        /**
+         * Handles frames until {@link #halt()} is called or the thread is
+         * interrupted.
+         */
+        public void run(Handler handler)
+        {
+            try
+            {
+                while ( !_halted )
+                    process(handler, 100);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Makes {@link #run(Handler)} return soon, from any thread.
+         */
+        public void halt()
+        {
+            _halted = true;
+            if ( _strategy == WaitStrategy.BLOCKING )
+            {
+                synchronized ( _signal )
+                {
+                    _signal.notifyAll();
+                }
+            }
+        }
+
+        public boolean isHalted() { return _halted; }
+
+        private boolean awaitFrames(long timeoutMillis) throws InterruptedException
+        {
+            long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+            while ( _published <= _next )
+            {
+                if ( _halted )
+                    return false;
+
+                long remaining = deadline - System.nanoTime();
+                if ( remaining <= 0 )
+                    return false;
+
+                switch ( _strategy )
+                {
+                    case BUSY_SPIN:
+                        break;
+                    case YIELDING:
+                        Thread.yield();
+                        break;
+                    case SLEEPING:
+                        LockSupport.parkNanos(Math.min(SLEEP_NANOS, remaining));
+                        if ( Thread.interrupted() )
+                            throw new InterruptedException();
+                        break;
+                    case BLOCKING:
+                        synchronized ( _signal )
+                        {
+                            _blockedConsumers++;
+                            try
+                            {
+                                // re-check under the lock, the producer may have just published
+                                if ( _published <= _next && !_halted )
+                                    _signal.wait(Math.max(1, remaining / 1000000L));
+                            }
+                            finally
+                            {
+                                _blockedConsumers--;
+                            }
+                        }
+                        break;
+                }
+            }
+            return true;
+        }
+    }
+}
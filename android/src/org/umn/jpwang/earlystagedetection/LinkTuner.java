@@ -0,0 +1,84 @@
+package org.umn.jpwang.earlystagedetection;
+
+import com.hoho.android.usbserial.driver.FtdiSerialDriver;
+
+import java.io.IOException;
+
+/**
+ * Changes the FTDI link settings that trade latency against throughput and
+ * measures the command round trip after every change, so the effect of each
+ * setting shows up directly.
+ * <p/>
+ * A round trip is a Config command answered by its acknowledgement, so the
+ * serial reader must be running. Like {@link ProtocolSession#execute}, every
+ * method blocks and must not be called from the reader thread.
+ */
+public class LinkTuner
+{
+    public interface Listener
+    {
+        public void onRoundTripMeasured(String setting, long nanos);
+    }
+
+    // the detector answers with short frames, don't let the chip sit on them
+    public static final int DETECTOR_LATENCY_TIMER_MILLIS = 2;
+    // one read fills a receive buffer, whole packets of the 64 byte endpoint
+    public static final int DETECTOR_READ_CHUNK_SIZE = 4096;
+    // larger than any command frame, so a command is always one transfer
+    public static final int DETECTOR_WRITE_CHUNK_SIZE = 512;
+
+    private final FtdiSerialDriver _driver;
+    private final ProtocolSession _session;
+    private final Listener _listener;
+
+    public LinkTuner(FtdiSerialDriver driver, ProtocolSession session, Listener listener)
+    {
+        _driver = driver;
+        _session = session;
+        _listener = listener;
+    }
+
+    /**
+     * Applies the detector settings one at a time, measuring before the first
+     * and after each change.
+     */
+    public void applyDetectorProfile() throws IOException
+    {
+        measure("latency timer " + _driver.getLatencyTimer() + " ms");
+        setLatencyTimer(DETECTOR_LATENCY_TIMER_MILLIS);
+        setReadChunkSize(DETECTOR_READ_CHUNK_SIZE);
+        setWriteChunkSize(DETECTOR_WRITE_CHUNK_SIZE);
+    }
+
+    public long setLatencyTimer(int millis) throws IOException
+    {
+        _driver.setLatencyTimer(millis);
+        return measure("latency timer " + millis + " ms");
+    }
+
+    public long setReadChunkSize(int size) throws IOException
+    {
+        _driver.setReadBufferSize(size);
+        return measure("read chunk " + size + " bytes");
+    }
+
+    public long setWriteChunkSize(int size) throws IOException
+    {
+        _driver.setWriteBufferSize(size);
+        return measure("write chunk " + size + " bytes");
+    }
+
+    /**
+     * Times one Config command against its acknowledgement and reports it.
+     *
+     * @return the round trip in nanoseconds
+     */
+    public long measure(String setting) throws IOException
+    {
+        long nanos = _session.execute(Packet.get(Packet.Type.Config), Packet.COMMAND_CONFIG);
+        if ( _listener != null )
+            _listener.onRoundTripMeasured(setting, nanos);
+
+        return nanos;
+    }
+}
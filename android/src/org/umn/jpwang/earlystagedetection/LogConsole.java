@@ -0,0 +1,129 @@
+package org.umn.jpwang.earlystagedetection;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+/**
+ * Log output shown in a {@link ListView}, so only the visible lines are ever
+ * laid out. Lines can be appended from any thread: they are collected in a
+ * pending ring and handed to the list at most once per display frame, the
+ * list keeps the last {@link #DEFAULT_CAPACITY} lines.
+ */
+public class LogConsole extends BaseAdapter
+{
+    public static final int DEFAULT_CAPACITY = 2000;
+
+    // one display frame at 60 Hz
+    private static final long FLUSH_INTERVAL_MILLIS = 16;
+
+    private final LayoutInflater _inflater;
+    private final ListView _listView;
+    private final Handler _handler = new Handler(Looper.getMainLooper());
+
+    // UI thread only, backs the adapter
+    private final LogRing _lines;
+    private volatile long _lastFlush = 0;
+
+    // any thread
+    private final LogRing _pending;
+    private boolean _flushScheduled = false;
+
+    private final Runnable _flush = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            synchronized ( _pending )
+            {
+                _flushScheduled = false;
+            }
+
+            _lastFlush = SystemClock.uptimeMillis();
+            if ( _pending.drainTo(_lines) > 0 )
+                notifyDataSetChanged();
+        }
+    };
+
+    public LogConsole(ListView listView)
+    {
+        this(listView, DEFAULT_CAPACITY);
+    }
+
+    public LogConsole(ListView listView, int capacity)
+    {
+        _inflater = LayoutInflater.from(listView.getContext());
+        _listView = listView;
+        _lines = new LogRing(capacity);
+        _pending = new LogRing(capacity);
+        _listView.setAdapter(this);
+    }
+
+    /**
+     * Queues a line for display; safe to call from any thread.
+     */
+    public void append(String line)
+    {
+        _pending.add(line);
+
+        synchronized ( _pending )
+        {
+            if ( _flushScheduled )
+                return;
+
+            _flushScheduled = true;
+        }
+
+        long delay = _lastFlush + FLUSH_INTERVAL_MILLIS - SystemClock.uptimeMillis();
+        _handler.postDelayed(_flush, Math.max(0, delay));
+    }
+
+    /**
+     * Returns the log as text, including lines not yet displayed.
+     */
+    public String getText()
+    {
+        StringBuilder builder = new StringBuilder();
+        synchronized ( _pending )
+        {
+            _lines.appendTo(builder);
+            _pending.appendTo(builder);
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public int getCount()
+    {
+        return _lines.size();
+    }
+
+    @Override
+    public Object getItem(int position)
+    {
+        return _lines.get(position);
+    }
+
+    @Override
+    public long getItemId(int position)
+    {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent)
+    {
+        TextView view = (TextView)convertView;
+        if ( view == null )
+            view = (TextView)_inflater.inflate(R.layout.log_line, parent, false);
+
+        view.setText(_lines.get(position));
+        return view;
+    }
+}
@@ -0,0 +1,99 @@
+package org.umn.jpwang.earlystagedetection;
+
+/**
+ * Fixed capacity ring of log lines: once full, every new line replaces the
+ * oldest one, so memory and the cost of an append stay constant however long
+ * a session runs. Thread safe.
+ */
+public class LogRing
+{
+    private final String[] _lines;
+    private int _head = 0;
+    private int _size = 0;
+    private long _dropped = 0;
+
+    public LogRing(int capacity)
+    {
+        if ( capacity <= 0 )
+            throw new IllegalArgumentException("capacity must be > 0: " + capacity);
+
+        _lines = new String[capacity];
+    }
+
+    public int getCapacity() { return _lines.length; }
+    public synchronized int size() { return _size; }
+    public synchronized boolean isEmpty() { return _size == 0; }
+
+    /**
+     * Returns the number of lines pushed out by newer ones so far.
+     */
+    public synchronized long getDroppedCount() { return _dropped; }
+
+    public synchronized void add(String line)
+    {
+        _lines[(_head + _size) % _lines.length] = line;
+        if ( _size < _lines.length )
+        {
+            _size++;
+        }
+        else
+        {
+            _head = (_head + 1) % _lines.length;
+            _dropped++;
+        }
+    }
+
+    /**
+     * Returns the {@code index}th line, 0 being the oldest one kept.
+     */
+    public synchronized String get(int index)
+    {
+        if ( index < 0 || index >= _size )
+            throw new IndexOutOfBoundsException("index " + index + ", size " + _size);
+
+        return _lines[(_head + index) % _lines.length];
+    }
+
+    public synchronized void clear()
+    {
+        for ( int i = 0; i < _lines.length; i++ )
+            _lines[i] = null;
+
+        _head = 0;
+        _size = 0;
+    }
+
+    /**
+     * Moves every line into {@code target}, oldest first, and empties this ring.
+     *
+     * @return the number of lines moved
+     */
+    public int drainTo(LogRing target)
+    {
+        synchronized ( this )
+        {
+            int count = _size;
+            for ( int i = 0; i < count; i++ )
+            {
+                int slot = (_head + i) % _lines.length;
+                target.add(_lines[slot]);
+                _lines[slot] = null;
+            }
+
+            _head = 0;
+            _size = 0;
+            return count;
+        }
+    }
+
+    /**
+     * Appends every line, oldest first, each followed by a newline.
+     */
+    public synchronized StringBuilder appendTo(StringBuilder builder)
+    {
+        for ( int i = 0; i < _size; i++ )
+            builder.append(_lines[(_head + i) % _lines.length]).append('\n');
+
+        return builder;
+    }
+}
@@ -1,5 +1,12 @@
 package org.umn.jpwang.earlystagedetection;
 
+import java.nio.ByteBuffer;
+
+/**
+ * A framed command: SOF, command, payload length, payload and the XOR of
+ * command, length and payload. The frame is encoded once when the packet is
+ * built, packets are immutable afterwards and can be shared between threads.
+ */
 public class Packet
 {
     public enum Type
@@ -10,54 +17,128 @@ public class Packet
 
     public static final byte SOF = (byte)0xFE;
 
-    private byte _command;
-    private byte[] _payload;
-    private byte _payloadLength;
-    private byte _xor;
-    private byte[] _buffer;
+    public static final byte COMMAND_START = (byte)0x00;
+    public static final byte COMMAND_CONFIG = (byte)0x04;
+
+    public static final int MAX_PAYLOAD_LENGTH = 255;
+    public static final int MAX_LENGTH = 4 + MAX_PAYLOAD_LENGTH;
+
+    private static final Packet CONFIG = new Packet(Type.Config);
+    // built here rather than through StartParameters' cache, which hands out this instance for DEFAULT
+    private static final Packet START = new Packet(Type.Start);
+
+    /**
+     * Returns the shared, already encoded packet for the given type.
+     */
+    public static Packet get(Type type)
+    {
+        return type == Type.Config ? CONFIG : START;
+    }
+
+    private final byte _command;
+    private final byte[] _buffer;
+
+    /**
+     * Returns the encoded frame. The array is shared, do not modify it.
+     */
     public byte[] getBuffer() { return _buffer; };
+    public int getLength() { return _buffer.length; }
+    public byte getCommand() { return _command; }
 
     public Packet(Type type)
     {
-        if ( type == Type.Config )
-        {
-            _command = (byte)0x04;
-            _payload = generateConfigPayload();
-        }
-        else if ( type == Type.Start )
-        {
-            _command = (byte)0x00;
-            _payload = generateStartPayload();
-        }
-
-        _payloadLength = (byte)_payload.length;
-
-        computeXor();
-
-        computeBuffer();
+        this(type == Type.Config ? COMMAND_CONFIG : COMMAND_START,
+             type == Type.Config ? generateConfigPayload() : generateStartPayload());
     }
 
-    private void computeXor()
+    public Packet(byte command, byte[] payload)
     {
-        _xor = (byte)0x00;
-        _xor ^= _command;
-        _xor ^= _payloadLength;
+        if ( payload.length > MAX_PAYLOAD_LENGTH )
+            throw new IllegalArgumentException("Payload too long: " + payload.length);
 
-        for ( int i = 0; i < _payloadLength; i++ )
-            _xor ^= _payload[i];
+        _command = command;
+        _buffer = computeBuffer(command, payload, computeXor(command, payload));
     }
 
-    private void computeBuffer()
+    /**
+     * Writes the frame into {@code dst} starting at the absolute index
+     * {@code offset}, leaving the buffer's position and limit untouched.
+     *
+     * @return the number of bytes written
+     */
+    public int encode(ByteBuffer dst, int offset)
     {
-        _buffer = new byte[4 + _payloadLength];
-        _buffer[0] = SOF;
-        _buffer[1] = _command;
-        _buffer[2] = _payloadLength;
-        System.arraycopy(_payload, 0, _buffer, 3, _payloadLength);
-        _buffer[3 + _payloadLength] = _xor;
+        if ( offset + _buffer.length > dst.limit() )
+            throw new IndexOutOfBoundsException("Packet of " + _buffer.length + " bytes does not fit at offset " + offset);
+
+        if ( dst.hasArray() )
+            return encode(dst.array(), dst.arrayOffset() + offset);
+
+        for ( int i = 0; i < _buffer.length; i++ )
+            dst.put(offset + i, _buffer[i]);
+
+        return _buffer.length;
     }
 
-    private byte[] generateConfigPayload()
+    /**
+     * Copies the frame into {@code dst} at {@code offset}.
+     *
+     * @return the number of bytes written
+     */
+    public int encode(byte[] dst, int offset)
+    {
+        System.arraycopy(_buffer, 0, dst, offset, _buffer.length);
+        return _buffer.length;
+    }
+
+    /**
+     * Writes a complete frame for {@code command} and the given payload into
+     * {@code dst} at {@code offset}, without building a packet.
+     *
+     * @return the number of bytes written
+     */
+    public static int encode(byte[] dst, int offset, byte command, byte[] payload, int payloadOffset, int length)
+    {
+        if ( length > MAX_PAYLOAD_LENGTH )
+            throw new IllegalArgumentException("Payload too long: " + length);
+
+        dst[offset] = SOF;
+        dst[offset + 1] = command;
+        dst[offset + 2] = (byte)length;
+        System.arraycopy(payload, payloadOffset, dst, offset + 3, length);
+
+        byte xor = (byte)(command ^ (byte)length);
+        for ( int i = offset + 3; i < offset + 3 + length; i++ )
+            xor ^= dst[i];
+        dst[offset + 3 + length] = xor;
+
+        return 4 + length;
+    }
+
+    private static byte computeXor(byte command, byte[] payload)
+    {
+        byte xor = (byte)0x00;
+        xor ^= command;
+        xor ^= (byte)payload.length;
+
+        for ( int i = 0; i < payload.length; i++ )
+            xor ^= payload[i];
+
+        return xor;
+    }
+
+    private static byte[] computeBuffer(byte command, byte[] payload, byte xor)
+    {
+        byte[] buffer = new byte[4 + payload.length];
+        buffer[0] = SOF;
+        buffer[1] = command;
+        buffer[2] = (byte)payload.length;
+        System.arraycopy(payload, 0, buffer, 3, payload.length);
+        buffer[3 + payload.length] = xor;
+        return buffer;
+    }
+
+    private static byte[] generateConfigPayload()
     {
         byte[] p = new byte[29];
         p[0] = (byte)46;
@@ -92,31 +173,9 @@ public class Packet
         return p;
     }
 
-    private byte[] generateStartPayload()
+    private static byte[] generateStartPayload()
     {
-        byte[] p = new byte[21];
-        p[0] = (byte)154;
-        p[1] = (byte)153;
-        p[2] = (byte)153;
-        p[3] = (byte)62;
-        p[4] = (byte)0;
-        p[5] = (byte)0;
-        p[6] = (byte)122;
-        p[7] = (byte)68;
-        p[8] = (byte)205;
-        p[9] = (byte)204;
-        p[10] = (byte)76;
-        p[11] = (byte)62;
-        p[12] = (byte)0;
-        p[13] = (byte)0;
-        p[14] = (byte)72;
-        p[15] = (byte)66;
-        p[16] = (byte)0;
-        p[17] = (byte)0;
-        p[18] = (byte)128;
-        p[19] = (byte)63;
-        p[20] = (byte)4;
-        return p;
+        return StartParameters.DEFAULT.encodePayload();
     }
 
 }
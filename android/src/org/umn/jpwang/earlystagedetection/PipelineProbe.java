@@ -0,0 +1,174 @@
+package org.umn.jpwang.earlystagedetection;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures how long data frames take from injection to each stage of the
+ * pipeline. The source stamps every frame it injects with
+ * {@link #onInjected(long, long)}, each stage reports the frames it handles
+ * with {@link #onStage(int, long)}; frames are matched by their device
+ * sequence number, so stages that drop frames don't skew the others.
+ * <p/>
+ * Latencies go into a power of two histogram per stage, recording is
+ * allocation free. Each stage must report from a single thread.
+ */
+public class PipelineProbe
+{
+    private static final int SLOTS = 1 << 14;
+    private static final int BUCKETS = 40;
+
+    private static class Stage
+    {
+        final String name;
+        long count;
+        long totalNanos;
+        long maxNanos;
+        final long[] histogram = new long[BUCKETS];
+
+        Stage(String name) { this.name = name; }
+    }
+
+    private final Stage[] _stages;
+
+    // injection time per sequence, tagged with the sequence to detect reuse
+    private final AtomicLongArray _injectedSequence = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray _injectedNanos = new AtomicLongArray(SLOTS);
+
+    private volatile long _firstInjected = -1;
+    private volatile long _lastInjected = -1;
+    private volatile long _injected = 0;
+
+    public PipelineProbe(String... stages)
+    {
+        _stages = new Stage[stages.length];
+        for ( int i = 0; i < stages.length; i++ )
+            _stages[i] = new Stage(stages[i]);
+
+        for ( int i = 0; i < SLOTS; i++ )
+            _injectedSequence.set(i, -1);
+    }
+
+    public int getStageCount() { return _stages.length; }
+    public long getInjectedCount() { return _injected; }
+
+    /**
+     * Records that the frame with {@code sequence} entered the pipeline.
+     * Single thread only.
+     */
+    public void onInjected(long sequence, long nanos)
+    {
+        int slot = (int)(sequence & (SLOTS - 1));
+        // untag first, so a stage can't pair the old tag with the new time
+        _injectedSequence.set(slot, -1);
+        _injectedNanos.set(slot, nanos);
+        _injectedSequence.set(slot, sequence);
+
+        if ( _firstInjected < 0 )
+            _firstInjected = nanos;
+        _lastInjected = nanos;
+        _injected++;
+    }
+
+    /**
+     * Records that {@code stage} has handled the frame with {@code sequence}.
+     */
+    public void onStage(int stage, long sequence)
+    {
+        long now = System.nanoTime();
+        int slot = (int)(sequence & (SLOTS - 1));
+        if ( _injectedSequence.get(slot) != sequence )
+            return; // not injected by us, or too long ago
+
+        long injected = _injectedNanos.get(slot);
+        if ( _injectedSequence.get(slot) != sequence )
+            return; // reused while we read it
+
+        long latency = Math.max(0, now - injected);
+        Stage s = _stages[stage];
+        synchronized ( s )
+        {
+            s.count++;
+            s.totalNanos += latency;
+            if ( latency > s.maxNanos )
+                s.maxNanos = latency;
+            s.histogram[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(latency))]++;
+        }
+    }
+
+    /**
+     * Returns the rate at which frames were injected, in frames per second.
+     */
+    public double getInjectedFramesPerSecond()
+    {
+        long elapsed = _lastInjected - _firstInjected;
+        return elapsed > 0 ? (_injected - 1) * 1e9 / elapsed : 0.0;
+    }
+
+    public long getCount(int stage)
+    {
+        synchronized ( _stages[stage] )
+        {
+            return _stages[stage].count;
+        }
+    }
+
+    /** Returns the highest latency seen by a stage, in nanoseconds. */
+    public long getMaxLatency(int stage)
+    {
+        synchronized ( _stages[stage] )
+        {
+            return _stages[stage].maxNanos;
+        }
+    }
+
+    /**
+     * Returns an upper bound of the {@code percentile} latency of a stage, in
+     * nanoseconds, accurate to a factor of two.
+     *
+     * @param percentile from 0 to 100, 50 for the median
+     */
+    public long getLatencyPercentile(int stage, double percentile)
+    {
+        Stage s = _stages[stage];
+        synchronized ( s )
+        {
+            long wanted = (long)Math.ceil(s.count * percentile / 100.0);
+            long seen = 0;
+            for ( int b = 0; b < BUCKETS; b++ )
+            {
+                seen += s.histogram[b];
+                if ( seen >= wanted && seen > 0 )
+                    return Math.min(s.maxNanos, (1L << b) - 1);
+            }
+            return s.maxNanos;
+        }
+    }
+
+    /**
+     * Returns a summary, one line per stage.
+     */
+    public String report()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append(_injected).append(" frames injected at ")
+            .append(Math.round(getInjectedFramesPerSecond())).append(" frames/s\n");
+
+        for ( int i = 0; i < _stages.length; i++ )
+        {
+            Stage s = _stages[i];
+            long count;
+            long mean;
+            long max;
+            synchronized ( s )
+            {
+                count = s.count;
+                mean = count > 0 ? s.totalNanos / count : 0;
+                max = s.maxNanos;
+            }
+            builder.append(s.name).append(": ").append(count).append(" frames, latency mean ")
+                .append(mean / 1000).append(" us, p99 < ").append(getLatencyPercentile(i, 99.0) / 1000)
+                .append(" us, max ").append(max / 1000).append(" us\n");
+        }
+        return builder.toString();
+    }
+}
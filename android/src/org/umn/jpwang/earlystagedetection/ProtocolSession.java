@@ -0,0 +1,135 @@
+package org.umn.jpwang.earlystagedetection;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Sends commands to the detector and waits for the frame that answers them,
+ * retrying with a bounded timeout instead of sleeping for a fixed time.
+ * <p/>
+ * The session sits between the {@link FrameDecoder} and the rest of the app:
+ * feed it decoded frames from the reader thread and it passes every frame on
+ * to the downstream listener after checking it against the command in flight.
+ * {@link #execute} blocks the calling thread, so never call it from the
+ * reader thread.
+ */
+public class ProtocolSession implements FrameDecoder.Listener
+{
+    public interface Sender
+    {
+        public void send(Packet packet) throws IOException;
+    }
+
+    /** Accept whichever frame arrives first as the response. */
+    public static final int ANY_RESPONSE = -1;
+
+    public static final int DEFAULT_TIMEOUT_MILLIS = 500;
+    public static final int DEFAULT_ATTEMPTS = 3;
+
+    private static final int NO_COMMAND = -2;
+
+    private final Sender _sender;
+    private final FrameDecoder.Listener _downstream;
+
+    private final Object _lock = new Object();
+
+    // written under _lock, volatile so the reader thread can skip the lock when idle
+    private volatile int _expectedResponse = NO_COMMAND;
+    private boolean _answered = false;
+
+    public ProtocolSession(Sender sender, FrameDecoder.Listener downstream)
+    {
+        _sender = sender;
+        _downstream = downstream;
+    }
+
+    public long execute(Packet command, int expectedResponse) throws IOException
+    {
+        return execute(command, expectedResponse, DEFAULT_TIMEOUT_MILLIS, DEFAULT_ATTEMPTS);
+    }
+
+    /**
+     * Sends {@code command} and blocks until a frame with the command byte
+     * {@code expectedResponse} (or any frame, for {@link #ANY_RESPONSE})
+     * arrives, resending it up to {@code attempts} times.
+     *
+     * @return nanoseconds between the last send and its response
+     * @throws IOException if sending fails or no response arrives in time
+     */
+    public long execute(Packet command, int expectedResponse, int timeoutMillis, int attempts) throws IOException
+    {
+        for ( int attempt = 0; attempt < attempts; attempt++ )
+        {
+            synchronized ( _lock )
+            {
+                _answered = false;
+                _expectedResponse = expectedResponse;
+            }
+
+            try
+            {
+                long sentAt = System.nanoTime();
+                _sender.send(command);
+
+                if ( awaitResponse(sentAt, timeoutMillis) )
+                    return System.nanoTime() - sentAt;
+            }
+            finally
+            {
+                synchronized ( _lock )
+                {
+                    _expectedResponse = NO_COMMAND;
+                }
+            }
+        }
+
+        throw new IOException("No response to command 0x" + Integer.toHexString(command.getCommand() & 0xFF)
+            + " after " + attempts + " attempts");
+    }
+
+    private boolean awaitResponse(long sentAt, int timeoutMillis) throws IOException
+    {
+        long deadline = sentAt + timeoutMillis * 1000000L;
+
+        synchronized ( _lock )
+        {
+            while ( !_answered )
+            {
+                long remaining = deadline - System.nanoTime();
+                if ( remaining <= 0 )
+                    return false;
+
+                try
+                {
+                    _lock.wait(remaining / 1000000L, (int)(remaining % 1000000L));
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for response");
+                }
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void onFrame(byte command, byte[] payload, int offset, int length)
+    {
+        if ( _expectedResponse != NO_COMMAND )
+        {
+            synchronized ( _lock )
+            {
+                int expected = _expectedResponse;
+                if ( expected == ANY_RESPONSE || expected == (command & 0xFF) )
+                {
+                    _answered = true;
+                    _lock.notifyAll();
+                }
+            }
+        }
+
+        if ( _downstream != null )
+            _downstream.onFrame(command, payload, offset, length);
+    }
+}
@@ -0,0 +1,261 @@
+package org.umn.jpwang.earlystagedetection;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.hoho.android.usbserial.driver.SerialTransport;
+
+/**
+ * Plays a recorded capture back as the device would have sent it: every
+ * record is encoded into a wire frame again and written to a
+ * {@link SerialTransport}, normally the device end of a
+ * {@link com.hoho.android.usbserial.driver.LoopbackTransport} pair whose
+ * host end is read through a
+ * {@link com.hoho.android.usbserial.driver.TransportSerialDriver} and a
+ * {@link com.hoho.android.usbserial.util.SerialInputOutputManager} exactly
+ * like live data.
+ * <p/>
+ * Frames are paced by their recorded timestamps divided by the speed:
+ * {@link #REALTIME}, any multiple of it, or {@link #AS_FAST_AS_POSSIBLE} to
+ * measure throughput. Frames that are due together go out in one write. An
+ * optional {@link PipelineProbe} is told when every data frame is injected.
+ */
+public class ReplaySource implements Runnable
+{
+    private static final String TAG = "EarlyStageDetector::ReplaySource";
+
+    public static final double REALTIME = 1.0;
+    public static final double AS_FAST_AS_POSSIBLE = 0.0;
+
+    private static final int WRITE_TIMEOUT_MILLIS = 100;
+    private static final int WRITE_BUFFER_SIZE = 8192;
+
+    public interface Listener
+    {
+        /** Called on the replay thread when the capture is done or replay failed. */
+        public void onReplayFinished(ReplaySource source, IOException error);
+    }
+
+    private final File[] _segments;
+    private final SerialTransport _transport;
+    private final double _speed;
+    private volatile PipelineProbe _probe;
+    private volatile Listener _listener;
+    private volatile boolean _running = false;
+
+    // frames of the current block, encoded back to back
+    private byte[] _frames = new byte[2 * CaptureWriter.DEFAULT_BLOCK_SIZE];
+    private int _framesLength;
+    private int _frameCount;
+    private int[] _frameEnds = new int[256];
+    private long[] _frameTimestamps = new long[256];
+    private long[] _frameSequences = new long[256];
+
+    private long _firstTimestamp = -1;
+    private long _startNanos;
+    private volatile long _framesSent = 0;
+    private volatile long _bytesSent = 0;
+    private volatile long _elapsedNanos = 0;
+
+    private final CaptureReader.Visitor _visitor = new CaptureReader.Visitor()
+    {
+        @Override
+        public void onFrame(long timestampNanos, byte command, byte[] payload, int offset, int length)
+        {
+            ensureRoom(4 + length);
+            _framesLength += Packet.encode(_frames, _framesLength, command, payload, offset, length);
+            addFrame(timestampNanos, -1);
+        }
+
+        @Override
+        public void onSamples(long timestampNanos, long sequence, float[] samples, int channels)
+        {
+            ensureRoom(SampleFrame.getFrameLength(channels));
+            _framesLength += SampleFrame.encode(_frames, _framesLength, sequence, samples, channels);
+            addFrame(timestampNanos, sequence);
+        }
+    };
+
+    /**
+     * @param segments the segment files of the capture, in order
+     * @param speed how many times faster than recorded, or {@link #AS_FAST_AS_POSSIBLE}
+     */
+    public ReplaySource(File[] segments, SerialTransport transport, double speed)
+    {
+        if ( speed < 0.0 || Double.isNaN(speed) )
+            throw new IllegalArgumentException("bad speed: " + speed);
+
+        _segments = segments.clone();
+        _transport = transport;
+        _speed = speed;
+    }
+
+    public void setProbe(PipelineProbe probe) { _probe = probe; }
+    public void setListener(Listener listener) { _listener = listener; }
+
+    public long getFramesSent() { return _framesSent; }
+    public long getBytesSent() { return _bytesSent; }
+
+    /**
+     * Returns the frames sent per second of replay so far.
+     */
+    public double getFramesPerSecond()
+    {
+        long elapsed = _elapsedNanos;
+        return elapsed > 0 ? _framesSent * 1e9 / elapsed : 0.0;
+    }
+
+    public void start()
+    {
+        new Thread(this, TAG).start();
+    }
+
+    public void stop()
+    {
+        _running = false;
+    }
+
+    @Override
+    public void run()
+    {
+        _running = true;
+        _startNanos = System.nanoTime();
+        IOException error = null;
+        try
+        {
+            for ( int s = 0; s < _segments.length && _running; s++ )
+            {
+                CaptureReader reader = new CaptureReader(_segments[s]);
+                for ( int b = 0; b < reader.getBlockCount() && _running; b++ )
+                {
+                    _framesLength = 0;
+                    _frameCount = 0;
+                    reader.readBlock(b, _visitor);
+                    sendBlock();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            error = e;
+            Log.w(TAG, "Replay failed: " + e.getMessage(), e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            _running = false;
+        }
+
+        Listener listener = _listener;
+        if ( listener != null )
+            listener.onReplayFinished(this, error);
+    }
+
+    /**
+     * Writes the frames of the current block, each batch of frames as soon
+     * as its first frame is due.
+     */
+    private void sendBlock() throws IOException, InterruptedException
+    {
+        int frame = 0;
+        while ( frame < _frameCount && _running )
+        {
+            waitUntilDue(_frameTimestamps[frame]);
+
+            // everything that is due by now goes out together
+            int last = frame;
+            long now = System.nanoTime();
+            while ( last + 1 < _frameCount && dueNanos(_frameTimestamps[last + 1]) <= now
+                && _frameEnds[last + 1] - frameStart(frame) <= WRITE_BUFFER_SIZE )
+                last++;
+
+            int start = frameStart(frame);
+            int end = _frameEnds[last];
+            PipelineProbe probe = _probe;
+            if ( probe != null )
+            {
+                for ( int i = frame; i <= last; i++ )
+                {
+                    if ( _frameSequences[i] >= 0 )
+                        probe.onInjected(_frameSequences[i], now);
+                }
+            }
+            writeFully(start, end - start);
+
+            _framesSent += last - frame + 1;
+            _bytesSent += end - start;
+            _elapsedNanos = System.nanoTime() - _startNanos;
+            frame = last + 1;
+        }
+    }
+
+    private int frameStart(int frame)
+    {
+        return frame == 0 ? 0 : _frameEnds[frame - 1];
+    }
+
+    private long dueNanos(long timestampNanos)
+    {
+        if ( _speed == AS_FAST_AS_POSSIBLE )
+            return _startNanos;
+
+        if ( _firstTimestamp < 0 )
+            _firstTimestamp = timestampNanos;
+        return _startNanos + (long)((timestampNanos - _firstTimestamp) / _speed);
+    }
+
+    private void waitUntilDue(long timestampNanos) throws InterruptedException
+    {
+        long wait = dueNanos(timestampNanos) - System.nanoTime();
+        while ( wait > 0 && _running )
+        {
+            long millis = Math.min(wait / 1000000L, 100);
+            Thread.sleep(millis, (int)(millis == 0 ? wait % 1000000L : 0));
+            wait = dueNanos(timestampNanos) - System.nanoTime();
+        }
+    }
+
+    private void writeFully(int offset, int length) throws IOException
+    {
+        int written = 0;
+        while ( written < length && _running )
+            written += _transport.write(_frames, offset + written, length - written, WRITE_TIMEOUT_MILLIS);
+    }
+
+    private void ensureRoom(int length)
+    {
+        if ( _framesLength + length > _frames.length )
+        {
+            byte[] frames = new byte[2 * (_framesLength + length)];
+            System.arraycopy(_frames, 0, frames, 0, _framesLength);
+            _frames = frames;
+        }
+    }
+
+    private void addFrame(long timestampNanos, long sequence)
+    {
+        if ( _frameCount == _frameEnds.length )
+        {
+            int capacity = 2 * _frameCount;
+            int[] ends = new int[capacity];
+            long[] timestamps = new long[capacity];
+            long[] sequences = new long[capacity];
+            System.arraycopy(_frameEnds, 0, ends, 0, _frameCount);
+            System.arraycopy(_frameTimestamps, 0, timestamps, 0, _frameCount);
+            System.arraycopy(_frameSequences, 0, sequences, 0, _frameCount);
+            _frameEnds = ends;
+            _frameTimestamps = timestamps;
+            _frameSequences = sequences;
+        }
+
+        _frameEnds[_frameCount] = _framesLength;
+        _frameTimestamps[_frameCount] = timestampNanos;
+        _frameSequences[_frameCount] = sequence;
+        _frameCount++;
+    }
+}
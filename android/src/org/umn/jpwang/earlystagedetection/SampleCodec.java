@@ -0,0 +1,251 @@
+package org.umn.jpwang.earlystagedetection;
+
+/**
+ * Compresses consecutive sample frames for {@link CaptureWriter}, in the
+ * spirit of Facebook's Gorilla time series store:
+ * <ul>
+ * <li>the timestamp as the zigzag varint of its delta-of-delta, one byte
+ * while the frames arrive at a steady rate;</li>
+ * <li>the sequence number as the zigzag varint of its gap minus one, one
+ * byte unless frames were lost;</li>
+ * <li>each channel as the XOR of the float's bits with the channel's
+ * previous value: a single 0 bit if it is unchanged, otherwise the
+ * meaningful bits of the XOR, reusing the previous leading/trailing zero
+ * window when they fit in it.</li>
+ * </ul>
+ * Every frame is padded to a whole byte so frames can be interleaved with
+ * other records. The state only carries over from frame to frame within a
+ * block: both sides {@link #reset(long)} at the start of a block, so any
+ * block decodes on its own, front to back.
+ * <p/>
+ * An instance either encodes or decodes. Nothing is allocated per frame.
+ */
+public class SampleCodec
+{
+    /** Bytes the encoding of a frame with {@code channels} channels takes at most. */
+    public static int getMaxEncodedLength(int channels)
+    {
+        // two 10 byte varints, channel count, and 1 + 1 + 5 + 5 + 32 bits per channel
+        return 10 + 10 + 1 + (44 * channels + 7) / 8;
+    }
+
+    private long _timestamp;
+    private long _delta;
+    private long _sequence;
+    private int _channels;
+
+    private final int[] _values = new int[SampleFrame.MAX_CHANNELS];
+    private final int[] _leading = new int[SampleFrame.MAX_CHANNELS];
+    private final int[] _trailing = new int[SampleFrame.MAX_CHANNELS];
+
+    // bit stream of the frame being encoded or decoded
+    private byte[] _buffer;
+    private int _position;
+    private long _bits;
+    private int _bitCount;
+
+    public SampleCodec()
+    {
+        reset(0);
+    }
+
+    /**
+     * Starts a new block.
+     *
+     * @param timestampNanos the timestamp the first delta is taken from,
+     *            the same on both sides
+     */
+    public void reset(long timestampNanos)
+    {
+        _timestamp = timestampNanos;
+        _delta = 0;
+        _sequence = -1;
+        _channels = 0;
+        for ( int c = 0; c < _values.length; c++ )
+        {
+            _values[c] = 0;
+            // no window yet, forces the first XOR to describe its own
+            _leading[c] = 32;
+            _trailing[c] = 0;
+        }
+    }
+
+    /** Returns the timestamp of the frame last encoded or decoded. */
+    public long getTimestamp() { return _timestamp; }
+    public long getSequence() { return _sequence; }
+    public int getChannelCount() { return _channels; }
+
+    /**
+     * Encodes a frame into {@code dst}, which must have room for
+     * {@link #getMaxEncodedLength(int)} bytes.
+     *
+     * @return the number of bytes written
+     */
+    public int encode(byte[] dst, int offset, long timestampNanos, long sequence, float[] samples, int channels)
+    {
+        if ( channels > SampleFrame.MAX_CHANNELS )
+            throw new IllegalArgumentException("too many channels: " + channels);
+
+        _buffer = dst;
+        _position = offset;
+
+        long delta = timestampNanos - _timestamp;
+        writeVarint(zigzag(delta - _delta));
+        _delta = delta;
+        _timestamp = timestampNanos;
+
+        writeVarint(zigzag(sequence - _sequence - 1));
+        _sequence = sequence;
+
+        _buffer[_position++] = (byte)channels;
+        _channels = channels;
+
+        _bits = 0;
+        _bitCount = 0;
+        for ( int c = 0; c < channels; c++ )
+            encodeValue(c, Float.floatToRawIntBits(samples[c]));
+        if ( _bitCount > 0 )
+            _buffer[_position++] = (byte)(_bits << (8 - _bitCount));
+
+        _buffer = null;
+        return _position - offset;
+    }
+
+    /**
+     * Decodes the frame at {@code offset} into {@code samples}; the
+     * timestamp, sequence number and channel count are available from the
+     * getters afterwards.
+     *
+     * @return the offset just past the frame
+     */
+    public int decode(byte[] src, int offset, float[] samples)
+    {
+        _buffer = src;
+        _position = offset;
+
+        _delta += unzigzag(readVarint());
+        _timestamp += _delta;
+        _sequence += unzigzag(readVarint()) + 1;
+
+        int channels = _buffer[_position++] & 0xFF;
+        if ( channels > SampleFrame.MAX_CHANNELS )
+            throw new IllegalArgumentException("too many channels: " + channels);
+        _channels = channels;
+
+        _bits = 0;
+        _bitCount = 0;
+        for ( int c = 0; c < channels; c++ )
+            samples[c] = Float.intBitsToFloat(decodeValue(c));
+
+        _buffer = null;
+        return _position;
+    }
+
+    private void encodeValue(int channel, int value)
+    {
+        int xor = value ^ _values[channel];
+        _values[channel] = value;
+        if ( xor == 0 )
+        {
+            writeBits(0, 1);
+            return;
+        }
+
+        int leading = Integer.numberOfLeadingZeros(xor);
+        int trailing = Integer.numberOfTrailingZeros(xor);
+        if ( leading >= _leading[channel] && trailing >= _trailing[channel] )
+        {
+            // fits the previous window
+            writeBits(2, 2);
+            writeBits(xor >>> _trailing[channel], 32 - _leading[channel] - _trailing[channel]);
+            return;
+        }
+
+        int length = 32 - leading - trailing;
+        writeBits(3, 2);
+        writeBits(leading, 5);
+        writeBits(length - 1, 5);
+        writeBits(xor >>> trailing, length);
+        _leading[channel] = leading;
+        _trailing[channel] = trailing;
+    }
+
+    private int decodeValue(int channel)
+    {
+        if ( readBits(1) == 0 )
+            return _values[channel];
+
+        if ( readBits(1) == 1 )
+        {
+            int leading = readBits(5);
+            int length = readBits(5) + 1;
+            _leading[channel] = leading;
+            _trailing[channel] = 32 - leading - length;
+        }
+
+        int length = 32 - _leading[channel] - _trailing[channel];
+        int xor = readBits(length) << _trailing[channel];
+        _values[channel] ^= xor;
+        return _values[channel];
+    }
+
+    /**
+     * Appends the low {@code count} bits of {@code value}, at most 32.
+     */
+    private void writeBits(int value, int count)
+    {
+        _bits = (_bits << count) | (value & ((1L << count) - 1));
+        _bitCount += count;
+        while ( _bitCount >= 8 )
+        {
+            _bitCount -= 8;
+            _buffer[_position++] = (byte)(_bits >>> _bitCount);
+        }
+    }
+
+    private int readBits(int count)
+    {
+        while ( _bitCount < count )
+        {
+            _bits = (_bits << 8) | (_buffer[_position++] & 0xFF);
+            _bitCount += 8;
+        }
+        _bitCount -= count;
+        return (int)((_bits >>> _bitCount) & ((1L << count) - 1));
+    }
+
+    private void writeVarint(long value)
+    {
+        while ( (value & ~0x7FL) != 0 )
+        {
+            _buffer[_position++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        _buffer[_position++] = (byte)value;
+    }
+
+    private long readVarint()
+    {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = _buffer[_position++];
+            value |= (long)(b & 0x7F) << shift;
+            shift += 7;
+        }
+        while ( b < 0 && shift < 64 );
+        return value;
+    }
+
+    private static long zigzag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
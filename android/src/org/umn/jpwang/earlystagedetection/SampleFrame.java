@@ -0,0 +1,93 @@
+package org.umn.jpwang.earlystagedetection;
+
+/**
+ * Codec for the data frames the detector streams once started: a frame with
+ * command {@link #COMMAND_DATA} whose payload is a little-endian uint32
+ * sequence number followed by one little-endian float per configured
+ * channel, in the order of the Config channel map.
+ * <p/>
+ * Both directions work on caller supplied arrays and never allocate.
+ */
+public final class SampleFrame
+{
+    public static final byte COMMAND_DATA = (byte)0x01;
+
+    public static final int SEQUENCE_LENGTH = 4;
+    public static final int MAX_CHANNELS = (Packet.MAX_PAYLOAD_LENGTH - SEQUENCE_LENGTH) / 4;
+
+    private SampleFrame()
+    {
+    }
+
+    public static int getFrameLength(int channels)
+    {
+        return 4 + SEQUENCE_LENGTH + 4 * channels;
+    }
+
+    /**
+     * Writes a complete frame (SOF through XOR) into {@code dst} at
+     * {@code offset}.
+     *
+     * @return the number of bytes written
+     */
+    public static int encode(byte[] dst, int offset, long sequence, float[] samples, int channels)
+    {
+        if ( channels > MAX_CHANNELS )
+            throw new IllegalArgumentException("Too many channels: " + channels);
+
+        int length = SEQUENCE_LENGTH + 4 * channels;
+        dst[offset] = Packet.SOF;
+        dst[offset + 1] = COMMAND_DATA;
+        dst[offset + 2] = (byte)length;
+
+        int p = offset + 3;
+        putInt(dst, p, (int)sequence);
+        p += SEQUENCE_LENGTH;
+        for ( int c = 0; c < channels; c++ )
+        {
+            putInt(dst, p, Float.floatToIntBits(samples[c]));
+            p += 4;
+        }
+
+        byte xor = (byte)(COMMAND_DATA ^ (byte)length);
+        for ( int i = offset + 3; i < p; i++ )
+            xor ^= dst[i];
+        dst[p] = xor;
+
+        return p + 1 - offset;
+    }
+
+    public static int getChannelCount(int payloadLength)
+    {
+        return (payloadLength - SEQUENCE_LENGTH) / 4;
+    }
+
+    /**
+     * Returns the unsigned sequence number of a data payload.
+     */
+    public static long getSequence(byte[] payload, int offset)
+    {
+        return getInt(payload, offset) & 0xFFFFFFFFL;
+    }
+
+    public static float getSample(byte[] payload, int offset, int channel)
+    {
+        return Float.intBitsToFloat(getInt(payload, offset + SEQUENCE_LENGTH + 4 * channel));
+    }
+
+    private static void putInt(byte[] dst, int offset, int value)
+    {
+        dst[offset] = (byte)value;
+        dst[offset + 1] = (byte)(value >> 8);
+        dst[offset + 2] = (byte)(value >> 16);
+        dst[offset + 3] = (byte)(value >> 24);
+    }
+
+    private static int getInt(byte[] src, int offset)
+    {
+        return (src[offset] & 0xFF)
+            | (src[offset + 1] & 0xFF) << 8
+            | (src[offset + 2] & 0xFF) << 16
+            | (src[offset + 3] & 0xFF) << 24;
+    }
+}
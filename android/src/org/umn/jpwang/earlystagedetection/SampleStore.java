@@ -0,0 +1,222 @@
+package org.umn.jpwang.earlystagedetection;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decoded samples of every configured channel, stored column wise: each
+ * channel has a preallocated ring of float bits and all channels share a
+ * parallel ring of frame timestamps, so frame {@code n} of any channel lives
+ * at slot {@code n % capacity}.
+ * <p/>
+ * There is a single writer, the reader thread, and any number of readers
+ * that never block it: a reader copies what it wants and then checks that
+ * the writer hasn't lapped it meanwhile, discarding whatever was overwritten
+ * (the usual seqlock retry, done per slot instead of per copy). The rings
+ * are atomic arrays so that check is sound: a plain read of a slot could be
+ * reordered after the read of {@code _claimed} and let a torn value through.
+ * Nothing is boxed or allocated per sample, readers copy into their own
+ * arrays.
+ * <p/>
+ * Channels are identified by the ids in the Config channel map; the
+ * {@code index} used below is the position of a channel in that map, which
+ * is also its position in a data frame.
+ */
+public class SampleStore
+{
+    /**
+     * A reader's position in the store. Each consumer keeps its own.
+     */
+    public static class Cursor
+    {
+        private long _next;
+        private long _missed;
+
+        public Cursor() { this(0); }
+        public Cursor(long frameIndex) { _next = frameIndex; }
+
+        /** Index of the next frame this cursor will read. */
+        public long getNextFrame() { return _next; }
+
+        /** Frames overwritten before this cursor got to them. */
+        public long getMissedFrames() { return _missed; }
+    }
+
+    private final byte[] _channelMap;
+    private final int[] _indexById = new int[256];
+    private final int _capacity;
+
+    // Float.floatToRawIntBits of the samples
+    private final AtomicIntegerArray[] _values;
+    private final AtomicLongArray _timestamps;
+
+    // frames whose slots the writer has started to overwrite
+    private volatile long _claimed = 0;
+    // frames completely written, always <= _claimed
+    private volatile long _published = 0;
+
+    /**
+     * @param channelMap the channel ids in frame order, as sent in the Config command
+     * @param capacity the number of frames kept per channel
+     */
+    public SampleStore(byte[] channelMap, int capacity)
+    {
+        if ( capacity <= 0 )
+            throw new IllegalArgumentException("capacity must be > 0: " + capacity);
+
+        _channelMap = channelMap.clone();
+        _capacity = capacity;
+        _values = new AtomicIntegerArray[channelMap.length];
+        for ( int c = 0; c < _values.length; c++ )
+            _values[c] = new AtomicIntegerArray(capacity);
+        _timestamps = new AtomicLongArray(capacity);
+
+        Arrays.fill(_indexById, -1);
+        for ( int i = 0; i < channelMap.length; i++ )
+            _indexById[channelMap[i] & 0xFF] = i;
+    }
+
+    public int getCapacity() { return _capacity; }
+    public int getChannelCount() { return _channelMap.length; }
+
+    /** Returns the id of the channel at {@code index} in the channel map. */
+    public int getChannelId(int index) { return _channelMap[index] & 0xFF; }
+
+    /** Returns the index of channel {@code channelId}, or -1 if it isn't configured. */
+    public int getChannelIndex(int channelId) { return _indexById[channelId & 0xFF]; }
+
+    /** Returns true if this store was made for the channel map at {@code offset}. */
+    public boolean hasChannelMap(byte[] channelMap, int offset, int length)
+    {
+        if ( length != _channelMap.length )
+            return false;
+
+        for ( int i = 0; i < length; i++ )
+        {
+            if ( channelMap[offset + i] != _channelMap[i] )
+                return false;
+        }
+        return true;
+    }
+
+    /** Returns the number of frames appended so far; the newest is this minus one. */
+    public long getFrameCount() { return _published; }
+
+    /**
+     * Appends one frame. Only one thread may append.
+     *
+     * @param samples one sample per channel, in channel map order
+     */
+    public void append(long timestampNanos, float[] samples)
+    {
+        long frame = beginAppend(timestampNanos);
+        int slot = (int)(frame % _capacity);
+        int channels = Math.min(samples.length, _values.length);
+        for ( int c = 0; c < channels; c++ )
+            _values[c].set(slot, Float.floatToRawIntBits(samples[c]));
+
+        _published = frame + 1;
+    }
+
+    /**
+     * Appends the samples of a {@link SampleFrame} payload without an
+     * intermediate copy. Only one thread may append.
+     */
+    public void append(long timestampNanos, byte[] payload, int offset, int length)
+    {
+        long frame = beginAppend(timestampNanos);
+        int slot = (int)(frame % _capacity);
+        int channels = Math.min(SampleFrame.getChannelCount(length), _values.length);
+        for ( int c = 0; c < channels; c++ )
+            _values[c].set(slot, Float.floatToRawIntBits(SampleFrame.getSample(payload, offset, c)));
+
+        _published = frame + 1;
+    }
+
+    private long beginAppend(long timestampNanos)
+    {
+        long frame = _published;
+        _claimed = frame + 1;
+        _timestamps.set((int)(frame % _capacity), timestampNanos);
+        return frame;
+    }
+
+    /**
+     * Copies up to {@code count} frames of one channel starting at the
+     * cursor, and advances the cursor past them. If the cursor has fallen
+     * more than a capacity behind it skips ahead to the oldest frame still
+     * stored and counts the gap as missed.
+     *
+     * @param timestamps receives the frame timestamps, may be null
+     * @return the number of frames copied, 0 if the cursor is caught up
+     */
+    public int read(Cursor cursor, int channelIndex, float[] values, long[] timestamps, int offset, int count)
+    {
+        long end = _published;
+        long start = Math.max(cursor._next, end - _capacity);
+        int copied = copy(channelIndex, start, (int)Math.min(count, end - start), values, timestamps, offset);
+
+        int lost = dropOverwritten(start, copied, values, timestamps, offset);
+        start += lost;
+        copied -= lost;
+
+        cursor._missed += start - cursor._next;
+        cursor._next = start + copied;
+        return copied;
+    }
+
+    /**
+     * Copies the newest {@code count} frames of one channel, oldest first.
+     *
+     * @param timestamps receives the frame timestamps, may be null
+     * @return the number of frames copied, fewer than {@code count} if the
+     *         store doesn't hold that many yet
+     */
+    public int readLatest(int channelIndex, float[] values, long[] timestamps, int offset, int count)
+    {
+        long end = _published;
+        long start = Math.max(0, end - Math.min(count, _capacity));
+        int copied = copy(channelIndex, start, (int)(end - start), values, timestamps, offset);
+
+        return copied - dropOverwritten(start, copied, values, timestamps, offset);
+    }
+
+    /**
+     * Called after a copy of the frames from {@code start}: drops the ones
+     * the writer has started to overwrite in the meantime by shifting the
+     * rest down.
+     *
+     * @return the number of frames dropped from the front
+     */
+    private int dropOverwritten(long start, int copied, float[] values, long[] timestamps, int offset)
+    {
+        long validFrom = _claimed - _capacity;
+        if ( validFrom <= start )
+            return 0;
+
+        int lost = (int)Math.min(copied, validFrom - start);
+        System.arraycopy(values, offset + lost, values, offset, copied - lost);
+        if ( timestamps != null )
+            System.arraycopy(timestamps, offset + lost, timestamps, offset, copied - lost);
+        return lost;
+    }
+
+    private int copy(int channelIndex, long start, int count, float[] values, long[] timestamps, int offset)
+    {
+        if ( count <= 0 )
+            return 0;
+
+        AtomicIntegerArray ring = _values[channelIndex];
+        int slot = (int)(start % _capacity);
+        for ( int i = 0; i < count; i++ )
+        {
+            values[offset + i] = Float.intBitsToFloat(ring.get(slot));
+            if ( timestamps != null )
+                timestamps[offset + i] = _timestamps.get(slot);
+            if ( ++slot == _capacity )
+                slot = 0;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,213 @@
+package org.umn.jpwang.earlystagedetection;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.view.View;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Live plot of every channel in its own lane, scrolling right to left.
+ * <p/>
+ * Samples are folded into an {@link EnvelopeBuffer} with one column per
+ * pixel, so drawing costs the same whatever the sample rate or window
+ * length. {@link #addSamples(float[])} only updates the envelope and may be
+ * called from the reader thread; the view redraws on the UI thread at most
+ * once per display frame.
+ */
+public class SignalPlotView extends View
+{
+    public static final int DEFAULT_CHANNELS = 29;
+    public static final int DEFAULT_WINDOW_SAMPLES = 5000;
+
+    // one display frame at 60 Hz
+    private static final long FRAME_MILLIS = 16;
+
+    private int _windowSamples = DEFAULT_WINDOW_SAMPLES;
+    private volatile EnvelopeBuffer _envelope = new EnvelopeBuffer(DEFAULT_CHANNELS, 1, 1);
+
+    // UI thread only
+    private float[] _mins = new float[0];
+    private float[] _maxs = new float[0];
+    private float[] _points = new float[0];
+    private Paint[] _paints = new Paint[0];
+    private final Paint _dividerPaint = new Paint();
+    private long _lastDraw = 0;
+
+    private final AtomicBoolean _redrawScheduled = new AtomicBoolean(false);
+    private final Runnable _redraw = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            _redrawScheduled.set(false);
+            invalidate();
+        }
+    };
+
+    public SignalPlotView(Context context)
+    {
+        super(context);
+        setChannelCount(DEFAULT_CHANNELS);
+    }
+
+    public SignalPlotView(Context context, AttributeSet attrs)
+    {
+        super(context, attrs);
+        setChannelCount(DEFAULT_CHANNELS);
+    }
+
+    /**
+     * Sets the number of channels plotted, clearing the plot. UI thread only.
+     */
+    public void setChannelCount(int channels)
+    {
+        _envelope = new EnvelopeBuffer(channels, Math.max(1, getPlotWidth()), getSamplesPerColumn(getPlotWidth()));
+        _mins = new float[channels * _envelope.getColumnCount()];
+        _maxs = new float[channels * _envelope.getColumnCount()];
+
+        _paints = new Paint[channels];
+        float[] hsv = new float[] { 0.0f, 0.7f, 1.0f };
+        for ( int c = 0; c < channels; c++ )
+        {
+            hsv[0] = 360.0f * c / channels;
+            _paints[c] = new Paint();
+            _paints[c].setColor(Color.HSVToColor(hsv));
+            _paints[c].setStrokeWidth(1.0f);
+        }
+        _dividerPaint.setColor(Color.DKGRAY);
+        invalidate();
+    }
+
+    /**
+     * Sets how many frames fit across the view, clearing the plot. UI thread
+     * only.
+     */
+    public void setWindowSamples(int samples)
+    {
+        if ( samples <= 0 )
+            throw new IllegalArgumentException("window must be > 0: " + samples);
+
+        _windowSamples = samples;
+        _envelope.resize(Math.max(1, getPlotWidth()), getSamplesPerColumn(getPlotWidth()));
+        invalidate();
+    }
+
+    public int getChannelCount() { return _envelope.getChannelCount(); }
+    public int getWindowSamples() { return _windowSamples; }
+
+    /**
+     * Adds one frame of samples, one per channel. Safe to call from any
+     * thread; the redraw is coalesced onto the next display frame.
+     */
+    public void addSamples(float[] samples)
+    {
+        _envelope.add(samples);
+
+        if ( _redrawScheduled.compareAndSet(false, true) )
+        {
+            long delay = _lastDraw + FRAME_MILLIS - SystemClock.uptimeMillis();
+            postDelayed(_redraw, Math.max(0, delay));
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh)
+    {
+        super.onSizeChanged(w, h, oldw, oldh);
+
+        int columns = Math.max(1, getPlotWidth());
+        _envelope.resize(columns, getSamplesPerColumn(columns));
+        _mins = new float[_envelope.getChannelCount() * columns];
+        _maxs = new float[_envelope.getChannelCount() * columns];
+        _points = new float[4 * columns];
+    }
+
+    @Override
+    protected void onDetachedFromWindow()
+    {
+        removeCallbacks(_redraw);
+        _redrawScheduled.set(false);
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas)
+    {
+        _lastDraw = SystemClock.uptimeMillis();
+        canvas.drawColor(Color.BLACK);
+
+        EnvelopeBuffer envelope = _envelope;
+        int columns = envelope.getColumnCount();
+        if ( _mins.length < envelope.getChannelCount() * columns || _points.length < 4 * columns )
+            return;
+
+        int filled = envelope.copyTo(_mins, _maxs);
+        int channels = envelope.getChannelCount();
+        float left = getPaddingLeft() + (columns - filled);
+        float top = getPaddingTop();
+        float laneHeight = (float)(getHeight() - getPaddingTop() - getPaddingBottom()) / channels;
+
+        for ( int c = 0; c < channels; c++ )
+        {
+            float laneTop = top + c * laneHeight;
+            if ( c > 0 )
+                canvas.drawLine(getPaddingLeft(), laneTop, getWidth() - getPaddingRight(), laneTop, _dividerPaint);
+
+            if ( filled > 0 )
+                drawLane(canvas, c * columns, filled, left, laneTop, laneHeight, _paints[c]);
+        }
+    }
+
+    /**
+     * Draws one channel as a vertical min/max bar per column, each bar
+     * stretched to meet its neighbour so the trace stays continuous.
+     */
+    private void drawLane(Canvas canvas, int base, int filled, float left, float laneTop, float laneHeight, Paint paint)
+    {
+        float lo = _mins[base];
+        float hi = _maxs[base];
+        for ( int i = 1; i < filled; i++ )
+        {
+            lo = Math.min(lo, _mins[base + i]);
+            hi = Math.max(hi, _maxs[base + i]);
+        }
+
+        float range = hi - lo;
+        float scale = range > 0.0f ? (laneHeight - 2.0f) / range : 0.0f;
+        float bottom = laneTop + laneHeight - 1.0f - (range > 0.0f ? 0.0f : laneHeight / 2.0f);
+
+        int p = 0;
+        float previousMin = _mins[base];
+        float previousMax = _maxs[base];
+        for ( int i = 0; i < filled; i++ )
+        {
+            float min = Math.min(_mins[base + i], previousMax);
+            float max = Math.max(_maxs[base + i], previousMin);
+            float x = left + i;
+
+            _points[p++] = x;
+            _points[p++] = bottom - (max - lo) * scale;
+            _points[p++] = x;
+            _points[p++] = bottom - (min - lo) * scale + 1.0f;
+
+            previousMin = _mins[base + i];
+            previousMax = _maxs[base + i];
+        }
+        canvas.drawLines(_points, 0, p, paint);
+    }
+
+    private int getPlotWidth()
+    {
+        return getWidth() - getPaddingLeft() - getPaddingRight();
+    }
+
+    private int getSamplesPerColumn(int columns)
+    {
+        return Math.max(1, (_windowSamples + columns - 1) / Math.max(1, columns));
+    }
+}
@@ -0,0 +1,249 @@
+package org.umn.jpwang.earlystagedetection;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Acquisition parameters carried by the Start command: five little-endian
+ * floats followed by a mode byte, in the order the firmware expects them.
+ * <p/>
+ * Instances are immutable and compare by value, {@link #toPacket()} memoizes
+ * the encoded frame per parameter tuple so sweeps that revisit the same
+ * settings don't rebuild it.
+ */
+public final class StartParameters
+{
+    public static final StartParameters DEFAULT = new Builder().build();
+
+    public static final int PAYLOAD_LENGTH = 5 * 4 + 1;
+
+    private static final int MAX_CACHED_PACKETS = 4096;
+
+    // access ordered, so the least recently sent variant is evicted first
+    private static final Map<StartParameters, Packet> _packetCache =
+        new LinkedHashMap<StartParameters, Packet>(64, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StartParameters, Packet> eldest)
+            {
+                return size() > MAX_CACHED_PACKETS;
+            }
+        };
+
+    private final float _sensorAmplitude;
+    private final float _sensorFrequency;
+    private final float _fieldAmplitude;
+    private final float _fieldFrequency;
+    private final float _interval;
+    private final int _mode;
+
+    private StartParameters(Builder builder)
+    {
+        _sensorAmplitude = builder._sensorAmplitude;
+        _sensorFrequency = builder._sensorFrequency;
+        _fieldAmplitude = builder._fieldAmplitude;
+        _fieldFrequency = builder._fieldFrequency;
+        _interval = builder._interval;
+        _mode = builder._mode;
+    }
+
+    public float getSensorAmplitude() { return _sensorAmplitude; }
+    public float getSensorFrequency() { return _sensorFrequency; }
+    public float getFieldAmplitude() { return _fieldAmplitude; }
+    public float getFieldFrequency() { return _fieldFrequency; }
+    public float getInterval() { return _interval; }
+    public int getMode() { return _mode; }
+
+    public Builder buildUpon()
+    {
+        return new Builder(this);
+    }
+
+    public byte[] encodePayload()
+    {
+        ByteBuffer payload = ByteBuffer.allocate(PAYLOAD_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        payload.putFloat(_sensorAmplitude);
+        payload.putFloat(_sensorFrequency);
+        payload.putFloat(_fieldAmplitude);
+        payload.putFloat(_fieldFrequency);
+        payload.putFloat(_interval);
+        payload.put((byte)_mode);
+        return payload.array();
+    }
+
+    /**
+     * Parses a Start payload, the inverse of {@link #encodePayload()}.
+     *
+     * @throws IllegalArgumentException if the payload is too short or holds
+     *                                  out of range values
+     */
+    public static StartParameters fromPayload(byte[] payload, int offset, int length)
+    {
+        if ( length < PAYLOAD_LENGTH )
+            throw new IllegalArgumentException("Start payload too short: " + length);
+
+        ByteBuffer buffer = ByteBuffer.wrap(payload, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+        return new Builder()
+            .setSensorAmplitude(buffer.getFloat())
+            .setSensorFrequency(buffer.getFloat())
+            .setFieldAmplitude(buffer.getFloat())
+            .setFieldFrequency(buffer.getFloat())
+            .setInterval(buffer.getFloat())
+            .setMode(buffer.get() & 0xFF)
+            .build();
+    }
+
+    /**
+     * Returns the encoded Start packet for these parameters, shared with any
+     * other equal parameter set.
+     */
+    public Packet toPacket()
+    {
+        // pinned, so it is the same instance however the classes were initialized and whatever was evicted
+        if ( equals(DEFAULT) )
+            return Packet.get(Packet.Type.Start);
+
+        Packet packet;
+        synchronized ( _packetCache )
+        {
+            packet = _packetCache.get(this);
+        }
+        if ( packet != null )
+            return packet;
+
+        packet = new Packet(Packet.COMMAND_START, encodePayload());
+        synchronized ( _packetCache )
+        {
+            // another thread may have encoded the same parameters meanwhile
+            Packet existing = _packetCache.get(this);
+            if ( existing != null )
+                return existing;
+
+            _packetCache.put(this, packet);
+            return packet;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if ( o == this )
+            return true;
+        if ( !(o instanceof StartParameters) )
+            return false;
+
+        StartParameters other = (StartParameters)o;
+        return Float.floatToIntBits(_sensorAmplitude) == Float.floatToIntBits(other._sensorAmplitude)
+            && Float.floatToIntBits(_sensorFrequency) == Float.floatToIntBits(other._sensorFrequency)
+            && Float.floatToIntBits(_fieldAmplitude) == Float.floatToIntBits(other._fieldAmplitude)
+            && Float.floatToIntBits(_fieldFrequency) == Float.floatToIntBits(other._fieldFrequency)
+            && Float.floatToIntBits(_interval) == Float.floatToIntBits(other._interval)
+            && _mode == other._mode;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int hash = Float.floatToIntBits(_sensorAmplitude);
+        hash = 31 * hash + Float.floatToIntBits(_sensorFrequency);
+        hash = 31 * hash + Float.floatToIntBits(_fieldAmplitude);
+        hash = 31 * hash + Float.floatToIntBits(_fieldFrequency);
+        hash = 31 * hash + Float.floatToIntBits(_interval);
+        hash = 31 * hash + _mode;
+        return hash;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "StartParameters[sensor=" + _sensorAmplitude + "@" + _sensorFrequency
+            + ", field=" + _fieldAmplitude + "@" + _fieldFrequency
+            + ", interval=" + _interval + ", mode=" + _mode + "]";
+    }
+
+    public static final class Builder
+    {
+        private float _sensorAmplitude = 0.3f;
+        private float _sensorFrequency = 1000.0f;
+        private float _fieldAmplitude = 0.2f;
+        private float _fieldFrequency = 50.0f;
+        private float _interval = 1.0f;
+        private int _mode = 4;
+
+        public Builder()
+        {
+        }
+
+        private Builder(StartParameters parameters)
+        {
+            _sensorAmplitude = parameters._sensorAmplitude;
+            _sensorFrequency = parameters._sensorFrequency;
+            _fieldAmplitude = parameters._fieldAmplitude;
+            _fieldFrequency = parameters._fieldFrequency;
+            _interval = parameters._interval;
+            _mode = parameters._mode;
+        }
+
+        public Builder setSensorAmplitude(float value)
+        {
+            _sensorAmplitude = checkNonNegative("sensorAmplitude", value);
+            return this;
+        }
+
+        public Builder setSensorFrequency(float value)
+        {
+            _sensorFrequency = checkPositive("sensorFrequency", value);
+            return this;
+        }
+
+        public Builder setFieldAmplitude(float value)
+        {
+            _fieldAmplitude = checkNonNegative("fieldAmplitude", value);
+            return this;
+        }
+
+        public Builder setFieldFrequency(float value)
+        {
+            _fieldFrequency = checkPositive("fieldFrequency", value);
+            return this;
+        }
+
+        public Builder setInterval(float value)
+        {
+            _interval = checkPositive("interval", value);
+            return this;
+        }
+
+        public Builder setMode(int value)
+        {
+            if ( value < 0 || value > 0xFF )
+                throw new IllegalArgumentException("mode must fit in a byte: " + value);
+
+            _mode = value;
+            return this;
+        }
+
+        public StartParameters build()
+        {
+            return new StartParameters(this);
+        }
+
+        private static float checkNonNegative(String name, float value)
+        {
+            if ( Float.isNaN(value) || Float.isInfinite(value) || value < 0.0f )
+                throw new IllegalArgumentException(name + " must be finite and >= 0: " + value);
+
+            return value;
+        }
+
+        private static float checkPositive(String name, float value)
+        {
+            if ( Float.isNaN(value) || Float.isInfinite(value) || value <= 0.0f )
+                throw new IllegalArgumentException(name + " must be finite and > 0: " + value);
+
+            return value;
+        }
+    }
+}
@@ -1,26 +1,32 @@
 package org.umn.jpwang.earlystagedetection;
 
 import android.app.Activity;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.SystemClock;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
-import android.widget.ScrollView;
-import android.widget.TextView;
+import android.widget.ListView;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import com.hoho.android.usbserial.driver.FtdiSerialDriver;
+import com.hoho.android.usbserial.driver.LoopbackTransport;
+import com.hoho.android.usbserial.driver.TransportSerialDriver;
 import com.hoho.android.usbserial.driver.UsbSerialDriver;
 import com.hoho.android.usbserial.driver.UsbSerialProber;
 import com.hoho.android.usbserial.util.HexDump;
@@ -30,38 +36,179 @@ public class WelcomeActivity extends Activity
 {
     private static final String TAG = "EarlyStageDetection::WelcomeActivity";
 
-    private String _outputString = "";
-    private TextView _outputView;
-    private ScrollView _outputScrollView;
+    // about a minute at 1 kHz
+    private static final int STORE_FRAMES = 1 << 16;
+    // summarized in the emailed log, a second at 1 kHz
+    private static final int STORE_SUMMARY_FRAMES = 1000;
+    // a few seconds of frames at 1 kHz before a stalled consumer misses any
+    private static final int FRAME_RING_SLOTS = 4096;
+
+    // hex dumps every chunk to the log view, toggled from the menu
+    private volatile boolean _traceReceivedData = false;
+
+    // reader thread only, reused for every trace line
+    private final StringBuilder _traceBuilder = new StringBuilder(64 + 2 * 4096);
+
+    private LogConsole _console;
+    private SignalPlotView _plotView;
+
+    // display consumer only, one data frame
+    private final float[] _frameSamples = new float[SampleFrame.MAX_CHANNELS];
+
+    // replaced when a Config acknowledgement brings a different channel map
+    private volatile SampleStore _sampleStore;
 
     private Button _startButton;
 
     private UsbManager _usbManager;
     private UsbSerialDriver _driver;
 
-    private final ExecutorService _executor = Executors.newSingleThreadExecutor();
-    private SerialInputOutputManager _serialIoManager;
-    private final SerialInputOutputManager.Listener _serialListener = new SerialInputOutputManager.Listener()
+    // decoded frames, fanned out to the consumers below
+    private final FrameRing _frameRing = new FrameRing(FRAME_RING_SLOTS);
+    private FrameRing.Consumer _displayConsumer;
+    private FrameRing.Consumer _storeConsumer;
+    private CaptureRecorder _recorder;
+
+    // set while a capture is replayed, measures the frames' way through the stages below
+    private volatile PipelineProbe _probe;
+    private static final int STAGE_DECODED = 0;
+    private static final int STAGE_DISPLAYED = 1;
+    private static final int STAGE_STORED = 2;
+    private ReplaySource _replay;
+
+    private final ReplaySource.Listener _replayListener = new ReplaySource.Listener()
     {
         @Override
-        public void onRunError(Exception e)
+        public void onReplayFinished(ReplaySource source, IOException error)
         {
-            Log.d(TAG, "Runner stopped.");
+            if ( error != null )
+                message("replay failed: " + error.getMessage());
+
+            message("replayed " + source.getFramesSent() + " frames at " + Math.round(source.getFramesPerSecond()) + " frames/s");
+            PipelineProbe probe = _probe;
+            if ( probe != null )
+                message(probe.report());
         }
+    };
+
+    private final FrameDecoder.Listener _decodedListener = new FrameDecoder.Listener()
+    {
+        @Override
+        public void onFrame(byte command, byte[] payload, int offset, int length)
+        {
+            PipelineProbe probe = _probe;
+            // a short data frame has no sequence, and payload may end right after it
+            if ( probe != null && command == SampleFrame.COMMAND_DATA && length >= SampleFrame.SEQUENCE_LENGTH )
+                probe.onStage(STAGE_DECODED, SampleFrame.getSequence(payload, offset));
 
+            _frameRing.onFrame(command, payload, offset, length);
+        }
+    };
+
+    private final CaptureRecorder.Listener _recorderListener = new CaptureRecorder.Listener()
+    {
         @Override
-        public void onNewData(final byte[] data)
+        public void onRecordingStopped(CaptureRecorder recorder, IOException error)
         {
-            WelcomeActivity.this.runOnUiThread(new Runnable()
+            if ( error != null )
+                message("recording failed: " + error.getMessage());
+            else
+                message("recording " + recorder.getPrefix() + " finished, " + recorder.getMissedFrames() + " frames missed");
+        }
+    };
+
+    private final FrameRing.Handler _displayHandler = new FrameRing.Handler()
+    {
+        @Override
+        public void onFrame(long sequence, long timestampNanos, byte command, byte[] payload, int length)
+        {
+            if ( command == SampleFrame.COMMAND_DATA && length >= SampleFrame.SEQUENCE_LENGTH )
             {
-                @Override
-                public void run() {
-                    WelcomeActivity.this.updateReceivedData(data);
+                int channels = Math.min(SampleFrame.getChannelCount(length), _plotView.getChannelCount());
+                for ( int c = 0; c < channels; c++ )
+                    _frameSamples[c] = SampleFrame.getSample(payload, 0, c);
+
+                _plotView.addSamples(_frameSamples);
+
+                PipelineProbe probe = _probe;
+                if ( probe != null )
+                    probe.onStage(STAGE_DISPLAYED, SampleFrame.getSequence(payload, 0));
+                return;
+            }
+
+            message("Received frame, command " + HexDump.toHexString(command) + ", " + length + " byte payload");
+        }
+    };
+
+    private final FrameRing.Handler _storeHandler = new FrameRing.Handler()
+    {
+        @Override
+        public void onFrame(long sequence, long timestampNanos, byte command, byte[] payload, int length)
+        {
+            if ( command == Packet.COMMAND_CONFIG )
+            {
+                // the acknowledgement echoes the channel map; Config is resent on every start, usually unchanged
+                SampleStore store = _sampleStore;
+                if ( store == null || !store.hasChannelMap(payload, 0, length) )
+                {
+                    byte[] channelMap = new byte[length];
+                    System.arraycopy(payload, 0, channelMap, 0, length);
+                    _sampleStore = new SampleStore(channelMap, STORE_FRAMES);
                 }
-            });
+            }
+            else if ( command == SampleFrame.COMMAND_DATA && length >= SampleFrame.SEQUENCE_LENGTH )
+            {
+                SampleStore store = _sampleStore;
+                if ( store != null )
+                    store.append(timestampNanos, payload, 0, length);
+
+                PipelineProbe probe = _probe;
+                if ( probe != null )
+                    probe.onStage(STAGE_STORED, SampleFrame.getSequence(payload, 0));
+            }
+        }
+    };
+
+    private final ProtocolSession _protocolSession = new ProtocolSession(new ProtocolSession.Sender()
+    {
+        @Override
+        public void send(Packet packet) throws IOException
+        {
+            UsbSerialDriver driver = _driver;
+            if ( driver == null )
+                throw new IOException("No serial device");
+
+            int written = driver.write(packet.getBuffer(), 0, packet.getLength(), 1000);
+            if ( written < packet.getLength() )
+                throw new IOException("Wrote " + written + " of " + packet.getLength() + " bytes");
+        }
+    }, _decodedListener);
+
+    private final FrameDecoder _frameDecoder = new FrameDecoder(_protocolSession);
+
+    private final LinkTuner.Listener _tunerListener = new LinkTuner.Listener()
+    {
+        @Override
+        public void onRoundTripMeasured(String setting, long nanos)
+        {
+            message("round trip with " + setting + ": " + (nanos / 1000) + " us");
         }
     };
 
+    private final BroadcastReceiver _detachReceiver = new BroadcastReceiver()
+    {
+        @Override
+        public void onReceive(Context context, Intent intent)
+        {
+            UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+            if ( device != null )
+                UsbSerialProber.invalidate(device);
+        }
+    };
+
+    private final ExecutorService _executor = Executors.newSingleThreadExecutor();
+    private SerialInputOutputManager _serialIoManager;
+
     @Override
     public void onCreate(Bundle savedInstanceState)
     {
@@ -80,19 +227,20 @@ public class WelcomeActivity extends Activity
                     public void run() {
                         try
                         {
-                            Packet configPacket = new Packet(Packet.Type.Config);
-                            int numBytesWritten = _driver.write(configPacket.getBuffer(), 1000);
-                            message("wrote config packet, " + numBytesWritten + " bytes...");
+                            UsbSerialDriver driver = _driver;
+                            if ( driver instanceof FtdiSerialDriver )
+                                new LinkTuner((FtdiSerialDriver)driver, _protocolSession, _tunerListener).applyDetectorProfile();
 
-                            SystemClock.sleep(2000);
+                            long nanos = _protocolSession.execute(Packet.get(Packet.Type.Config), Packet.COMMAND_CONFIG);
+                            message("config packet acknowledged after " + (nanos / 1000) + " us");
 
-                            Packet startPacket = new Packet(Packet.Type.Start);
-                            numBytesWritten = _driver.write(startPacket.getBuffer(), 1000);
-                            message("wrote start packet, " + numBytesWritten + " bytes...");
+                            // Start has no echo, the first data frame answers it; Config stopped any earlier stream
+                            nanos = _protocolSession.execute(Packet.get(Packet.Type.Start), SampleFrame.COMMAND_DATA);
+                            message("first data frame " + (nanos / 1000) + " us after start");
                         }
                         catch (IOException e)
                         {
-                            message("failed to write packets: " + e.getMessage());
+                            message("failed to start acquisition: " + e.getMessage());
                         }
                     }
                 };
@@ -101,10 +249,11 @@ public class WelcomeActivity extends Activity
         });
         _startButton.setEnabled(false);
 
-        _outputView = (TextView)findViewById(R.id.output_view);
-        _outputScrollView = (ScrollView)findViewById(R.id.output_scrollview);
+        _console = new LogConsole((ListView)findViewById(R.id.output_list));
+        _plotView = (SignalPlotView)findViewById(R.id.plot_view);
 
         _usbManager = (UsbManager)getSystemService(Context.USB_SERVICE);
+        registerReceiver(_detachReceiver, new IntentFilter(UsbManager.ACTION_USB_DEVICE_DETACHED));
     }
 
     @Override
@@ -114,11 +263,12 @@ public class WelcomeActivity extends Activity
 
         if ( _driver == null )
         {
-        List<UsbSerialDriver> drivers = UsbSerialProber.findAllDevices(_usbManager);
-        if ( drivers.size() > 0 )
+        // only the device we use gets opened
+        List<UsbDevice> devices = UsbSerialProber.findSupportedDevices(_usbManager);
+        if ( devices.size() > 0 )
         {
-            _driver = drivers.get(0);
-            message("Found " + drivers.size() + " compatible drivers, using the first one: " + _driver);
+            _driver = UsbSerialProber.openDriver(_usbManager, devices.get(0));
+            message("Found " + devices.size() + " compatible devices, using the first one: " + _driver);
         }
         else
             message("No compatible drivers found!");
@@ -160,6 +310,8 @@ public class WelcomeActivity extends Activity
     protected void onPause()
     {
         super.onPause();
+        stopRecording();
+        stopReplay();
         stopIoManager();
 
         if ( _driver != null )
@@ -177,6 +329,7 @@ public class WelcomeActivity extends Activity
     @Override
     public void onDestroy()
     {
+        unregisterReceiver(_detachReceiver);
         super.onDestroy();
     }
 
@@ -193,12 +346,118 @@ public class WelcomeActivity extends Activity
             case R.id.action_email:
                 sendEmail();
                 break;
+            case R.id.action_trace:
+                _traceReceivedData = !item.isChecked();
+                item.setChecked(_traceReceivedData);
+                break;
+            case R.id.action_replay:
+                startReplay(ReplaySource.REALTIME);
+                break;
+            case R.id.action_replay_fast:
+                startReplay(ReplaySource.AS_FAST_AS_POSSIBLE);
+                break;
+            case R.id.action_record:
+                item.setChecked(!item.isChecked());
+                if ( item.isChecked() )
+                    startRecording();
+                else
+                    stopRecording();
+                break;
             default:
                 break;
         }
         return true;
     }
 
+    private File getCaptureDirectory()
+    {
+        File directory = getExternalFilesDir(null);
+        if ( directory == null )
+            directory = getFilesDir();
+
+        return new File(directory, "captures");
+    }
+
+    private void startRecording()
+    {
+        // the writer opens its files on the recording thread
+        _recorder = new CaptureRecorder(_frameRing, getCaptureDirectory(), "capture-" + System.currentTimeMillis(), _recorderListener);
+        _recorder.start();
+        message("recording to " + _recorder.getDirectory() + "/" + _recorder.getPrefix());
+    }
+
+    private void stopRecording()
+    {
+        if ( _recorder != null )
+        {
+            _recorder.stop();
+            _recorder = null;
+        }
+    }
+
+    /**
+     * Replaces the device with the newest recorded capture, played back
+     * through a loopback transport so it takes the same path as live data.
+     */
+    private void startReplay(double speed)
+    {
+        File directory = getCaptureDirectory();
+        String[] captures = CaptureFormat.listCaptures(directory);
+        if ( captures.length == 0 )
+        {
+            message("no recorded captures in " + directory);
+            return;
+        }
+        String capture = captures[captures.length - 1];
+
+        stopReplay();
+        stopIoManager();
+        if ( _driver != null )
+        {
+            try
+            {
+                _driver.close();
+            }
+            catch (IOException e)
+            {
+                // Ignore.
+            }
+        }
+
+        LoopbackTransport[] pair = LoopbackTransport.createPair(LoopbackTransport.UNLIMITED, 0, LoopbackTransport.DEFAULT_CAPACITY);
+        try
+        {
+            _driver = new TransportSerialDriver(pair[0]);
+            _driver.open();
+            pair[1].open();
+        }
+        catch (IOException e)
+        {
+            message("cannot set up replay: " + e.getMessage());
+            _driver = null;
+            onDeviceStateChange();
+            return;
+        }
+
+        _probe = new PipelineProbe("decoded", "displayed", "stored");
+        _replay = new ReplaySource(CaptureFormat.listSegments(directory, capture), pair[1], speed);
+        _replay.setProbe(_probe);
+        _replay.setListener(_replayListener);
+
+        onDeviceStateChange();
+        _replay.start();
+        message("replaying " + capture + (speed == ReplaySource.AS_FAST_AS_POSSIBLE ? " as fast as possible" : " at " + speed + "x"));
+    }
+
+    private void stopReplay()
+    {
+        if ( _replay != null )
+        {
+            _replay.stop();
+            _replay = null;
+        }
+    }
+
     private void sendEmail()
     {
         String[] recipients = new String[] { "shawn.roske@space150.com" };
@@ -206,25 +465,50 @@ public class WelcomeActivity extends Activity
         Intent i = new Intent(android.content.Intent.ACTION_SEND);
         i.putExtra(android.content.Intent.EXTRA_EMAIL, recipients);
         i.putExtra(android.content.Intent.EXTRA_SUBJECT, "EarlyStageDetection - Debug Log");
-        i.putExtra(android.content.Intent.EXTRA_TEXT, _outputString);
+        i.putExtra(android.content.Intent.EXTRA_TEXT, _console.getText() + "\n" + describeStoredSamples());
         i.setType("text/plain");
 
         startActivity(Intent.createChooser(i, "Email Log with:"));
     }
 
-    public void message(final String message)
+    /**
+     * Summarizes the last second of every channel in the sample store, so
+     * an emailed log shows what the signals looked like.
+     */
+    private String describeStoredSamples()
     {
-        Log.d(TAG, message);
-        runOnUiThread(new Runnable()
+        SampleStore store = _sampleStore;
+        if ( store == null )
+            return "no samples stored";
+
+        int count = (int)Math.min(Math.min(STORE_SUMMARY_FRAMES, store.getCapacity()), store.getFrameCount());
+        float[] values = new float[count];
+        StringBuilder builder = new StringBuilder();
+        builder.append(store.getFrameCount()).append(" frames stored, last ").append(count).append(" per channel:\n");
+        for ( int c = 0; c < store.getChannelCount(); c++ )
         {
-            @Override
-            public void run()
+            int n = store.readLatest(c, values, null, 0, count);
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            double sum = 0;
+            for ( int i = 0; i < n; i++ )
             {
-                _outputString += message + "\n";
-                _outputView.setText(_outputString);
-                _outputScrollView.fullScroll(ScrollView.FOCUS_DOWN);
+                min = Math.min(min, values[i]);
+                max = Math.max(max, values[i]);
+                sum += values[i];
             }
-        });
+            builder.append("channel ").append(store.getChannelId(c));
+            if ( n > 0 )
+                builder.append(": min ").append(min).append(", max ").append(max).append(", mean ").append((float)(sum / n));
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    public void message(String message)
+    {
+        Log.d(TAG, message);
+        _console.append(message);
     }
 
     private void stopIoManager()
@@ -234,6 +518,9 @@ public class WelcomeActivity extends Activity
             Log.i(TAG, "Stopping io manager ..");
             _serialIoManager.stop();
             _serialIoManager = null;
+
+            _displayConsumer.halt();
+            _storeConsumer.halt();
         }
     }
 
@@ -242,11 +529,57 @@ public class WelcomeActivity extends Activity
         if ( _driver != null )
         {
             Log.i(TAG, "Starting io manager ..");
-            _serialIoManager = new SerialInputOutputManager(_driver, _serialListener);
-            _executor.submit(_serialIoManager);
+            _frameDecoder.reset();
+            _displayConsumer = startConsumer("display", _displayHandler, FrameRing.WaitStrategy.SLEEPING);
+            _storeConsumer = startConsumer("store", _storeHandler, FrameRing.WaitStrategy.BLOCKING);
+
+            final SerialInputOutputManager manager = new SerialInputOutputManager(_driver);
+            manager.setBufferListener(new SerialInputOutputManager.BufferListener()
+            {
+                @Override
+                public void onRunError(Exception e)
+                {
+                    Log.d(TAG, "Runner stopped.");
+                }
+
+                @Override
+                public void onNewData(ByteBuffer buffer, int offset, int length)
+                {
+                    // decode on the reader thread, the UI only gets complete frames
+                    try
+                    {
+                        if ( _traceReceivedData )
+                            updateReceivedData(buffer, offset, length);
+
+                        _frameDecoder.feed(buffer);
+                    }
+                    finally
+                    {
+                        manager.release(buffer);
+                    }
+                }
+            });
+            _serialIoManager = manager;
+            _executor.submit(manager);
         }
     }
 
+    private FrameRing.Consumer startConsumer(String name, final FrameRing.Handler handler, FrameRing.WaitStrategy strategy)
+    {
+        final FrameRing.Consumer consumer = _frameRing.newConsumer(strategy);
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                consumer.run(handler);
+                if ( consumer.getMissedFrames() > 0 )
+                    Log.w(TAG, "Frame consumer missed " + consumer.getMissedFrames() + " frames");
+            }
+        }, TAG + " " + name).start();
+        return consumer;
+    }
+
     private void onDeviceStateChange()
     {
         stopIoManager();
@@ -255,8 +588,11 @@ public class WelcomeActivity extends Activity
         _startButton.setEnabled(_driver != null);
     }
 
-    private void updateReceivedData(byte[] data)
+    private void updateReceivedData(ByteBuffer buffer, int offset, int length)
     {
-        message("Read " + data.length + " bytes: " + HexDump.toHexString(data));
+        _traceBuilder.setLength(0);
+        _traceBuilder.append("Read ").append(length).append(" bytes: ");
+        HexDump.appendHex(_traceBuilder, buffer, offset, length);
+        message(_traceBuilder.toString());
     }
 }